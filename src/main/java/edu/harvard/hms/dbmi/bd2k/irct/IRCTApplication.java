@@ -10,6 +10,7 @@ import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
@@ -19,14 +20,23 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 
+import edu.harvard.hms.dbmi.bd2k.irct.controller.QueryCacheController;
 import edu.harvard.hms.dbmi.bd2k.irct.dataconverter.ResultDataConverter;
 import edu.harvard.hms.dbmi.bd2k.irct.event.EventConverterImplementation;
 import edu.harvard.hms.dbmi.bd2k.irct.event.IRCTEventListener;
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
+import edu.harvard.hms.dbmi.bd2k.irct.join.BuiltInJoins;
+import edu.harvard.hms.dbmi.bd2k.irct.join.JoinExecutor;
 import edu.harvard.hms.dbmi.bd2k.irct.model.join.IRCTJoin;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.PathCache;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.PathIndex;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.PathPrefetcher;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.ResourceGuard;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.DataConverterImplementation;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.util.http.HttpClientService;
 
 /**
  * Manages supported resources and join types for this instance of the IRCT
@@ -43,6 +53,7 @@ public class IRCTApplication {
 	
 	private Map<String, Resource> resources;
 	private Map<String, IRCTJoin> supportedJoinTypes;
+	private Map<String, IRCTJoin> builtInJoins;
 	private Map<ResultDataType, List<DataConverterImplementation>> resultDataConverters;
 
 	@Inject
@@ -54,6 +65,9 @@ public class IRCTApplication {
 	@Inject
 	private IRCTEventListener irctEventListener;
 
+	@Inject
+	private QueryCacheController queryCacheController;
+
 	private EntityManager oem;
  
 	/**
@@ -90,6 +104,17 @@ public class IRCTApplication {
 		log.info("Finished Starting IRCT Application");
 	}
 
+	/**
+	 * Releases the resources shared by the application when it stops
+	 */
+	@PreDestroy
+	public void destroy() {
+		log.info("Stopping IRCT Application");
+		HttpClientService.shutdown();
+		JoinExecutor.shutdown();
+		AsyncExecution.shutdown();
+	}
+
 	/**
 	 * Load all the Listeners
 	 * 
@@ -154,6 +179,17 @@ public class IRCTApplication {
 		for (IRCTJoin jt : oem.createQuery(criteria).getResultList()) {
 			this.supportedJoinTypes.put(jt.getName(), jt);
 		}
+		// Add the built in joins that have not been overridden
+		this.builtInJoins = new HashMap<String, IRCTJoin>();
+		for (IRCTJoin jt : BuiltInJoins.getJoins()) {
+			this.builtInJoins.put(jt.getName(), jt);
+			if (this.supportedJoinTypes.containsKey(jt.getName())) {
+				log.warning("Join " + jt.getName()
+						+ " from the database shadows the built in join");
+			} else {
+				this.supportedJoinTypes.put(jt.getName(), jt);
+			}
+		}
 		log.info("Loaded " + this.supportedJoinTypes.size() + " joins");
 	}
 
@@ -197,6 +233,7 @@ public class IRCTApplication {
 		oem.persist(resource);
 
 		this.resources.put(name, resource);
+		resetResource(name);
 	}
 
 	/**
@@ -208,6 +245,23 @@ public class IRCTApplication {
 	public void removeResource(String name) {
 		// Remove the resource from persistence manager
 		oem.remove(this.resources.remove(name));
+		resetResource(name);
+	}
+
+	/**
+	 * Drops the state that is kept for a resource, so a resource that is
+	 * added again starts from its new settings and its cached query results
+	 * are not returned
+	 * 
+	 * @param name
+	 *            Resource name
+	 */
+	private void resetResource(String name) {
+		ResourceGuard.remove(name);
+		PathCache.remove(name);
+		PathIndex.remove(name);
+		PathPrefetcher.remove(name);
+		queryCacheController.invalidate(name);
 	}
 
 	/**
@@ -274,6 +328,9 @@ public class IRCTApplication {
 	public void addJoin(String name, IRCTJoin join) {
 		// Persist the join
 		oem.persist(join);
+		if (this.builtInJoins.containsKey(name)) {
+			log.warning("Join " + name + " shadows the built in join");
+		}
 		this.supportedJoinTypes.put(name, join);
 	}
 
@@ -317,14 +374,28 @@ public class IRCTApplication {
 	}
 
 	/**
-	 * Removes a join from the list of supported joins
+	 * Removes a join from the list of supported joins. Built in joins are not
+	 * persisted and can not be removed. If the join shadowed a built in join
+	 * then the built in join is supported again.
 	 * 
 	 * @param name
 	 *            Join name
 	 */
 	public void removeJoin(String name) {
+		IRCTJoin join = this.supportedJoinTypes.get(name);
+		if (join == null) {
+			return;
+		}
+		IRCTJoin builtInJoin = this.builtInJoins.get(name);
+		if (join == builtInJoin) {
+			log.warning("Built in join " + name + " can not be removed");
+			return;
+		}
 		// Removes the supported joins from the persistence manager
 		oem.remove(this.supportedJoinTypes.remove(name));
+		if (builtInJoin != null) {
+			this.supportedJoinTypes.put(name, builtInJoin);
+		}
 	}
 
 	/**
@@ -4,8 +4,12 @@
 package edu.harvard.hms.dbmi.bd2k.irct.action;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.RowChannel;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
 
@@ -48,5 +52,73 @@ public interface Action {
 	 * @return Action Status
 	 */
 	ActionStatus getStatus();
-	
+
+	/**
+	 * Runs the action on the executor and returns its results once they are
+	 * available
+	 * 
+	 * @param secureSession A secure session (Null if not needed or set)
+	 * @param executor Executor to run on
+	 * @return Future results of the action
+	 */
+	default CompletableFuture<Result> runAsync(SecureSession secureSession,
+			Executor executor) {
+		return AsyncExecution.supply(() -> {
+			run(secureSession);
+			return getResults(secureSession);
+		}, executor);
+	}
+
+	/**
+	 * Cancels the action if it is running. Actions that cannot be cancelled
+	 * ignore this.
+	 * 
+	 * @param secureSession A secure session (Null if not needed or set)
+	 */
+	default void cancel(SecureSession secureSession) {
+	}
+
+	/**
+	 * Returns a channel that the rows of the result are written to as soon as
+	 * they are available, before the result has been saved. The channel must
+	 * be opened before the action is run.
+	 * 
+	 * @param capacity Maximum number of rows held by the channel
+	 * @return Channel, or null if the action does not stream its results
+	 */
+	default RowChannel openChannel(int capacity) {
+		return null;
+	}
+
+	/**
+	 * Returns true if the parameter can be read from a channel instead of a
+	 * saved result
+	 * 
+	 * @param key Parameter
+	 * @return Accepts a channel
+	 */
+	default boolean acceptsChannel(String key) {
+		return false;
+	}
+
+	/**
+	 * Updates the parameters of the action with channels that the rows of
+	 * results are read from while they are being produced. This is used in
+	 * pipelined chained actions.
+	 * 
+	 * @param channels Channels by parameter
+	 */
+	default void updateActionChannels(Map<String, RowChannel> channels) {
+	}
+
+	/**
+	 * Returns a fingerprint of the action. Actions with the same fingerprint
+	 * produce the same result when run by the same user, so their results can
+	 * be shared.
+	 * 
+	 * @return Fingerprint, or null if the result can not be shared
+	 */
+	default String getFingerprint() {
+		return null;
+	}
 }
@@ -11,6 +11,9 @@ import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
 import edu.harvard.hms.dbmi.bd2k.irct.controller.ResultController;
+import edu.harvard.hms.dbmi.bd2k.irct.join.SemiJoinFilter;
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.Query;
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.WhereClause;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Field;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
@@ -19,6 +22,7 @@ import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableExceptio
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.User;
+import edu.harvard.hms.dbmi.bd2k.irct.util.sketch.BloomFilter;
 
 /**
  * A set of utitlity functions that can be used by the different implementation of actions
@@ -84,4 +88,45 @@ public class ActionUtilities {
 		
 		return returns;
 	}
+	
+	/**
+	 * Adds a semi-join Bloom filter to the object values of each where clause
+	 * of the query that requests one
+	 * 
+	 * @param user User
+	 * @param query Query
+	 * @throws NamingException An exception occurred getting the result controller
+	 * @throws ResultSetException An error occurred reading the result
+	 * @throws PersistableException An error occurred loading the result
+	 */
+	static protected void addSemiJoinFilters(User user, Query query) throws NamingException, ResultSetException, PersistableException {
+		ResultController resultController = null;
+		
+		for(WhereClause whereClause : query.getClausesOfType(WhereClause.class)) {
+			Map<String, String> stringValues = whereClause.getStringValues();
+			if(!stringValues.containsKey(SemiJoinFilter.SEMI_JOIN_RESULT) || !stringValues.containsKey(SemiJoinFilter.SEMI_JOIN_COLUMN)) {
+				continue;
+			}
+			if(resultController == null) {
+				InitialContext ic = new InitialContext();
+				resultController = (ResultController) ic.lookup("java:module/ResultController");
+			}
+			
+			Result result = resultController.getResult(user, Long.valueOf(stringValues.get(SemiJoinFilter.SEMI_JOIN_RESULT)));
+			if(result == null) {
+				throw new ResultSetException("Semi-join result not found");
+			}
+			double falsePositiveRate = SemiJoinFilter.getFalsePositiveRate(stringValues);
+			
+			ResultSet rs = (ResultSet) result.getData();
+			rs.load(result.getResultSetLocation());
+			BloomFilter filter = SemiJoinFilter.build(rs, stringValues.get(SemiJoinFilter.SEMI_JOIN_COLUMN), falsePositiveRate);
+			rs.close();
+			
+			if(whereClause.getObjectValues() == null) {
+				whereClause.setObjectValues(new HashMap<String, Object>());
+			}
+			whereClause.getObjectValues().put(SemiJoinFilter.SEMI_JOIN_FILTER, filter);
+		}
+	}
 }
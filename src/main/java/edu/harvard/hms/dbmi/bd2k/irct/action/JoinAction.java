@@ -3,17 +3,22 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.action;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.naming.NamingException;
 
 import edu.harvard.hms.dbmi.bd2k.irct.model.join.Join;
 import edu.harvard.hms.dbmi.bd2k.irct.model.join.JoinImplementation;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Field;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.RowChannel;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.util.Utilities;
 import edu.harvard.hms.dbmi.bd2k.irct.event.IRCTEventListener;
@@ -30,6 +35,7 @@ public class JoinAction implements Action {
 	private Join join;
 	private ActionStatus status;
 	private Result result;
+	private Map<String, RowChannel> channels = new LinkedHashMap<String, RowChannel>();
 	
 	private IRCTEventListener irctEventListener;
 
@@ -52,6 +58,16 @@ public class JoinAction implements Action {
 		}
 	}
 	
+	@Override
+	public boolean acceptsChannel(String key) {
+		return this.join.getJoinImplementation().acceptsChannel(key);
+	}
+	
+	@Override
+	public void updateActionChannels(Map<String, RowChannel> updatedChannels) {
+		this.channels.putAll(updatedChannels);
+	}
+	
 	@Override
 	public void run(SecureSession session) {
 		irctEventListener.beforeJoin(session, join);
@@ -65,7 +81,15 @@ public class JoinAction implements Action {
 				result.setUser(session.getUser());
 			}
 			
-			join.getObjectValues().putAll(ActionUtilities.convertResultSetFieldToObject(session.getUser(), join.getJoinType().getFields(), join.getStringValues()));
+			// Fields that are piped in are read from their channels instead of being loaded
+			List<Field> savedFields = new ArrayList<Field>();
+			for(Field field : join.getJoinType().getFields()) {
+				if(!channels.containsKey(field.getPath())) {
+					savedFields.add(field);
+				}
+			}
+			join.getObjectValues().putAll(ActionUtilities.convertResultSetFieldToObject(session.getUser(), savedFields, join.getStringValues()));
+			join.getObjectValues().putAll(channels);
 			
 			result = joinImplementation.run(session, join, result);
 			this.status = ActionStatus.COMPLETE;
@@ -73,6 +97,11 @@ public class JoinAction implements Action {
 		} catch (PersistableException | NamingException | ResultSetException | JoinActionSetupException e) {
 			result.setMessage(e.getMessage());
 			this.status = ActionStatus.ERROR;
+		} finally {
+			// Release any producers that are still writing
+			for(RowChannel channel : channels.values()) {
+				channel.abandon();
+			}
 		}
 		
 		this.status = ActionStatus.COMPLETE;
@@ -4,18 +4,29 @@
 package edu.harvard.hms.dbmi.bd2k.irct.action;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import javax.naming.NamingException;
 
 import edu.harvard.hms.dbmi.bd2k.irct.event.IRCTEventListener;
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
 import edu.harvard.hms.dbmi.bd2k.irct.model.process.IRCTProcess;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.ProcessResourceImplementationInterface;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.ResourceGuard;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.RowChannel;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.util.Utilities;
 
@@ -26,11 +37,15 @@ import edu.harvard.hms.dbmi.bd2k.irct.util.Utilities;
  *
  */
 public class ProcessAction implements Action {
+	private static final long MAX_POLL_INTERVAL = 5000;
 	
 	private IRCTProcess process ;
 	private Resource resource;
 	private ActionStatus status;
 	private Result result;
+	private volatile CompletableFuture<Result> completion;
+	private CompletableFuture<Result> results;
+	private List<RowChannel> channels = new ArrayList<RowChannel>();
 	
 	private IRCTEventListener irctEventListener;
 	
@@ -57,6 +72,9 @@ public class ProcessAction implements Action {
 	public void run(SecureSession session) {
 		irctEventListener.beforeProcess(session, process);
 		this.status = ActionStatus.RUNNING;
+		synchronized(this) {
+			this.results = null;
+		}
 		try {
 			ProcessResourceImplementationInterface processInterface = (ProcessResourceImplementationInterface) resource.getImplementingInterface();
 			
@@ -66,7 +84,8 @@ public class ProcessAction implements Action {
 			}
 			
 			process.setObjectValues(ActionUtilities.convertResultSetFieldToObject(session.getUser(), process.getProcessType().getFields(), process.getStringValues()));
-			result = processInterface.runProcess(session, process, result);
+			final Result queued = result;
+			result = ResourceGuard.get(resource).call(() -> processInterface.runProcess(session, process, queued));
 			
 			ActionUtilities.mergeResult(result);
 		} catch (Exception e) {
@@ -76,19 +95,98 @@ public class ProcessAction implements Action {
 		irctEventListener.afterProcess(session, process);
 	}
 
+	@Override
+	public CompletableFuture<Result> runAsync(final SecureSession session,
+			final Executor executor) {
+		return AsyncExecution.supply(() -> {
+			run(session);
+			return this.result;
+		}, executor).thenCompose(ignored -> getResultsAsync(session, executor));
+	}
+
 	@Override
 	public Result getResults(SecureSession session) throws ResourceInterfaceException {
-		this.result = ((ProcessResourceImplementationInterface)resource.getImplementingInterface()).getResults(session, result);
+		return AsyncExecution.await(getResultsAsync(session, AsyncExecution.getDefaultExecutor()));
+	}
+
+	/**
+	 * Returns the results once the resource has finished running the process.
+	 * The resource signals completion if it supports it, otherwise it is
+	 * polled along with the other results of the resource and session. The
+	 * results of a run are only collected once, later calls return the same
+	 * future.
+	 * 
+	 * @param session Session to run in
+	 * @param executor Executor to poll on
+	 * @return Future results
+	 */
+	public synchronized CompletableFuture<Result> getResultsAsync(final SecureSession session, Executor executor) {
+		if(this.results != null) {
+			return this.results;
+		}
+		final ProcessResourceImplementationInterface processInterface = (ProcessResourceImplementationInterface) resource.getImplementingInterface();
+		CompletableFuture<Result> completion = processInterface.getCompletion(session, result);
+		if(completion == null) {
+			completion = ResultPoller.poll(Arrays.asList(processInterface, session), result,
+					results -> ResourceGuard.get(resource).call(() -> processInterface.getResults(session, results)),
+					MAX_POLL_INTERVAL, executor);
+		}
+		this.completion = completion;
+		this.results = completion.handle((completed, error) -> complete(completed, error));
+		return this.results;
+	}
+
+	@Override
+	public void cancel(SecureSession session) {
+		CompletableFuture<Result> running = this.completion;
+		if(running != null) {
+			running.cancel(false);
+		}
+		if(this.result == null || ResultPoller.isFinished(this.result)) {
+			return;
+		}
+		final ProcessResourceImplementationInterface processInterface = (ProcessResourceImplementationInterface) resource.getImplementingInterface();
+		final Result cancelled = this.result;
 		try {
-			while((this.result.getResultStatus() != ResultStatus.ERROR) && (this.result.getResultStatus() != ResultStatus.COMPLETE)) {
-				Thread.sleep(5000);
-				this.result = ((ProcessResourceImplementationInterface)resource.getImplementingInterface()).getResults(session, result);
+			ResourceGuard.get(resource).call(() -> {
+				processInterface.cancel(session, cancelled);
+				return null;
+			});
+		} catch(ResourceInterfaceException e) {
+			cancelled.setMessage(e.getMessage());
+		}
+	}
+
+	@Override
+	public RowChannel openChannel(int capacity) {
+		RowChannel channel = new RowChannel(capacity);
+		this.channels.add(channel);
+		return channel;
+	}
+
+	private Result complete(Result completed, Throwable error) {
+		if(error instanceof CancellationException) {
+			this.result.setResultStatus(ResultStatus.CANCELLED);
+			this.result.setMessage("Process was cancelled");
+		} else {
+			try {
+				if(error != null) {
+					throw AsyncExecution.unwrap(error);
+				}
+				this.result = completed;
+				
+				// Hand the rows to the pipelined actions
+				if(!channels.isEmpty() && (result.getResultStatus() == ResultStatus.COMPLETE) && (result.getData() instanceof ResultSet)) {
+					RowChannel.writeAll((ResultSet) result.getData(), channels);
+				}
+				result.getData().close();
+			} catch(Exception e) {
+				this.result.setResultStatus(ResultStatus.ERROR);
+				this.result.setMessage(e.getMessage());
 			}
-			
-			result.getData().close();
-		} catch(Exception e) {
-			this.result.setResultStatus(ResultStatus.ERROR);
-			this.result.setMessage(e.getMessage());
+		}
+		for(RowChannel channel : channels) {
+			channel.fail(new ResultSetException("Process did not return rows: " + result.getMessage()));
 		}
 		
 		
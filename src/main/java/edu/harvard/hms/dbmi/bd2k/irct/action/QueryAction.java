@@ -3,22 +3,35 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.action;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import javax.naming.NamingException;
 
 import edu.harvard.hms.dbmi.bd2k.irct.model.query.ClauseAbstract;
 import edu.harvard.hms.dbmi.bd2k.irct.model.query.Query;
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.QueryFingerprint;
 import edu.harvard.hms.dbmi.bd2k.irct.model.query.WhereClause;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.QueryResourceImplementationInterface;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.ResourceGuard;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Persistable;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.RowChannel;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.util.Utilities;
 import edu.harvard.hms.dbmi.bd2k.irct.event.IRCTEventListener;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
 
 /**
@@ -28,11 +41,15 @@ import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
  *
  */
 public class QueryAction implements Action {
+	private static final long MAX_POLL_INTERVAL = 3000;
 
 	private Query query;
 	private Resource resource;
 	private ActionStatus status;
 	private Result result;
+	private volatile CompletableFuture<Result> completion;
+	private CompletableFuture<Result> results;
+	private List<RowChannel> channels = new ArrayList<RowChannel>();
 
 	private IRCTEventListener irctEventListener;
 
@@ -70,6 +87,9 @@ public class QueryAction implements Action {
 	public void run(SecureSession session) {
 		irctEventListener.beforeQuery(session, resource, query);
 		this.status = ActionStatus.RUNNING;
+		synchronized (this) {
+			this.results = null;
+		}
 		try {
 			QueryResourceImplementationInterface queryInterface = (QueryResourceImplementationInterface) resource
 					.getImplementingInterface();
@@ -81,9 +101,11 @@ public class QueryAction implements Action {
 				this.result.setUser(session.getUser());
 			}
 			
-			
+			ActionUtilities.addSemiJoinFilters(this.result.getUser(), query);
 
-			this.result = queryInterface.runQuery(session, query, result);
+			final Result queued = this.result;
+			this.result = ResourceGuard.get(resource).call(
+					() -> queryInterface.runQuery(session, query, queued));
 
 			// Update the result in the database
 			ActionUtilities.mergeResult(this.result);
@@ -95,34 +117,141 @@ public class QueryAction implements Action {
 		irctEventListener.afterQuery(session, resource, query);
 	}
 
+	@Override
+	public CompletableFuture<Result> runAsync(final SecureSession session,
+			final Executor executor) {
+		return AsyncExecution.supply(() -> {
+			run(session);
+			return this.result;
+		}, executor).thenCompose(ignored -> getResultsAsync(session, executor));
+	}
+
 	@Override
 	public Result getResults(SecureSession session)
 			throws ResourceInterfaceException {
+		return AsyncExecution.await(getResultsAsync(session,
+				AsyncExecution.getDefaultExecutor()));
+	}
+
+	/**
+	 * Returns the results once the resource has finished running the query.
+	 * The resource signals completion if it supports it, otherwise it is
+	 * polled along with the other results of the resource and session. The
+	 * results of a run are only collected once, later calls return the same
+	 * future.
+	 * 
+	 * @param session
+	 *            Session to run in
+	 * @param executor
+	 *            Executor to poll on
+	 * @return Future results
+	 */
+	public synchronized CompletableFuture<Result> getResultsAsync(
+			final SecureSession session, Executor executor) {
+		if (this.results != null) {
+			return this.results;
+		}
+		final QueryResourceImplementationInterface queryInterface = (QueryResourceImplementationInterface) resource
+				.getImplementingInterface();
+		CompletableFuture<Result> completion = queryInterface.getCompletion(
+				session, result);
+		if (completion == null) {
+			completion = ResultPoller.poll(
+					Arrays.asList(queryInterface, session), result,
+					results -> ResourceGuard.get(resource).call(
+							() -> queryInterface.getResults(session, results)),
+					MAX_POLL_INTERVAL, executor);
+		}
+		this.completion = completion;
+		this.results = completion.handle((completed, error) -> complete(
+				completed, error));
+		return this.results;
+	}
+
+	@Override
+	public void cancel(SecureSession session) {
+		CompletableFuture<Result> running = this.completion;
+		if (running != null) {
+			running.cancel(false);
+		}
+		if (this.result == null || ResultPoller.isFinished(this.result)) {
+			return;
+		}
+		final QueryResourceImplementationInterface queryInterface = (QueryResourceImplementationInterface) resource
+				.getImplementingInterface();
+		final Result cancelled = this.result;
 		try {
-			this.result = ((QueryResourceImplementationInterface) resource
-					.getImplementingInterface()).getResults(session, result);
-
-			while ((this.result.getResultStatus() != ResultStatus.ERROR)
-					&& (this.result.getResultStatus() != ResultStatus.COMPLETE)) {
-				Thread.sleep(3000);
-				this.result = ((QueryResourceImplementationInterface) resource
-						.getImplementingInterface())
-						.getResults(session, result);
-			}
+			ResourceGuard.get(resource).call(() -> {
+				queryInterface.cancel(session, cancelled);
+				return null;
+			});
+		} catch (ResourceInterfaceException e) {
+			cancelled.setMessage(e.getMessage());
+		}
+	}
 
-			if (this.result.getResultStatus() == ResultStatus.COMPLETE) {
-				if (((Persistable) result.getData()).isPersisted()) {
-					((Persistable) result.getData()).merge();
-				} else {
-					((Persistable) result.getData()).persist();
+	@Override
+	public String getFingerprint() {
+		String canonical = QueryFingerprint.canonicalize(query);
+		if (canonical == null) {
+			return null;
+		}
+		return "QueryAction:" + resource.getName().length() + ":"
+				+ resource.getName() + ":" + canonical;
+	}
+
+	@Override
+	public RowChannel openChannel(int capacity) {
+		RowChannel channel = new RowChannel(capacity);
+		this.channels.add(channel);
+		return channel;
+	}
+
+	private Result complete(Result completed, Throwable error) {
+		if (error instanceof CancellationException) {
+			this.result.setResultStatus(ResultStatus.CANCELLED);
+			this.result.setMessage("Query was cancelled");
+		} else {
+			try {
+				if (error != null) {
+					throw AsyncExecution.unwrap(error);
 				}
+				this.result = completed;
 
-			}
+				if (this.result.getResultStatus() == ResultStatus.COMPLETE) {
+					Persistable data = (Persistable) result.getData();
+					if (!channels.isEmpty()
+							&& (data instanceof FileResultSet)) {
+						// Hand each row to the pipelined actions as it is saved
+						FileResultSet fileResultSet = (FileResultSet) data;
+						if (fileResultSet.isPersisted()) {
+							fileResultSet.merge(channels);
+						} else {
+							fileResultSet.persist(channels);
+						}
+					} else {
+						// Hand the rows to the pipelined actions before saving
+						// them
+						if (!channels.isEmpty() && (data instanceof ResultSet)) {
+							RowChannel.writeAll((ResultSet) data, channels);
+						}
+						if (data.isPersisted()) {
+							data.merge();
+						} else {
+							data.persist();
+						}
+					}
+				}
 
-			result.getData().close();
-		} catch (Exception e) {
-			this.result.setResultStatus(ResultStatus.ERROR);
-			this.result.setMessage(e.getMessage());
+				result.getData().close();
+			} catch (Exception e) {
+				this.result.setResultStatus(ResultStatus.ERROR);
+				this.result.setMessage(e.getMessage());
+			}
+		}
+		for (RowChannel channel : channels) {
+			channel.fail(new ResultSetException("Query did not return rows: "
+					+ result.getMessage()));
 		}
 
 		result.setEndTime(new Date());
@@ -148,6 +277,15 @@ public class QueryAction implements Action {
 
 	}
 
+	/**
+	 * Returns the resource the query is run on
+	 * 
+	 * @return Resource
+	 */
+	public Resource getResource() {
+		return this.resource;
+	}
+
 	/**
 	 * Sets the query
 	 * 
@@ -0,0 +1,313 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.action;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+
+/**
+ * Tracks every result that is still running on a remote resource and polls
+ * for their status until they are complete or have failed. Results are
+ * registered with a group, normally the resource and session, and all of the
+ * results of a group that are due are checked with a single call so
+ * resources that can report several jobs at once are only asked once.
+ *
+ * Polls start quickly and back off exponentially up to a maximum interval,
+ * so short running results are picked up almost immediately and long
+ * running results are checked no more often than before.
+ *
+ * If the check of a batch fails each of its results is checked on its own,
+ * so one bad result does not fail the others. A result whose check fails is
+ * polled again with back off, and only fails once its check has failed
+ * MAX_FAILURES times in a row.
+ *
+ * Cancelling the future returned for a result stops it being polled.
+ *
+ * No thread is held while a result is running. A single shared timer thread
+ * finds the results that are due, and the checks are run on the executor
+ * with at most one check in flight per group. The number of outstanding
+ * results is therefore independent of the number of threads.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class ResultPoller {
+	private static final long INITIAL_INTERVAL = 100;
+	private static final long TICK = 50;
+	private static final double BACKOFF = 2.0;
+	private static final int MAX_FAILURES = 3;
+
+	private static final Map<Object, Group> GROUPS = new HashMap<Object, Group>();
+	private static ScheduledFuture<?> ticker;
+
+	/**
+	 * Checks the status of several results at once
+	 */
+	public interface BatchCheck {
+		/**
+		 * Returns the current state of each of the results, in the same order
+		 *
+		 * @param results
+		 *            Results to check
+		 * @return Updated results
+		 * @throws ResourceInterfaceException
+		 *             An error occurred
+		 */
+		List<Result> check(List<Result> results)
+				throws ResourceInterfaceException;
+	}
+
+	/**
+	 * Polls the result until its status is complete or error. The results of
+	 * a group are checked with the check and on the executor of the first of
+	 * them that is still being polled, so every check of a group must give
+	 * the same answer for the same results.
+	 *
+	 * @param group
+	 *            Results with an equal group and executor are checked
+	 *            together
+	 * @param result
+	 *            Result to poll
+	 * @param check
+	 *            Returns the current state of the results of the group
+	 * @param maxInterval
+	 *            Maximum time between polls in milliseconds
+	 * @param executor
+	 *            Executor the checks are run on
+	 * @return Future result that completes once the result is complete or has
+	 *         failed
+	 */
+	public static CompletableFuture<Result> poll(Object group, Result result,
+			BatchCheck check, long maxInterval, Executor executor) {
+		Entry entry = new Entry(result, Math.min(INITIAL_INTERVAL,
+				maxInterval), maxInterval);
+		Object key = Arrays.asList(group, executor);
+		synchronized (GROUPS) {
+			Group existing = GROUPS.get(key);
+			if (existing == null) {
+				existing = new Group(check, executor);
+				GROUPS.put(key, existing);
+			}
+			existing.entries.add(entry);
+			// The ticker is stopped along with the timer on shutdown
+			if (ticker == null || ticker.isDone()) {
+				ticker = AsyncExecution.getTimer().scheduleWithFixedDelay(ResultPoller::tick, 0,
+						TICK, TimeUnit.MILLISECONDS);
+			}
+		}
+		return entry.future;
+	}
+
+	/**
+	 * Returns the number of results that are being polled
+	 *
+	 * @return Outstanding results
+	 */
+	public static int getOutstanding() {
+		int outstanding = 0;
+		synchronized (GROUPS) {
+			for (Group group : GROUPS.values()) {
+				outstanding += group.entries.size();
+			}
+		}
+		return outstanding;
+	}
+
+	/**
+	 * Returns true if the result has finished running, either successfully or
+	 * not
+	 *
+	 * @param result
+	 *            Result
+	 * @return Finished
+	 */
+	public static boolean isFinished(Result result) {
+		return (result.getResultStatus() == ResultStatus.COMPLETE)
+				|| (result.getResultStatus() == ResultStatus.ERROR)
+				|| (result.getResultStatus() == ResultStatus.CANCELLED);
+	}
+
+	private static void tick() {
+		long now = System.currentTimeMillis();
+		synchronized (GROUPS) {
+			Iterator<Group> groups = GROUPS.values().iterator();
+			while (groups.hasNext()) {
+				Group group = groups.next();
+				if (!group.inFlight) {
+					// Drop results whose waiters have been cancelled
+					Iterator<Entry> entries = group.entries.iterator();
+					while (entries.hasNext()) {
+						if (entries.next().future.isDone()) {
+							entries.remove();
+						}
+					}
+				}
+				if (group.entries.isEmpty()) {
+					groups.remove();
+					continue;
+				}
+				if (group.inFlight) {
+					continue;
+				}
+
+				List<Entry> due = new ArrayList<Entry>();
+				for (Entry entry : group.entries) {
+					if (entry.nextPoll <= now) {
+						due.add(entry);
+					}
+				}
+				if (!due.isEmpty()) {
+					group.inFlight = true;
+					submit(group, due);
+				}
+			}
+			if (GROUPS.isEmpty()) {
+				ticker.cancel(false);
+				ticker = null;
+			}
+		}
+	}
+
+	private static void submit(final Group group, final List<Entry> due) {
+		try {
+			group.executor.execute(() -> check(group, due));
+		} catch (RuntimeException e) {
+			List<Exception> errors = new ArrayList<Exception>();
+			for (int index = 0; index < due.size(); index++) {
+				errors.add(e);
+			}
+			finish(group, due, new ArrayList<Result>(due.size()), errors);
+		}
+	}
+
+	private static void check(Group group, List<Entry> due) {
+		List<Result> results = new ArrayList<Result>();
+		for (Entry entry : due) {
+			results.add(entry.result);
+		}
+		List<Result> updated = new ArrayList<Result>();
+		List<Exception> errors = new ArrayList<Exception>();
+		try {
+			updated.addAll(checkResults(group, results));
+			for (int index = 0; index < due.size(); index++) {
+				errors.add(null);
+			}
+		} catch (Exception e) {
+			updated.clear();
+			if (due.size() == 1) {
+				updated.add(null);
+				errors.add(e);
+			} else {
+				// Check the results one at a time to find the ones that fail
+				for (Result result : results) {
+					try {
+						updated.add(checkResults(group,
+								Collections.singletonList(result)).get(0));
+						errors.add(null);
+					} catch (Exception resultError) {
+						updated.add(null);
+						errors.add(resultError);
+					}
+				}
+			}
+		}
+		finish(group, due, updated, errors);
+	}
+
+	private static List<Result> checkResults(Group group, List<Result> results)
+			throws ResourceInterfaceException {
+		List<Result> updated = group.check.check(results);
+		if (updated == null || updated.size() != results.size()) {
+			throw new ResourceInterfaceException(
+					"Resource returned the wrong number of results");
+		}
+		return updated;
+	}
+
+	private static void finish(Group group, List<Entry> due,
+			List<Result> updated, List<Exception> errors) {
+		long now = System.currentTimeMillis();
+		List<Entry> finished = new ArrayList<Entry>();
+		synchronized (GROUPS) {
+			for (int index = 0; index < due.size(); index++) {
+				Entry entry = due.get(index);
+				Exception error = errors.get(index);
+				if (error == null) {
+					entry.result = updated.get(index);
+					entry.failures = 0;
+				} else {
+					entry.failures++;
+					entry.error = error;
+				}
+				if ((error != null && entry.failures >= MAX_FAILURES)
+						|| (error == null && isFinished(entry.result))) {
+					group.entries.remove(entry);
+					finished.add(entry);
+				} else {
+					entry.nextPoll = now + entry.interval;
+					entry.interval = Math.min((long) (entry.interval * BACKOFF),
+							entry.maxInterval);
+				}
+			}
+			group.inFlight = false;
+		}
+
+		// Complete outside of the lock as completion runs the waiting stages
+		for (Entry entry : finished) {
+			if (entry.failures > 0) {
+				entry.future.completeExceptionally(entry.error);
+			} else {
+				entry.future.complete(entry.result);
+			}
+		}
+	}
+
+	/**
+	 * The results that are checked together
+	 */
+	private static class Group {
+		private final BatchCheck check;
+		private final Executor executor;
+		private final List<Entry> entries = new ArrayList<Entry>();
+		private boolean inFlight;
+
+		Group(BatchCheck check, Executor executor) {
+			this.check = check;
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * A result that is being polled
+	 */
+	private static class Entry {
+		private final CompletableFuture<Result> future = new CompletableFuture<Result>();
+		private final long maxInterval;
+		private Result result;
+		private long interval;
+		private long nextPoll;
+		private int failures;
+		private Exception error;
+
+		Entry(Result result, long interval, long maxInterval) {
+			this.result = result;
+			this.interval = interval;
+			this.maxInterval = maxInterval;
+		}
+	}
+}
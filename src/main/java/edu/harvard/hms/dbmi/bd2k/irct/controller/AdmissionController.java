@@ -0,0 +1,391 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.User;
+
+/**
+ * Controls when queued executions are started. Each user and each resource
+ * has a limit on the number of executions that can run at the same time, and
+ * executions over the limit wait in a queue.
+ *
+ * The queue is a weighted fair queue across users. Each user has their own
+ * first in first out queue and a virtual time that advances by the inverse
+ * of their weight each time one of their executions is started. When a slot
+ * frees up the eligible user with the lowest virtual time goes next, so a
+ * user submitting a large batch does not hold up other users. A user that
+ * was idle starts at the current virtual time and so cannot build up credit.
+ *
+ * Executions can be cancelled whether they are queued or running. A queued
+ * execution is removed from the queue, and both are passed to the cancel
+ * callback they were submitted with along with whether they were started. If the executor rejects an execution
+ * its limits are given back and it is passed to the reject callback it was
+ * submitted with.
+ *
+ * The limits are read from java:global/maxRunningPerUser and
+ * java:global/maxRunningPerResource if they are set.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class AdmissionController {
+	private static final int DEFAULT_MAX_RUNNING_PER_USER = 4;
+	private static final int DEFAULT_MAX_RUNNING_PER_RESOURCE = 16;
+	private static final String ANONYMOUS = "";
+
+	private int maxRunningPerUser = DEFAULT_MAX_RUNNING_PER_USER;
+	private int maxRunningPerResource = DEFAULT_MAX_RUNNING_PER_RESOURCE;
+
+	private final Map<String, UserQueue> users = new HashMap<String, UserQueue>();
+	private final Map<String, Integer> runningByResource = new HashMap<String, Integer>();
+	private final Map<Long, Job> jobs = new HashMap<Long, Job>();
+	private final List<Job> rejected = new ArrayList<Job>();
+	private double virtualTime;
+
+	/**
+	 * Loads the limits
+	 */
+	@PostConstruct
+	public void init() {
+		this.maxRunningPerUser = lookup("java:global/maxRunningPerUser",
+				DEFAULT_MAX_RUNNING_PER_USER);
+		this.maxRunningPerResource = lookup(
+				"java:global/maxRunningPerResource",
+				DEFAULT_MAX_RUNNING_PER_RESOURCE);
+	}
+
+	/**
+	 * Queues an execution. It is started on the executor as soon as the user
+	 * and all of the resources it uses are under their limits and it is the
+	 * user's turn.
+	 *
+	 * @param resultId
+	 *            Id of the result of the execution
+	 * @param user
+	 *            User that submitted it
+	 * @param resources
+	 *            Names of the resources it uses
+	 * @param start
+	 *            Starts the execution
+	 * @param cancel
+	 *            Cancels the execution, given whether it was started
+	 * @param reject
+	 *            Fails the execution if the executor rejects it
+	 * @param executor
+	 *            Executor to start it on
+	 */
+	public void submit(Long resultId, User user,
+			Collection<String> resources, Runnable start,
+			Consumer<Boolean> cancel, Consumer<Exception> reject,
+			Executor executor) {
+		synchronized (this) {
+			String userKey = getUserKey(user);
+			UserQueue queue = users.get(userKey);
+			if (queue == null) {
+				queue = new UserQueue();
+				users.put(userKey, queue);
+			}
+			if (queue.waiting.isEmpty() && queue.running == 0) {
+				queue.virtualTime = Math.max(queue.virtualTime, virtualTime);
+			}
+
+			Job job = new Job(resultId, userKey, new ArrayList<String>(
+					resources), start, cancel, reject, executor);
+			queue.waiting.add(job);
+			jobs.put(resultId, job);
+			dispatch();
+		}
+		failRejected();
+	}
+
+	/**
+	 * Releases the limits held by an execution once it has finished and
+	 * starts any executions that were waiting on them
+	 *
+	 * @param resultId
+	 *            Id of the result of the execution
+	 */
+	public void release(Long resultId) {
+		synchronized (this) {
+			Job job = jobs.remove(resultId);
+			if (job == null) {
+				return;
+			}
+			UserQueue queue = users.get(job.userKey);
+			if (job.running) {
+				releaseSlots(queue, job);
+			} else {
+				queue.waiting.remove(job);
+			}
+			dispatch();
+		}
+		failRejected();
+	}
+
+	/**
+	 * Cancels an execution. A queued execution is removed from the queue
+	 * before its cancel callback is run. A running execution keeps its limits
+	 * until it is released.
+	 *
+	 * @param resultId
+	 *            Id of the result of the execution
+	 * @return True if the execution was queued or running
+	 */
+	public boolean cancel(Long resultId) {
+		Job job;
+		boolean started;
+		synchronized (this) {
+			job = jobs.get(resultId);
+			if (job == null) {
+				return false;
+			}
+			started = job.running;
+			if (!started) {
+				jobs.remove(resultId);
+				users.get(job.userKey).waiting.remove(job);
+				dispatch();
+			}
+		}
+		failRejected();
+
+		// Run outside of the lock as cancelling a plan completes its result
+		job.cancel.accept(started);
+		return true;
+	}
+
+	/**
+	 * Returns the number of queued executions that are expected to start
+	 * before the given one, or -1 if it is not queued. Zero means it is next.
+	 * The estimate follows the fair queue order and does not account for
+	 * executions that are held back by resource limits.
+	 *
+	 * @param resultId
+	 *            Id of the result of the execution
+	 * @return Queue position
+	 */
+	public synchronized int getQueuePosition(Long resultId) {
+		Job job = jobs.get(resultId);
+		if (job == null || job.running) {
+			return -1;
+		}
+
+		double key = getStartKey(job);
+		int position = 0;
+		for (UserQueue queue : users.values()) {
+			for (Job waiting : queue.waiting) {
+				if (waiting != job && getStartKey(waiting) < key) {
+					position++;
+				}
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Sets the weight of a user. A user with a weight of two is started twice
+	 * as often as a user with a weight of one when both have executions
+	 * waiting.
+	 *
+	 * @param user
+	 *            User
+	 * @param weight
+	 *            Weight greater than zero
+	 */
+	public synchronized void setWeight(User user, double weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Weight must be greater than 0");
+		}
+		String userKey = getUserKey(user);
+		if (!users.containsKey(userKey)) {
+			users.put(userKey, new UserQueue());
+		}
+		users.get(userKey).weight = weight;
+	}
+
+	private void dispatch() {
+		while (true) {
+			UserQueue next = null;
+			for (UserQueue queue : users.values()) {
+				if (queue.running < maxRunningPerUser
+						&& hasStartableJob(queue)
+						&& (next == null || queue.virtualTime < next.virtualTime)) {
+					next = queue;
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			start(next);
+		}
+
+		// Drop users that have nothing queued or running
+		Iterator<UserQueue> iterator = users.values().iterator();
+		while (iterator.hasNext()) {
+			UserQueue queue = iterator.next();
+			if (queue.waiting.isEmpty() && queue.running == 0
+					&& queue.weight == 1.0) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private boolean hasStartableJob(UserQueue queue) {
+		for (Job job : queue.waiting) {
+			if (isUnderResourceLimits(job)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void start(UserQueue queue) {
+		Iterator<Job> iterator = queue.waiting.iterator();
+		while (iterator.hasNext()) {
+			Job job = iterator.next();
+			if (!isUnderResourceLimits(job)) {
+				continue;
+			}
+			iterator.remove();
+			job.running = true;
+			queue.running++;
+			for (String resource : job.resources) {
+				Integer running = runningByResource.get(resource);
+				runningByResource.put(resource, running == null ? 1
+						: running + 1);
+			}
+			virtualTime = Math.max(virtualTime, queue.virtualTime);
+			queue.virtualTime += 1.0 / queue.weight;
+
+			try {
+				job.executor.execute(job.start);
+			} catch (RuntimeException e) {
+				// The executor rejected it so give back its slots, it is
+				// failed once the lock is released
+				jobs.remove(job.resultId);
+				releaseSlots(queue, job);
+				job.rejection = e;
+				rejected.add(job);
+			}
+			return;
+		}
+	}
+
+	private void releaseSlots(UserQueue queue, Job job) {
+		job.running = false;
+		queue.running--;
+		for (String resource : job.resources) {
+			runningByResource.put(resource,
+					runningByResource.get(resource) - 1);
+		}
+	}
+
+	/**
+	 * Runs the reject callbacks of the executions the executor rejected.
+	 * They are run outside of the lock as failing a plan completes its
+	 * result.
+	 */
+	private void failRejected() {
+		List<Job> failed;
+		synchronized (this) {
+			if (rejected.isEmpty()) {
+				return;
+			}
+			failed = new ArrayList<Job>(rejected);
+			rejected.clear();
+		}
+		for (Job job : failed) {
+			job.reject.accept(job.rejection);
+		}
+	}
+
+	private boolean isUnderResourceLimits(Job job) {
+		for (String resource : job.resources) {
+			Integer running = runningByResource.get(resource);
+			if (running != null && running >= maxRunningPerResource) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double getStartKey(Job job) {
+		UserQueue queue = users.get(job.userKey);
+		return queue.virtualTime + queue.waiting.indexOf(job) / queue.weight;
+	}
+
+	private String getUserKey(User user) {
+		if (user == null || user.getUserId() == null) {
+			return ANONYMOUS;
+		}
+		return user.getUserId();
+	}
+
+	private int lookup(String name, int defaultValue) {
+		try {
+			Object value = new InitialContext().lookup(name);
+			if (value != null) {
+				return Integer.parseInt(value.toString());
+			}
+		} catch (NamingException | NumberFormatException e) {
+			// Use the default
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * The executions of a user that are waiting and running
+	 */
+	private static class UserQueue {
+		private final List<Job> waiting = new LinkedList<Job>();
+		private int running;
+		private double weight = 1.0;
+		private double virtualTime;
+	}
+
+	/**
+	 * A queued or running execution
+	 */
+	private static class Job {
+		private final Long resultId;
+		private final String userKey;
+		private final List<String> resources;
+		private final Runnable start;
+		private final Consumer<Boolean> cancel;
+		private final Consumer<Exception> reject;
+		private final Executor executor;
+		private boolean running;
+		private Exception rejection;
+
+		Job(Long resultId, String userKey, List<String> resources,
+				Runnable start, Consumer<Boolean> cancel,
+				Consumer<Exception> reject, Executor executor) {
+			this.resultId = resultId;
+			this.userKey = userKey;
+			this.resources = resources;
+			this.start = start;
+			this.cancel = cancel;
+			this.reject = reject;
+			this.executor = executor;
+		}
+	}
+}
@@ -3,8 +3,12 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.controller;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.Callable;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 
 import javax.annotation.Resource;
@@ -18,9 +22,11 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.UserTransaction;
 
+import edu.harvard.hms.dbmi.bd2k.irct.action.Action;
 import edu.harvard.hms.dbmi.bd2k.irct.action.JoinAction;
 import edu.harvard.hms.dbmi.bd2k.irct.action.ProcessAction;
 import edu.harvard.hms.dbmi.bd2k.irct.action.QueryAction;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
 import edu.harvard.hms.dbmi.bd2k.irct.executable.ExecutableLeafNode;
 import edu.harvard.hms.dbmi.bd2k.irct.executable.ExecutionPlan;
 import edu.harvard.hms.dbmi.bd2k.irct.model.join.Join;
@@ -37,6 +43,12 @@ import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
  * executions of different processes, queries, and joins by creating an
  * execution plan and running it.
  * 
+ * Queries whose results are in the query cache are not run again; the
+ * cached result is returned instead.
+ * 
+ * Executions that run for longer than java:global/executionTimeout
+ * milliseconds, if it is set, are cancelled.
+ * 
  * 
  * @author Jeremy R. Easton-Marks
  *
@@ -56,6 +68,12 @@ public class ExecutionController {
 	@Inject
 	private ResourceController rc;
 	
+	@Inject
+	private AdmissionController admissionController;
+	
+	@Inject
+	private QueryCacheController queryCacheController;
+	
 	/**
 	 * Runs the process
 	 * 
@@ -74,7 +92,7 @@ public class ExecutionController {
 			newResult.setUser(secureSession.getUser());
 		}
 
-		newResult.setResultStatus(ResultStatus.RUNNING);
+		newResult.setResultStatus(ResultStatus.QUEUED);
 		entityManager.persist(newResult);
 
 		ProcessAction pa = new ProcessAction();
@@ -84,9 +102,13 @@ public class ExecutionController {
 		eln.setAction(pa);
 
 		ExecutionPlan exp = new ExecutionPlan();
-		exp.setup(eln, secureSession);
+		exp.setup(eln, secureSession, AsyncExecution.getExecutor(mes));
 
-		runExecutionPlan(exp, newResult);
+		List<String> resources = new ArrayList<String>();
+		for (edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource resource : process.getResources()) {
+			resources.add(resource.getName());
+		}
+		admitExecutionPlan(exp, newResult, resources);
 
 		return newResult.getId();
 	}
@@ -103,29 +125,35 @@ public class ExecutionController {
 	 */
 	public Long runQuery(Query query, SecureSession secureSession)
 			throws PersistableException {
+		edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource resource = (edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource) query.getResources().toArray()[0];
+		if(!resource.isSetup()) {
+			resource = rc.getResource(resource.getName());
+		}
+		
+		Result cachedResult = queryCacheController.getCachedResult(query, resource, secureSession == null ? null : secureSession.getUser());
+		if(cachedResult != null) {
+			return cachedResult.getId();
+		}
+		
 		Result newResult = new Result();
 		newResult.setJobType("EXECUTION");
 		if(secureSession != null) {
 			newResult.setUser(secureSession.getUser());
 		}
 
-		newResult.setResultStatus(ResultStatus.RUNNING);
+		newResult.setResultStatus(ResultStatus.QUEUED);
 		entityManager.persist(newResult);
 		
 		QueryAction qa = new QueryAction();
-		edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource resource = (edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource) query.getResources().toArray()[0];
-		if(!resource.isSetup()) {
-			resource = rc.getResource(resource.getName());
-		}
 		qa.setup(resource, query);
 
 		ExecutableLeafNode eln = new ExecutableLeafNode();
 		eln.setAction(qa);
 
 		ExecutionPlan exp = new ExecutionPlan();
-		exp.setup(eln, secureSession);
+		exp.setup(eln, secureSession, AsyncExecution.getExecutor(mes));
 
-		runExecutionPlan(exp, newResult);
+		admitExecutionPlan(exp, newResult, Collections.singletonList(resource.getName()));
 
 		return newResult.getId();
 	}
@@ -148,7 +176,7 @@ public class ExecutionController {
 			newResult.setUser(secureSession.getUser());
 		}
 		
-		newResult.setResultStatus(ResultStatus.RUNNING);
+		newResult.setResultStatus(ResultStatus.QUEUED);
 		entityManager.persist(newResult);
 		
 		JoinAction ja = new JoinAction();
@@ -158,14 +186,51 @@ public class ExecutionController {
 		eln.setAction(ja);
 
 		ExecutionPlan exp = new ExecutionPlan();
-		exp.setup(eln, secureSession);
-		runExecutionPlan(exp, newResult);
+		exp.setup(eln, secureSession, AsyncExecution.getExecutor(mes));
+		admitExecutionPlan(exp, newResult, Collections.<String>emptyList());
 
 		return newResult.getId();
 	}
 
 	/**
-	 * Runs an execution plan
+	 * Queues an execution plan with the admission controller. It is run once
+	 * the user and the resources it uses are under their limits.
+	 * 
+	 * @param executionPlan
+	 *            Execution Plan
+	 * @param result
+	 *            Result
+	 * @param resources
+	 *            Names of the resources the plan uses
+	 */
+	private void admitExecutionPlan(final ExecutionPlan executionPlan,
+			final Result result, List<String> resources) {
+		executionPlan.setTimeout(getExecutionTimeout());
+		admissionController.submit(result.getId(), result.getUser(),
+				resources, () -> startExecutionPlan(executionPlan, result),
+				started -> cancelExecutionPlan(executionPlan, result, started),
+				error -> completeResult(result, null, error), mes);
+	}
+
+	private void startExecutionPlan(ExecutionPlan executionPlan, Result result) {
+		if (executionPlan.isCancelled()) {
+			completeResult(result, null, new CancellationException(
+					"Execution was cancelled"));
+			return;
+		}
+		try {
+			result.setResultStatus(ResultStatus.RUNNING);
+			mergeResult(result);
+			runExecutionPlan(executionPlan, result);
+		} catch (Exception e) {
+			completeResult(result, null, e);
+		}
+	}
+
+	/**
+	 * Runs an execution plan. The plan runs on the managed executor and the
+	 * result is updated once it completes, without holding a thread while it
+	 * runs.
 	 * 
 	 * @param executionPlan
 	 *            Execution Plan
@@ -177,52 +242,145 @@ public class ExecutionController {
 	@Asynchronous
 	public void runExecutionPlan(final ExecutionPlan executionPlan,
 			final Result result) throws PersistableException {
+		result.setStartTime(new Date());
+		executionPlan.runAsync().whenCompleteAsync((finalResult, error) -> {
+			completeResult(result, finalResult, error);
+			cacheResult(executionPlan, result);
+		}, mes);
+	}
+
+	/**
+	 * Adds the result of a query to the query cache once it is available
+	 * 
+	 * @param executionPlan
+	 *            Execution Plan
+	 * @param result
+	 *            Result
+	 */
+	private void cacheResult(ExecutionPlan executionPlan, Result result) {
+		if ((result.getResultStatus() != ResultStatus.AVAILABLE)
+				|| !(executionPlan.getExecutable() instanceof ExecutableLeafNode)) {
+			return;
+		}
+		Action action = ((ExecutableLeafNode) executionPlan.getExecutable())
+				.getAction();
+		if (action instanceof QueryAction) {
+			try {
+				queryCacheController.cacheResult(
+						((QueryAction) action).getQuery(),
+						((QueryAction) action).getResource(), result);
+			} catch (Exception e) {
+				log.info(e.getMessage());
+			}
+		}
+	}
 
-		Callable<Result> runPlan = new Callable<Result>() {
-			@Override
-			public Result call() {
-				try {
-					result.setStartTime(new Date());
-					executionPlan.run();
-					
-					Result finalResult = executionPlan.getResults();
-					
-					if ((finalResult.getResultStatus() == ResultStatus.COMPLETE) && (finalResult.getData() instanceof Persistable)) {
-						result.setDataType(finalResult.getDataType());
-						result.setData(finalResult.getData());
-						result.setResultSetLocation(finalResult.getResultSetLocation());
-						result.setMessage(finalResult.getMessage());
-						
-						if(((Persistable) result.getData()).isPersisted()) {
-							((Persistable) result.getData()).merge();
-						} else {
-							((Persistable) result.getData()).persist();
-						}
-						result.setResultStatus(ResultStatus.AVAILABLE);
-					} else {
-						result.setResultStatus(ResultStatus.ERROR);
-						result.setMessage(finalResult.getMessage());
-					}
-					
-					result.setEndTime(new Date());
-					UserTransaction userTransaction = lookup();
-					userTransaction.begin();
-					entityManager.merge(result);
-					userTransaction.commit();
-				} catch (PersistableException e) {
-					result.setResultStatus(ResultStatus.ERROR);
-					result.setMessage(e.getMessage());
-				} catch (Exception e) {
-					log.info(e.getMessage());
-					result.setResultStatus(ResultStatus.ERROR);
-				} finally {
-					
+	/**
+	 * Cancels an execution plan. Only a plan that was never started has its
+	 * result completed here. A started plan completes its result once it has
+	 * stopped, or once it is picked up if it has not run yet, and a plan that
+	 * has already finished keeps its result.
+	 * 
+	 * @param executionPlan
+	 *            Execution Plan
+	 * @param result
+	 *            Result
+	 * @param started
+	 *            Whether the plan was started by the admission controller
+	 */
+	private void cancelExecutionPlan(ExecutionPlan executionPlan,
+			final Result result, boolean started) {
+		executionPlan.cancel();
+		if (!started) {
+			mes.execute(() -> completeResult(result, null,
+					new CancellationException("Execution was cancelled")));
+		}
+	}
+
+	/**
+	 * Completes the result of an execution. A result that has already been
+	 * completed is left as it is.
+	 */
+	private void completeResult(Result result, Result finalResult,
+			Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
+		}
+		synchronized (result) {
+			if (isComplete(result)) {
+				admissionController.release(result.getId());
+				return;
+			}
+			updateResult(result, finalResult, error);
+		}
+	}
+
+	private boolean isComplete(Result result) {
+		return (result.getResultStatus() == ResultStatus.AVAILABLE)
+				|| (result.getResultStatus() == ResultStatus.ERROR)
+				|| (result.getResultStatus() == ResultStatus.CANCELLED);
+	}
+
+	private void updateResult(Result result, Result finalResult,
+			Throwable error) {
+		try {
+			if (error instanceof CancellationException) {
+				result.setResultStatus(ResultStatus.CANCELLED);
+				result.setMessage(error.getMessage());
+			} else if ((error == null)
+					&& (finalResult.getResultStatus() == ResultStatus.COMPLETE)
+					&& (finalResult.getData() instanceof Persistable)) {
+				result.setDataType(finalResult.getDataType());
+				result.setData(finalResult.getData());
+				result.setResultSetLocation(finalResult.getResultSetLocation());
+				result.setMessage(finalResult.getMessage());
+				
+				if(((Persistable) result.getData()).isPersisted()) {
+					((Persistable) result.getData()).merge();
+				} else {
+					((Persistable) result.getData()).persist();
+				}
+				result.setResultStatus(ResultStatus.AVAILABLE);
+			} else {
+				result.setResultStatus(ResultStatus.ERROR);
+				if (error != null) {
+					result.setMessage(AsyncExecution.unwrap(error).getMessage());
+				} else {
+					result.setMessage(finalResult.getMessage());
 				}
-				return result;
 			}
-		};
+			
+			result.setEndTime(new Date());
+			mergeResult(result);
+		} catch (PersistableException e) {
+			result.setResultStatus(ResultStatus.ERROR);
+			result.setMessage(e.getMessage());
+		} catch (Exception e) {
+			log.info(e.getMessage());
+			result.setResultStatus(ResultStatus.ERROR);
+		} finally {
+			admissionController.release(result.getId());
+		}
+	}
 
-		mes.submit(runPlan);
+	private void mergeResult(Result result) throws Exception {
+		UserTransaction userTransaction = lookup();
+		userTransaction.begin();
+		entityManager.merge(result);
+		userTransaction.commit();
+	}
+
+	private long getExecutionTimeout() {
+		try {
+			Object timeout = new InitialContext()
+					.lookup("java:global/executionTimeout");
+			if (timeout != null) {
+				return Long.parseLong(timeout.toString());
+			}
+		} catch (NamingException | NumberFormatException e) {
+			// No timeout
+		}
+		return 0;
 	}
 
 	private UserTransaction lookup() throws NamingException {
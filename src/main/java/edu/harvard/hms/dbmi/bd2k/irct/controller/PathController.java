@@ -4,19 +4,40 @@
 package edu.harvard.hms.dbmi.bd2k.irct.controller;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import javax.ejb.Stateless;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
 
 import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindInformationInterface;
+import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindListener;
+import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindResults;
 import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.OntologyRelationship;
 import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.PathCache;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.PathIndex;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.PathPrefetcher;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.PathResourceImplementationInterface;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.ResourceGuard;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.ResourceGuard.CircuitState;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.event.IRCTEventListener;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
 
 /**
@@ -28,6 +49,7 @@ import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
  */
 @Stateless
 public class PathController {
+	private static final long DEFAULT_FIND_TIMEOUT = 30000;
 
 	@Inject
 	private ResourceController rc;
@@ -38,8 +60,14 @@ public class PathController {
 	@Inject
 	private IRCTEventListener irctEventListener;
 
+	@javax.annotation.Resource(name = "DefaultManagedExecutorService")
+	private ManagedExecutorService mes;
+
 	/**
-	 * Traverses the path in the resource with the given relationship
+	 * Traverses the path in the resource with the given relationship. The
+	 * entities are cached so traversing the same path again does not call the
+	 * resource. If the resource enables prefetching, the entities returned are
+	 * traversed in the background so expanding them is fast as well.
 	 * 
 	 * @param resource
 	 *            Resource
@@ -56,12 +84,155 @@ public class PathController {
 	public List<Entity> traversePath(Resource resource, Entity resourcePath,
 			OntologyRelationship relationship, SecureSession session)
 			throws ResourceInterfaceException {
-		if (resource.getImplementingInterface() instanceof PathResourceImplementationInterface) {
-			return ((PathResourceImplementationInterface) resource
-					.getImplementingInterface()).getPathRelationship(
-					resourcePath, relationship, session);
+		List<Entity> entities = traverse(resource, resourcePath, relationship,
+				session);
+		prefetch(resource, resourcePath, relationship, session, entities);
+		return entities;
+	}
+
+	/**
+	 * Traverses many paths in the resource with the given relationship. The
+	 * paths that are not cached are traversed in a single call if the
+	 * resource supports batches, otherwise they are traversed at the same
+	 * time.
+	 * 
+	 * @param resource
+	 *            Resource
+	 * @param resourcePaths
+	 *            Paths in the resource
+	 * @param relationship
+	 *            Relationship type
+	 * @param session
+	 *            Session to run it in
+	 * @return Paths by the pui of the path they are related to
+	 * @throws ResourceInterfaceException
+	 *             A resource interface exception occurred
+	 */
+	public Map<String, List<Entity>> traversePaths(Resource resource,
+			List<Entity> resourcePaths, OntologyRelationship relationship,
+			SecureSession session) throws ResourceInterfaceException {
+		if (!(resource.getImplementingInterface() instanceof PathResourceImplementationInterface)) {
+			return null;
+		}
+		final PathResourceImplementationInterface pathInterface = (PathResourceImplementationInterface) resource
+				.getImplementingInterface();
+		PathCache pathCache = PathCache.get(resource);
+
+		Map<String, List<Entity>> traversed = new LinkedHashMap<String, List<Entity>>();
+		final List<Entity> uncached = new ArrayList<Entity>();
+		for (Entity resourcePath : resourcePaths) {
+			if (traversed.containsKey(resourcePath.getPui())) {
+				continue;
+			}
+			List<Entity> entities = pathCache.getIfPresent(resourcePath,
+					relationship, session);
+			traversed.put(resourcePath.getPui(), entities);
+			if (entities == null) {
+				uncached.add(resourcePath);
+			}
+		}
+		if (uncached.isEmpty()) {
+			return traversed;
+		}
+
+		Map<String, List<Entity>> batch = null;
+		if (uncached.size() > 1) {
+			batch = ResourceGuard.get(resource).call(
+					() -> pathInterface.getPathRelationships(uncached,
+							relationship, session));
+		}
+
+		Executor executor = AsyncExecution.getExecutor(mes);
+		Map<String, CompletableFuture<List<Entity>>> traversals = new LinkedHashMap<String, CompletableFuture<List<Entity>>>();
+		for (final Entity resourcePath : uncached) {
+			if (batch != null && batch.containsKey(resourcePath.getPui())) {
+				List<Entity> entities = batch.get(resourcePath.getPui());
+				pathCache.put(resourcePath, relationship, session, entities);
+				traversed.put(resourcePath.getPui(), entities);
+			} else {
+				traversals.put(resourcePath.getPui(), AsyncExecution.supply(
+						() -> traverse(resource, resourcePath, relationship,
+								session), executor));
+			}
+		}
+		traversed.putAll(AsyncExecution.await(AsyncExecution
+				.fanIn(traversals)));
+
+		for (Entity resourcePath : resourcePaths) {
+			prefetch(resource, resourcePath, relationship, session,
+					traversed.get(resourcePath.getPui()));
+		}
+		return traversed;
+	}
+
+	private List<Entity> traverse(Resource resource, Entity resourcePath,
+			OntologyRelationship relationship, SecureSession session)
+			throws ResourceInterfaceException {
+		if (!(resource.getImplementingInterface() instanceof PathResourceImplementationInterface)) {
+			return null;
+		}
+		final PathResourceImplementationInterface pathInterface = (PathResourceImplementationInterface) resource
+				.getImplementingInterface();
+		return PathCache.get(resource).get(
+				resourcePath,
+				relationship,
+				session,
+				() -> ResourceGuard.get(resource).call(
+						() -> pathInterface.getPathRelationship(resourcePath,
+								relationship, session)));
+	}
+
+	/**
+	 * Records the traversal of the path and warms the cache with the
+	 * traversals of the entities it returned. Nothing is prefetched if
+	 * prefetching or the path cache of the resource is disabled, or while the
+	 * circuit of the resource is not closed.
+	 */
+	private void prefetch(final Resource resource, Entity resourcePath,
+			final OntologyRelationship relationship,
+			final SecureSession session, List<Entity> entities) {
+		PathPrefetcher prefetcher = PathPrefetcher.get(resource);
+		final PathCache pathCache = PathCache.get(resource);
+		if (!prefetcher.isEnabled() || !pathCache.isEnabled()) {
+			return;
+		}
+		prefetcher.recordAccess(resourcePath);
+		if (entities == null
+				|| ResourceGuard.get(resource).getState() != CircuitState.CLOSED) {
+			return;
+		}
+
+		prefetcher.prefetch(
+				entities,
+				entity -> pathCache.getIfPresent(entity, relationship, session) != null,
+				entity -> {
+					try {
+						traverse(resource, entity, relationship, session);
+					} catch (ResourceInterfaceException e) {
+						log.fine("Unable to prefetch path " + entity.getPui()
+								+ " on resource " + resource.getName()
+								+ " message: " + e.getMessage());
+					}
+				});
+	}
+
+	/**
+	 * Removes the cached traversals of a path in the resource so they are
+	 * loaded again. If the path is null all of the cached traversals of the
+	 * resource are removed, and its search index is rebuilt.
+	 * 
+	 * @param resource
+	 *            Resource
+	 * @param resourcePath
+	 *            Path in the resource
+	 */
+	public void invalidatePath(Resource resource, Entity resourcePath) {
+		if (resourcePath == null) {
+			PathCache.get(resource).invalidate();
+			PathIndex.get(resource).invalidate();
+		} else {
+			PathCache.get(resource).invalidate(resourcePath);
 		}
-		return null;
 	}
 
 	/**
@@ -83,48 +254,309 @@ public class PathController {
 	public List<Entity> searchForTerm(Resource resource, Entity resourcePath,
 			FindInformationInterface findInformation, SecureSession session)
 			throws ResourceInterfaceException {
-		List<Entity> matches = new ArrayList<Entity>();
+		return search(resource, resourcePath, findInformation, session)
+				.getMatches();
+	}
+
+	/**
+	 * Searches a resource for a given searchTerm. If the resource is null it
+	 * searches all resources for that term at the same time regardless of
+	 * path.
+	 * 
+	 * Each resource has until its find timeout to answer. The matches of the
+	 * resources that answered in time are returned, and the resources that
+	 * timed out or failed are listed in the results.
+	 * 
+	 * @param resource
+	 *            Resource
+	 * @param resourcePath
+	 *            Resource Path
+	 * @param findInformation
+	 *            Information for the find operation
+	 * @param session
+	 *            Session to run it in
+	 * @return Find results
+	 */
+	public FindResults search(Resource resource, Entity resourcePath,
+			FindInformationInterface findInformation, SecureSession session) {
+		List<ResourceSearch> searches = startSearches(resource, resourcePath,
+				findInformation, session);
+
+		FindResults results = new FindResults();
+		for (ResourceSearch search : searches) {
+			try {
+				List<Entity> entities = search.future.join();
+				if (entities != null) {
+					results.getMatches().addAll(entities);
+				}
+			} catch (CompletionException e) {
+				addFailure(results, search.resource, e);
+			}
+		}
+		logTimeouts(results);
+
+		irctEventListener.afterFind(results.getMatches(), findInformation,
+				session);
+
+		return results;
+	}
+
+	/**
+	 * Searches a resource for a given searchTerm without waiting for the
+	 * matches. If the resource is null it searches all resources for that term
+	 * at the same time regardless of path.
+	 * 
+	 * The matches of each resource are passed to the listener in batches as
+	 * soon as the resource answers, so the first matches are available in the
+	 * time of the fastest resource. The find event listeners are run on the
+	 * matches of each resource before they are passed on. The listener is
+	 * called by one thread at a time.
+	 * 
+	 * @param resource
+	 *            Resource
+	 * @param resourcePath
+	 *            Resource Path
+	 * @param findInformation
+	 *            Information for the find operation
+	 * @param session
+	 *            Session to run it in
+	 * @param listener
+	 *            Listener that receives the matches
+	 * @param batchSize
+	 *            Largest number of matches passed to the listener at once, 0
+	 *            for no limit
+	 * @return Future find results, completed once every resource has
+	 *         answered, timed out or failed
+	 */
+	public CompletableFuture<FindResults> search(Resource resource,
+			Entity resourcePath,
+			final FindInformationInterface findInformation,
+			final SecureSession session, final FindListener listener,
+			final int batchSize) {
+		final List<ResourceSearch> searches = startSearches(resource,
+				resourcePath, findInformation, session);
+		final Executor executor = AsyncExecution.getExecutor(mes);
+		final Object listenerLock = new Object();
+
+		final List<CompletableFuture<List<Entity>>> answers = new ArrayList<CompletableFuture<List<Entity>>>();
+		for (final ResourceSearch search : searches) {
+			answers.add(search.future.handleAsync((entities, error) -> {
+				String resourceName = search.resource.getName();
+				if (error != null) {
+					synchronized (listenerLock) {
+						if (isTimeout(error)) {
+							listener.resourceTimedOut(resourceName);
+						} else {
+							listener.resourceFailed(resourceName);
+						}
+					}
+					return null;
+				}
+
+				List<Entity> matches = new ArrayList<Entity>();
+				if (entities != null) {
+					matches.addAll(entities);
+				}
+				irctEventListener.afterFind(matches, findInformation, session);
+				int batch = batchSize > 0 ? batchSize : Math.max(
+						matches.size(), 1);
+				synchronized (listenerLock) {
+					for (int index = 0; index < matches.size(); index += batch) {
+						listener.matchesFound(resourceName,
+								new ArrayList<Entity>(matches.subList(index,
+										Math.min(index + batch,
+												matches.size()))));
+					}
+				}
+				return matches;
+			}, executor));
+		}
+
+		return CompletableFuture.allOf(
+				answers.toArray(new CompletableFuture<?>[answers.size()]))
+				.thenApply(ignored -> {
+					FindResults results = new FindResults();
+					for (int index = 0; index < searches.size(); index++) {
+						ResourceSearch search = searches.get(index);
+						if (search.future.isCompletedExceptionally()) {
+							try {
+								search.future.join();
+							} catch (CompletionException e) {
+								addFailure(results, search.resource, e);
+							}
+						} else {
+							results.getMatches().addAll(
+									answers.get(index).join());
+						}
+					}
+					logTimeouts(results);
+					synchronized (listenerLock) {
+						listener.searchFinished(results);
+					}
+					return results;
+				});
+	}
+
+	/**
+	 * Runs the before find event listeners and starts searching each of the
+	 * resources
+	 */
+	private List<ResourceSearch> startSearches(Resource resource,
+			Entity resourcePath, FindInformationInterface findInformation,
+			SecureSession session) {
 		List<FindInformationInterface> findInformationList = new ArrayList<FindInformationInterface>();
 		findInformationList.add(findInformation);
-		
-		irctEventListener.beforeFind(resource, resourcePath, findInformationList, session);
-		
+
+		irctEventListener.beforeFind(resource, resourcePath,
+				findInformationList, session);
+
+		Executor executor = AsyncExecution.getExecutor(mes);
+		List<ResourceSearch> searches = new ArrayList<ResourceSearch>();
 		for (FindInformationInterface findInformationEntry : findInformationList) {
 			if (resource == null) {
 				for (Resource searchResource : rc.getPathResources()) {
-					matches.addAll(find(
-							(PathResourceImplementationInterface) searchResource
-									.getImplementingInterface(), null,
-							findInformationEntry, session));
-				}
-				
-			} else {
-				if (resource.getImplementingInterface() instanceof PathResourceImplementationInterface) {
-					matches.addAll(find(
-							(PathResourceImplementationInterface) resource
-									.getImplementingInterface(),
-							resourcePath, findInformationEntry, session));
+					searches.add(new ResourceSearch(searchResource, find(
+							searchResource, null, findInformationEntry,
+							session, executor)));
 				}
+			} else if (resource.getImplementingInterface() instanceof PathResourceImplementationInterface) {
+				searches.add(new ResourceSearch(resource, find(resource,
+						resourcePath, findInformationEntry, session, executor)));
 			}
 		}
-		
-		irctEventListener.afterFind(matches, findInformation, session);
-		
-		
-		return matches;
+		return searches;
 	}
 
-	private List<Entity> find(PathResourceImplementationInterface resource,
-			Entity resourcePath, FindInformationInterface findInformation,
-			SecureSession session) {
-		List<Entity> entities = new ArrayList<Entity>();
+	/**
+	 * Starts a search of the resource that fails with a timeout exception if
+	 * the resource has not answered by its deadline, and interrupts the call
+	 * into the resource when it does. The search is answered
+	 * by the local search index of the resource if it has one.
+	 */
+	private CompletableFuture<List<Entity>> find(Resource resource,
+			final Entity resourcePath,
+			final FindInformationInterface findInformation,
+			final SecureSession session, Executor executor) {
+		List<Entity> indexed = PathIndex.get(resource).find(resource,
+				resourcePath, findInformation, session);
+		if (indexed != null) {
+			return CompletableFuture.completedFuture(indexed);
+		}
+
+		final PathResourceImplementationInterface pathInterface = (PathResourceImplementationInterface) resource
+				.getImplementingInterface();
+		final CompletableFuture<List<Entity>> search = new CompletableFuture<List<Entity>>();
+		final FutureTask<List<Entity>> task = new FutureTask<List<Entity>>(
+				() -> ResourceGuard.get(resource).call(
+						() -> pathInterface.find(resourcePath,
+								findInformation, session))) {
+			@Override
+			protected void done() {
+				complete(search, this);
+			}
+		};
 		try {
-			entities = resource.find(resourcePath, findInformation, session);
-		} catch (Exception e) {
+			executor.execute(task);
+		} catch (RuntimeException e) {
+			search.completeExceptionally(e);
+			return search;
+		}
+
+		long timeout = getFindTimeout(resource);
+		if (timeout > 0) {
+			final ScheduledFuture<?> deadline = AsyncExecution.getTimer()
+					.schedule(
+							() -> search.completeExceptionally(new TimeoutException(
+									"Search timed out on resource "
+											+ resource.getName())), timeout,
+							TimeUnit.MILLISECONDS);
+			search.whenComplete((entities, error) -> deadline.cancel(false));
+		}
+		// Interrupt the search once it has timed out or been cancelled, so it
+		// gives up its thread and its slot in the resource guard
+		search.whenComplete((entities, error) -> {
+			if (error != null) {
+				task.cancel(true);
+			}
+		});
+		return search;
+	}
+
+	/**
+	 * Completes the search with the outcome of the task that ran it
+	 */
+	private void complete(CompletableFuture<List<Entity>> search,
+			FutureTask<List<Entity>> task) {
+		if (task.isCancelled()) {
+			search.cancel(false);
+			return;
+		}
+		try {
+			search.complete(task.get());
+		} catch (ExecutionException e) {
+			search.completeExceptionally(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			search.completeExceptionally(e);
+		}
+	}
+
+	private void addFailure(FindResults results, Resource resource,
+			Throwable error) {
+		if (isTimeout(error)) {
+			addResource(results.getTimedOutResources(), resource);
+		} else {
 			log.info("Unable to search for term on resource " + resource
-					+ " message: " + e.getMessage());
+					+ " message: " + AsyncExecution.unwrap(error).getMessage());
+			addResource(results.getFailedResources(), resource);
+		}
+	}
+
+	private boolean isTimeout(Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) {
+			return error.getCause() instanceof TimeoutException;
+		}
+		return error instanceof TimeoutException;
+	}
+
+	private void logTimeouts(FindResults results) {
+		if (!results.getTimedOutResources().isEmpty()) {
+			log.info("Search timed out on resources "
+					+ results.getTimedOutResources());
 		}
-		return entities;
+	}
+
+	private void addResource(List<String> resourceNames, Resource resource) {
+		if (!resourceNames.contains(resource.getName())) {
+			resourceNames.add(resource.getName());
+		}
+	}
+
+	/**
+	 * Returns the time a resource has to answer a search. This is the
+	 * findTimeout parameter of the resource, then java:global/findTimeout,
+	 * and defaults to 30 seconds. A timeout of 0 waits for the resource.
+	 */
+	private long getFindTimeout(Resource resource) {
+		if (resource.getParameters() != null
+				&& resource.getParameters().containsKey("findTimeout")) {
+			try {
+				return Long.parseLong(resource.getParameters()
+						.get("findTimeout").trim());
+			} catch (NumberFormatException e) {
+				// Use the global setting
+			}
+		}
+		try {
+			Object timeout = new InitialContext()
+					.lookup("java:global/findTimeout");
+			if (timeout != null) {
+				return Long.parseLong(timeout.toString());
+			}
+		} catch (NamingException | NumberFormatException e) {
+			// Use the default
+		}
+		return DEFAULT_FIND_TIMEOUT;
 	}
 
 	/**
@@ -145,4 +577,18 @@ public class PathController {
 
 		return returns;
 	}
+
+	/**
+	 * A search of a resource that is running
+	 */
+	private static class ResourceSearch {
+		private final Resource resource;
+		private final CompletableFuture<List<Entity>> future;
+
+		ResourceSearch(Resource resource,
+				CompletableFuture<List<Entity>> future) {
+			this.resource = resource;
+			this.future = future;
+		}
+	}
 }
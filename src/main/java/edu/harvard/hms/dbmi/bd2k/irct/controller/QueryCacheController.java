@@ -0,0 +1,180 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.controller;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.ejb.Schedule;
+import javax.ejb.Stateless;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.Query;
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.QueryCacheEntry;
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.QueryFingerprint;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.User;
+
+/**
+ * A stateless controller that caches the results of queries. A query is
+ * identified by the SHA-256 hash of its canonical representation, so the same
+ * query asked again returns the saved result instead of being run on the
+ * resource.
+ *
+ * A cached result is only returned to users that can see the result, that is
+ * the user that ran the query or anyone if it has no user. Entries expire
+ * after their time to live, which is read from the queryCacheTimeToLive
+ * parameter of the resource, then java:global/queryCacheTimeToLive, and
+ * defaults to five minutes. A time to live of 0 disables the cache for the
+ * resource. All of the entries of a resource are invalidated when the
+ * resource is added or removed, and can be invalidated through the resource
+ * controller when its data changes. Queries with object values have no key
+ * and are not cached.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+@Stateless
+public class QueryCacheController {
+	private static final long DEFAULT_TIME_TO_LIVE = 300000;
+
+	@PersistenceContext(unitName = "primary")
+	EntityManager entityManager;
+
+	/**
+	 * Returns the most recent cached result of the query that the user can
+	 * see
+	 *
+	 * @param query
+	 *            Query
+	 * @param resource
+	 *            Resource the query is run on
+	 * @param user
+	 *            User
+	 * @return Result, or null if there is none
+	 */
+	public Result getCachedResult(Query query, Resource resource, User user) {
+		String cacheKey = QueryFingerprint.getKey(query);
+		if (cacheKey == null || getTimeToLive(resource) <= 0) {
+			return null;
+		}
+
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<QueryCacheEntry> criteria = cb
+				.createQuery(QueryCacheEntry.class);
+		Root<QueryCacheEntry> entryRoot = criteria.from(QueryCacheEntry.class);
+		Join<QueryCacheEntry, Result> resultJoin = entryRoot.join("result");
+		criteria.select(entryRoot);
+
+		Predicate visible = cb.isNull(resultJoin.get("user"));
+		if (user != null) {
+			visible = cb.or(visible, cb.equal(resultJoin.get("user"), user));
+		}
+		criteria.where(cb.and(
+				cb.equal(entryRoot.get("cacheKey"), cacheKey),
+				cb.equal(entryRoot.get("resourceName"), resource.getName()),
+				cb.greaterThan(entryRoot.<Date> get("expires"), new Date()),
+				cb.equal(resultJoin.get("resultStatus"),
+						ResultStatus.AVAILABLE), visible));
+		criteria.orderBy(cb.desc(entryRoot.get("created")));
+
+		List<QueryCacheEntry> entries = entityManager.createQuery(criteria)
+				.setMaxResults(1).getResultList();
+		if (entries.isEmpty()) {
+			return null;
+		}
+		return entries.get(0).getResult();
+	}
+
+	/**
+	 * Caches the result of a query
+	 *
+	 * @param query
+	 *            Query
+	 * @param resource
+	 *            Resource the query was run on
+	 * @param result
+	 *            Result of the query
+	 */
+	public void cacheResult(Query query, Resource resource, Result result) {
+		String cacheKey = QueryFingerprint.getKey(query);
+		long timeToLive = getTimeToLive(resource);
+		if (cacheKey == null || timeToLive <= 0 || result.getId() == null) {
+			return;
+		}
+		Date now = new Date();
+
+		QueryCacheEntry entry = new QueryCacheEntry();
+		entry.setCacheKey(cacheKey);
+		entry.setResourceName(resource.getName());
+		entry.setResult(entityManager.getReference(Result.class,
+				result.getId()));
+		entry.setCreated(now);
+		entry.setExpires(new Date(now.getTime() + timeToLive));
+		entityManager.persist(entry);
+	}
+
+	/**
+	 * Removes all of the cached results of a resource
+	 *
+	 * @param resourceName
+	 *            Resource name
+	 * @return Number of entries removed
+	 */
+	public int invalidate(String resourceName) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaDelete<QueryCacheEntry> delete = cb
+				.createCriteriaDelete(QueryCacheEntry.class);
+		Root<QueryCacheEntry> entryRoot = delete.from(QueryCacheEntry.class);
+		delete.where(cb.equal(entryRoot.get("resourceName"), resourceName));
+		return entityManager.createQuery(delete).executeUpdate();
+	}
+
+	/**
+	 * Removes the entries that have expired
+	 */
+	@Schedule(hour = "*", minute = "*/15", persistent = false)
+	public void removeExpired() {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaDelete<QueryCacheEntry> delete = cb
+				.createCriteriaDelete(QueryCacheEntry.class);
+		Root<QueryCacheEntry> entryRoot = delete.from(QueryCacheEntry.class);
+		delete.where(cb.lessThanOrEqualTo(entryRoot.<Date> get("expires"),
+				new Date()));
+		entityManager.createQuery(delete).executeUpdate();
+	}
+
+	private long getTimeToLive(Resource resource) {
+		if (resource.getParameters() != null
+				&& resource.getParameters().containsKey("queryCacheTimeToLive")) {
+			try {
+				return Long.parseLong(resource.getParameters()
+						.get("queryCacheTimeToLive").trim());
+			} catch (NumberFormatException e) {
+				// Use the global setting
+			}
+		}
+		try {
+			Object timeToLive = new InitialContext()
+					.lookup("java:global/queryCacheTimeToLive");
+			if (timeToLive != null) {
+				return Long.parseLong(timeToLive.toString());
+			}
+		} catch (NamingException | NumberFormatException e) {
+			// Use the default
+		}
+		return DEFAULT_TIME_TO_LIVE;
+	}
+}
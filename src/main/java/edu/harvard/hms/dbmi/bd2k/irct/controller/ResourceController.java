@@ -30,6 +30,9 @@ public class ResourceController {
 	@Inject
 	private IRCTApplication irctApp;
 
+	@Inject
+	private QueryCacheController queryCacheController;
+
 	private List<String> categories;
 
 	@PostConstruct
@@ -125,6 +128,18 @@ public class ResourceController {
 		return pathResources;
 	}
 	
+	/**
+	 * Removes the cached query results of a resource, for use when the data
+	 * of the resource has changed
+	 * 
+	 * @param resource
+	 *            Resource name
+	 * @return Number of cached results removed
+	 */
+	public int invalidateQueryCache(String resource) {
+		return queryCacheController.invalidate(resource);
+	}
+
 	/**
 	 * Get all categories for searching
 	 * 
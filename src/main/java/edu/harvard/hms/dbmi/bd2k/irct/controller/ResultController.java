@@ -46,6 +46,9 @@ public class ResultController {
 	
 	@Inject
 	private IRCTEventListener irctEventListener;
+	
+	@Inject
+	private AdmissionController admissionController;
 
 	/**
 	 * Returns a list of results that are available for the user to download
@@ -89,6 +92,46 @@ public class ResultController {
 		return results.get(0).getResultStatus();
 	}
 
+	/**
+	 * Returns the number of executions that will be started before the result
+	 * if it is queued and the user has access to it
+	 * 
+	 * @param user
+	 *            User
+	 * @param resultId
+	 *            Result Id
+	 * @return Queue position, or null if the result is not queued
+	 */
+	public Integer getQueuePosition(User user, Long resultId) {
+		List<Result> results = getResults(user, resultId);
+		if ((results == null) || (results.isEmpty())) {
+			return null;
+		}
+		int position = admissionController.getQueuePosition(resultId);
+		if (position < 0) {
+			return null;
+		}
+		return position;
+	}
+
+	/**
+	 * Cancels the execution of a result if it is queued or running and the
+	 * user has access to it
+	 * 
+	 * @param user
+	 *            User
+	 * @param resultId
+	 *            Result Id
+	 * @return True if the execution was cancelled
+	 */
+	public boolean cancelResult(User user, Long resultId) {
+		List<Result> results = getResults(user, resultId);
+		if ((results == null) || (results.isEmpty())) {
+			return false;
+		}
+		return admissionController.cancel(resultId);
+	}
+
 	/**
 	 * Returns a list of available formats that the user can use to download a
 	 * given result if they have access to it
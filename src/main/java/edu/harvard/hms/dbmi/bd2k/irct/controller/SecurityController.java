@@ -22,6 +22,7 @@ import javax.persistence.criteria.Root;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.Token;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.User;
+import edu.harvard.hms.dbmi.bd2k.irct.security.SecurityUtility;
 
 /**
  * A stateless controller for managing security.
@@ -88,15 +89,10 @@ public class SecurityController {
 
 		Date startTime = new Date();
 
-		Calendar endTime = GregorianCalendar.getInstance();
-		endTime.setTime(new Date());
-		endTime.add(Calendar.MINUTE, -1 * Integer.parseInt(keyTimeOut));
-		endTime.getTime();
-
 		cq.where(cb.and(
 				cb.equal(secureSession.get("accessKey"), key),
 				cb.between(secureSession.<Date> get("created"),
-						endTime.getTime(), startTime)));
+						getExpiredBefore(), startTime)));
 
 		cq.select(secureSession);
 		List<SecureSession> ssl = entityManager.createQuery(cq).getResultList();
@@ -110,6 +106,34 @@ public class SecurityController {
 		return ss;
 	}
 
+	/**
+	 * Removes a key so it can no longer be used. This is called by the
+	 * logout of the REST interface. If the user has no other valid key their
+	 * delegated tokens are removed as well, otherwise they are kept for the
+	 * sessions that are still in use.
+	 * 
+	 * @param key
+	 *            Key to remove
+	 */
+	public void removeKey(String key) {
+		if (key == null) {
+			return;
+		}
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<SecureSession> cq = cb.createQuery(SecureSession.class);
+		Root<SecureSession> secureSession = cq.from(SecureSession.class);
+		cq.where(cb.equal(secureSession.get("accessKey"), key));
+		cq.select(secureSession);
+
+		for (SecureSession ss : entityManager.createQuery(cq).getResultList()) {
+			ss.setAccessKey(null);
+			if (!hasValidKey(ss.getUser())) {
+				SecurityUtility.removeDelegatedTokens(ss);
+			}
+			log.info("Removed key for " + ss.getUser().getName());
+		}
+	}
+
 	/**
 	 * Get a given user from a database from a user id
 	 * 
@@ -132,6 +156,35 @@ public class SecurityController {
 		return users.get(0);
 	}
 
+	/**
+	 * Returns true if the user has a key that has not timed out
+	 */
+	private boolean hasValidKey(User user) {
+		if (user == null) {
+			return false;
+		}
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = cb.createQuery(Long.class);
+		Root<SecureSession> secureSession = cq.from(SecureSession.class);
+		cq.where(cb.and(
+				cb.equal(secureSession.get("user"), user),
+				cb.isNotNull(secureSession.get("accessKey")),
+				cb.between(secureSession.<Date> get("created"),
+						getExpiredBefore(), new Date())));
+		cq.select(cb.count(secureSession));
+		return entityManager.createQuery(cq).getSingleResult() > 0;
+	}
+
+	/**
+	 * Returns the time keys created before have timed out
+	 */
+	private Date getExpiredBefore() {
+		Calendar endTime = GregorianCalendar.getInstance();
+		endTime.setTime(new Date());
+		endTime.add(Calendar.MINUTE, -1 * Integer.parseInt(keyTimeOut));
+		return endTime.getTime();
+	}
+
 	private final String generateString() {
 		SecureRandom random = new SecureRandom();
 		return new BigInteger(130, random).toString(32);
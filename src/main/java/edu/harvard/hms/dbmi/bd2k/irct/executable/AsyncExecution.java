@@ -0,0 +1,524 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.executable;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.enterprise.concurrent.ContextService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * Helper methods for running executables and actions asynchronously. Work is
+ * run on the container managed executor when one is available, and on a
+ * single shared bounded executor otherwise, so running a plan never creates
+ * a thread pool of its own. Polls and deadlines are scheduled on the
+ * container managed scheduled executor in the same way.
+ * 
+ * The pools that are created here, because there is no container or because
+ * the work can not share the managed executor, get their threads from the
+ * container managed thread factory when there is one. They are stopped by
+ * shutdown, which is called when the application is destroyed.
+ * 
+ * Virtual threads can be enabled on Java 21 and later by setting
+ * java:global/virtualThreads or the irct.virtualThreads system property to
+ * true. Each task then runs on its own virtual thread with the container
+ * context of the thread that submitted it, so blocking on remote resources,
+ * JNDI lookups, and the database no longer ties up a pooled thread. On older
+ * Java versions the setting is ignored.
+ * 
+ * Work that reads rows from another executable as they are produced runs on
+ * a separate pipe executor. It waits for rows while it runs, and having its
+ * own threads means it can never take the thread its producer needs. The
+ * pipe executor is the managed executor bound to java:global/pipeExecutor if
+ * there is one. Otherwise it is a pool with a bounded queue whose threads
+ * come from the container managed thread factory, or plain threads when
+ * there is no container. Nodes are pipelined by default when
+ * java:global/pipelining or the irct.pipelining system property is set to
+ * true.
+ * 
+ * The helpers fan work out to an executor and fan the results back in as a
+ * map by key, unwrapping the completion exceptions back into resource
+ * interface exceptions.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class AsyncExecution {
+	private static final String MANAGED_EXECUTOR = "java:comp/DefaultManagedExecutorService";
+	private static final String MANAGED_SCHEDULED_EXECUTOR = "java:comp/DefaultManagedScheduledExecutorService";
+	private static final String MANAGED_THREAD_FACTORY = "java:comp/DefaultManagedThreadFactory";
+	private static final String CONTEXT_SERVICE = "java:comp/DefaultContextService";
+	private static final String VIRTUAL_THREADS = "java:global/virtualThreads";
+	private static final String VIRTUAL_THREADS_PROPERTY = "irct.virtualThreads";
+	private static final String PIPE_EXECUTOR = "java:global/pipeExecutor";
+	private static final String PIPELINING = "java:global/pipelining";
+	private static final String PIPELINING_PROPERTY = "irct.pipelining";
+	private static final int THREADS = Math.max(8, 4 * Runtime.getRuntime()
+			.availableProcessors());
+	private static final int PIPE_QUEUE = 16 * THREADS;
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+	private static final AtomicInteger PIPE_THREAD_COUNT = new AtomicInteger();
+	private static final AtomicInteger TIMER_THREAD_COUNT = new AtomicInteger();
+
+	private static final Logger LOGGER = Logger.getLogger(AsyncExecution.class
+			.getName());
+
+	private static volatile Executor defaultExecutor;
+	private static volatile Executor virtualExecutor;
+	private static volatile boolean virtualChecked;
+	private static ExecutorService virtualPool;
+	private static ExecutorService sharedExecutor;
+	private static volatile Executor pipeExecutor;
+	private static ExecutorService pipePool;
+	private static volatile ScheduledExecutorService timer;
+	private static ScheduledExecutorService privateTimer;
+	private static volatile Boolean pipelining;
+
+	/**
+	 * A unit of work that returns a value and can throw a resource interface
+	 * exception
+	 *
+	 * @param <T>
+	 *            Type of value
+	 */
+	public interface Task<T> {
+		/**
+		 * Runs the task
+		 * 
+		 * @return Value
+		 * @throws ResourceInterfaceException
+		 *             An error occurred
+		 */
+		T call() throws ResourceInterfaceException;
+	}
+
+	/**
+	 * Returns the executor that asynchronous work runs on by default. This is
+	 * the virtual thread executor if it is enabled, the container managed
+	 * executor if it can be looked up, and a shared bounded executor
+	 * otherwise.
+	 * 
+	 * @return Executor
+	 */
+	public static Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			synchronized (AsyncExecution.class) {
+				if (defaultExecutor == null) {
+					defaultExecutor = getExecutor(lookupManagedExecutor());
+				}
+			}
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Returns the executor to run work on in place of the given managed
+	 * executor. This is the virtual thread executor if it is enabled and the
+	 * managed executor otherwise.
+	 * 
+	 * @param managedExecutor
+	 *            Managed executor
+	 * @return Executor
+	 */
+	public static Executor getExecutor(Executor managedExecutor) {
+		Executor executor = getVirtualExecutor();
+		if (executor != null) {
+			return executor;
+		}
+		return managedExecutor;
+	}
+
+	/**
+	 * Returns true if work is run on virtual threads
+	 * 
+	 * @return Virtual threads
+	 */
+	public static boolean isVirtualThreads() {
+		return getVirtualExecutor() != null;
+	}
+
+	/**
+	 * Returns true if nodes read the results of their children through row
+	 * channels by default
+	 * 
+	 * @return Pipelining
+	 */
+	public static boolean isPipelining() {
+		if (pipelining == null) {
+			pipelining = isEnabled(PIPELINING_PROPERTY, PIPELINING);
+		}
+		return pipelining;
+	}
+
+	/**
+	 * Returns the shared bounded executor that is used outside of the
+	 * container
+	 * 
+	 * @return Executor
+	 */
+	public static synchronized ExecutorService getSharedExecutor() {
+		if (sharedExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS,
+					THREADS, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), getThreadFactory(
+							"irct-execution-", THREAD_COUNT));
+			executor.allowCoreThreadTimeOut(true);
+			sharedExecutor = executor;
+		}
+		return sharedExecutor;
+	}
+
+	/**
+	 * Returns the executor that work reading from row channels runs on. This
+	 * is the virtual thread executor if it is enabled, the managed executor
+	 * bound to java:global/pipeExecutor if there is one, and otherwise a pool
+	 * of managed threads with a bounded queue. Readers are only started once
+	 * their producers have opened their channels, so a reader that is queued
+	 * behind the others only holds up its own producer and every running
+	 * reader has a running producer. A reader that does not fit in the queue
+	 * is rejected, which fails its node and releases its producers.
+	 * 
+	 * @return Executor
+	 */
+	public static Executor getPipeExecutor() {
+		Executor executor = getVirtualExecutor();
+		if (executor != null) {
+			return executor;
+		}
+		if (pipeExecutor == null) {
+			synchronized (AsyncExecution.class) {
+				if (pipeExecutor == null) {
+					pipeExecutor = lookupPipeExecutor();
+				}
+			}
+		}
+		return pipeExecutor;
+	}
+
+	/**
+	 * Returns the shared timer used to schedule polls and deadlines. This is
+	 * the container managed scheduled executor if it can be looked up, and a
+	 * single thread scheduled executor otherwise. Tasks run on the timer must
+	 * be short and hand any real work to an executor.
+	 * 
+	 * @return Timer
+	 */
+	public static ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			synchronized (AsyncExecution.class) {
+				if (timer == null) {
+					timer = lookupManagedTimer();
+				}
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * Stops the pools that were created here. Tasks that are running are
+	 * allowed to finish, and scheduled tasks that have not started are
+	 * dropped. The container managed executors are left to the container.
+	 */
+	public static synchronized void shutdown() {
+		if (privateTimer != null) {
+			privateTimer.shutdownNow();
+			privateTimer = null;
+		}
+		if (sharedExecutor != null) {
+			sharedExecutor.shutdown();
+			sharedExecutor = null;
+		}
+		if (pipePool != null) {
+			pipePool.shutdown();
+			pipePool = null;
+		}
+		if (virtualPool != null) {
+			virtualPool.shutdown();
+			virtualPool = null;
+		}
+		timer = null;
+		defaultExecutor = null;
+		pipeExecutor = null;
+		virtualExecutor = null;
+		virtualChecked = false;
+		pipelining = null;
+	}
+
+	/**
+	 * Runs a task on the executor
+	 * 
+	 * @param task
+	 *            Task
+	 * @param executor
+	 *            Executor
+	 * @return Future value of the task
+	 */
+	public static <T> CompletableFuture<T> supply(final Task<T> task,
+			Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return task.call();
+			} catch (ResourceInterfaceException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Sets up and runs each of the executables at the same time
+	 * 
+	 * @param executables
+	 *            Executables by key
+	 * @param session
+	 *            Session to run them in
+	 * @param executor
+	 *            Executor
+	 * @return Future results by key
+	 */
+	public static Map<String, CompletableFuture<Result>> fanOut(
+			Map<String, Executable> executables, SecureSession session,
+			Executor executor) {
+		Map<String, CompletableFuture<Result>> futures = new LinkedHashMap<String, CompletableFuture<Result>>();
+		for (Map.Entry<String, Executable> entry : executables.entrySet()) {
+			entry.getValue().setup(session);
+			futures.put(entry.getKey(), entry.getValue().runAsync(executor));
+		}
+		return futures;
+	}
+
+	/**
+	 * Returns a future that completes with all of the values by key once all
+	 * of the futures have completed. If any of the futures fail the returned
+	 * future fails with the same exception.
+	 * 
+	 * @param futures
+	 *            Futures by key
+	 * @return Future values by key
+	 */
+	public static <T> CompletableFuture<Map<String, T>> fanIn(
+			final Map<String, CompletableFuture<T>> futures) {
+		return CompletableFuture.allOf(
+				futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(ignored -> {
+					Map<String, T> values = new LinkedHashMap<String, T>();
+					for (Map.Entry<String, CompletableFuture<T>> entry : futures
+							.entrySet()) {
+						values.put(entry.getKey(), entry.getValue().join());
+					}
+					return values;
+				});
+	}
+
+	/**
+	 * Waits for the future and returns its value
+	 * 
+	 * @param future
+	 *            Future
+	 * @return Value
+	 * @throws ResourceInterfaceException
+	 *             The future failed or the wait was interrupted
+	 */
+	public static <T> T await(CompletableFuture<T> future)
+			throws ResourceInterfaceException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResourceInterfaceException("Interrupted while waiting", e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Returns the resource interface exception that caused a future to fail
+	 * 
+	 * @param throwable
+	 *            Exception the future failed with
+	 * @return Resource interface exception
+	 */
+	public static ResourceInterfaceException unwrap(Throwable throwable) {
+		Throwable cause = throwable;
+		while (((cause instanceof CompletionException) || (cause instanceof ExecutionException))
+				&& (cause.getCause() != null)) {
+			cause = cause.getCause();
+		}
+		if (cause instanceof ResourceInterfaceException) {
+			return (ResourceInterfaceException) cause;
+		}
+		if (cause instanceof Exception) {
+			return new ResourceInterfaceException((Exception) cause);
+		}
+		return new ResourceInterfaceException(String.valueOf(cause));
+	}
+
+	private static Executor getVirtualExecutor() {
+		if (!virtualChecked) {
+			synchronized (AsyncExecution.class) {
+				if (!virtualChecked) {
+					if (isVirtualThreadsEnabled()) {
+						virtualExecutor = createVirtualExecutor();
+					}
+					virtualChecked = true;
+				}
+			}
+		}
+		return virtualExecutor;
+	}
+
+	private static boolean isVirtualThreadsEnabled() {
+		return isEnabled(VIRTUAL_THREADS_PROPERTY, VIRTUAL_THREADS);
+	}
+
+	private static boolean isEnabled(String property, String name) {
+		if (Boolean.parseBoolean(System.getProperty(property))) {
+			return true;
+		}
+		try {
+			Object enabled = new InitialContext().lookup(name);
+			return enabled != null && Boolean.parseBoolean(enabled.toString());
+		} catch (NamingException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	private static Executor createVirtualExecutor() {
+		final ExecutorService executor;
+		try {
+			// Looked up by reflection so the code still runs on older Java
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			executor = (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			LOGGER.warning("Virtual threads are not available on Java "
+					+ System.getProperty("java.version")
+					+ ", using the managed executor");
+			return null;
+		}
+		virtualPool = executor;
+		return contextual(executor);
+	}
+
+	/**
+	 * Returns an executor that runs each task with the container context of
+	 * the thread that submitted it, if there is a container
+	 */
+	private static Executor contextual(final ExecutorService executor) {
+		ContextService contextService = null;
+		try {
+			contextService = (ContextService) new InitialContext()
+					.lookup(CONTEXT_SERVICE);
+		} catch (NamingException | RuntimeException e) {
+			// Not running in a container
+		}
+		final ContextService context = contextService;
+		return runnable -> {
+			if (context == null) {
+				executor.execute(runnable);
+			} else {
+				executor.execute(context.createContextualProxy(runnable,
+						Runnable.class));
+			}
+		};
+	}
+
+	private static Executor lookupPipeExecutor() {
+		try {
+			Object executor = new InitialContext().lookup(PIPE_EXECUTOR);
+			if (executor instanceof Executor) {
+				return (Executor) executor;
+			}
+		} catch (NamingException | RuntimeException e) {
+			// No managed pipe executor
+		}
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS,
+				60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+						PIPE_QUEUE), getThreadFactory("irct-pipe-",
+						PIPE_THREAD_COUNT), (runnable, rejectedBy) -> {
+					throw new RejectedExecutionException(
+							"Too many pipelined executions are waiting to run");
+				});
+		pool.allowCoreThreadTimeOut(true);
+		pipePool = pool;
+		return contextual(pool);
+	}
+
+	private static ScheduledExecutorService lookupManagedTimer() {
+		try {
+			Object executor = new InitialContext()
+					.lookup(MANAGED_SCHEDULED_EXECUTOR);
+			if (executor instanceof ScheduledExecutorService) {
+				return (ScheduledExecutorService) executor;
+			}
+		} catch (NamingException | RuntimeException e) {
+			// Not running in a container
+		}
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+				1, getThreadFactory("irct-timer-", TIMER_THREAD_COUNT));
+		executor.setRemoveOnCancelPolicy(true);
+		privateTimer = executor;
+		return executor;
+	}
+
+	/**
+	 * Returns a factory for the threads of the pools created here. The
+	 * threads come from the container managed thread factory if there is
+	 * one, so they run with the context of the application.
+	 */
+	private static ThreadFactory getThreadFactory(final String prefix,
+			final AtomicInteger count) {
+		ThreadFactory managedFactory = null;
+		try {
+			Object factory = new InitialContext().lookup(MANAGED_THREAD_FACTORY);
+			if (factory instanceof ThreadFactory) {
+				managedFactory = (ThreadFactory) factory;
+			}
+		} catch (NamingException | RuntimeException e) {
+			// Not running in a container
+		}
+		final ThreadFactory factory = managedFactory;
+		return runnable -> {
+			Thread thread = factory == null ? new Thread(runnable) : factory
+					.newThread(runnable);
+			thread.setName(prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private static Executor lookupManagedExecutor() {
+		try {
+			Object executor = new InitialContext().lookup(MANAGED_EXECUTOR);
+			if (executor instanceof Executor) {
+				return (Executor) executor;
+			}
+		} catch (NamingException | RuntimeException e) {
+			// Not running in a container
+		}
+		return getSharedExecutor();
+	}
+}
@@ -3,6 +3,9 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.executable;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
@@ -39,4 +42,35 @@ public interface Executable {
 	 * @throws ResourceInterfaceException An error occurred
 	 */
 	Result getResults() throws ResourceInterfaceException;
+
+	/**
+	 * Runs the executable on the executor and returns its result once it has
+	 * completed. The executable must have been setup.
+	 * 
+	 * @param executor Executor to run on
+	 * @return Future result
+	 */
+	default CompletableFuture<Result> runAsync(Executor executor) {
+		return AsyncExecution.supply(() -> {
+			run();
+			return getResults();
+		}, executor);
+	}
+
+	/**
+	 * Cancels the executable if it is running. The executable is terminated
+	 * and its action is asked to stop.
+	 */
+	default void cancel() {
+	}
+
+	/**
+	 * Returns a fingerprint of the executable. Executables with the same
+	 * fingerprint produce the same result when run by the same user.
+	 * 
+	 * @return Fingerprint, or null if the result can not be shared
+	 */
+	default String getFingerprint() {
+		return null;
+	}
 }
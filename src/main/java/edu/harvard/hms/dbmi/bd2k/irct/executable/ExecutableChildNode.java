@@ -3,24 +3,28 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.executable;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import edu.harvard.hms.dbmi.bd2k.irct.action.Action;
 import edu.harvard.hms.dbmi.bd2k.irct.event.IRCTEventListener;
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
-import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.RowChannel;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.util.Utilities;
 
 /**
  * A child node in an execution tree that can be executed. It can have children of its own.
+ * The children are the inputs of the node and their results are passed to the action
+ * before it is run. A child can be shared by several nodes, in which case it is only run
+ * once.
+ * 
+ * A pipelined node reads the rows of its children through row channels while
+ * they are still being produced, for the children whose actions support it.
+ * 
  * 
  * @author Jeremy R. Easton-Marks
  *
@@ -29,72 +33,74 @@ public class ExecutableChildNode implements Executable {
 
 	private SecureSession session;
 	private boolean blocking;
+	private boolean pipelined;
 	private Action action;
 	private Map<String, Executable> children;
-	private Map<String, Result> childrenResults;
-	private ExecutableStatus state;
+	private volatile ExecutableStatus state;
 	
 	private IRCTEventListener irctEventListener;
 
+	/**
+	 * Creates a child node with no children. The node is pipelined if
+	 * pipelining is enabled in AsyncExecution.
+	 */
+	public ExecutableChildNode() {
+		this.children = new LinkedHashMap<String, Executable>();
+		this.state = ExecutableStatus.CREATED;
+		this.pipelined = AsyncExecution.isPipelining();
+	}
+
 	@Override
 	public void setup(SecureSession secureSession) {
 		this.session = secureSession;
-		this.children = new HashMap<String, Executable>();
-		this.childrenResults = new HashMap<String, Result>();
 		this.state = ExecutableStatus.CREATED;
 		this.irctEventListener = Utilities.getIRCTEventListener();
 	}
 
 	@Override
 	public void run() throws ResourceInterfaceException {
+		new ExecutionScheduler().run(this, this.session);
+	}
+
+	/**
+	 * Starts the action of this node with the results of its children. The
+	 * children must have already been run, except for the piped children which
+	 * are read from their channels.
+	 * 
+	 * @param childrenResults Results of the children by their key
+	 * @param childrenChannels Channels of the piped children by their key
+	 * @param executor Executor to run on
+	 * @return Future results of the action
+	 */
+	CompletableFuture<Result> runActionAsync(
+			Map<String, Result> childrenResults,
+			Map<String, RowChannel> childrenChannels, Executor executor) {
 		irctEventListener.beforeAction(session, action);
 		
-		if (isBlocking() && !children.isEmpty()) {
-			runSequentially();
-		} else if (!children.isEmpty()){
-			runConcurrently();
-		}
 		if(!childrenResults.isEmpty()) {
 			action.updateActionParams(childrenResults);
 		}
+		if(!childrenChannels.isEmpty()) {
+			action.updateActionChannels(childrenChannels);
+		}
 		
 		this.state = ExecutableStatus.RUNNING;
-		this.action.run(this.session);
-		this.state = ExecutableStatus.COMPLETED;
-		
-		irctEventListener.afterAction(session, action);
-	}
-
-	private void runSequentially() throws ResourceInterfaceException {
-		for (String key : this.children.keySet()) {
-			Executable executable = this.children.get(key);
-			executable.setup(this.session);
-			executable.run();
-			childrenResults.put(key, executable.getResults());
-		}
+		return this.action.runAsync(this.session, executor).whenComplete(
+				(result, error) -> {
+					if(this.state != ExecutableStatus.TERMINATED) {
+						this.state = ExecutableStatus.COMPLETED;
+					}
+					irctEventListener.afterAction(session, action);
+				});
 	}
 
-	private void runConcurrently() {
-		List<ExecutorThread> myThreads = new ArrayList<ExecutorThread>();
-		for (String key : this.children.keySet()) {
-			myThreads.add(new ExecutorThread(key, this.children.get(key),
-					this.session));
-		}
-		ExecutorService taskExecutor = Executors.newFixedThreadPool(10);
-		for (ExecutorThread executorThread : myThreads) {
-			taskExecutor.execute(executorThread);
-		}
-		taskExecutor.shutdown();
-		try {
-			taskExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
-		for (ExecutorThread executorThread : myThreads) {
-			childrenResults.put(executorThread.getId(),
-					executorThread.getResult());
+	@Override
+	public void cancel() {
+		if(this.state == ExecutableStatus.COMPLETED) {
+			return;
 		}
+		this.state = ExecutableStatus.TERMINATED;
+		this.action.cancel(this.session);
 	}
 
 	@Override
@@ -125,6 +131,25 @@ public class ExecutableChildNode implements Executable {
 		this.action = action;
 	}
 
+	/**
+	 * Adds a child whose result is passed to the action under the given key
+	 * 
+	 * @param key Key of the child result
+	 * @param executable Child executable
+	 */
+	public void addChild(String key, Executable executable) {
+		this.children.put(key, executable);
+	}
+
+	/**
+	 * Returns the children of this node by their key
+	 * 
+	 * @return Children
+	 */
+	public Map<String, Executable> getChildren() {
+		return children;
+	}
+
 	/**
 	 * Returns if the actions should be run synchronously
 	 * 
@@ -147,61 +172,27 @@ public class ExecutableChildNode implements Executable {
 	public void setBlocking(boolean blocking) {
 		this.blocking = blocking;
 	}
-}
-
-/**
- * A subclass that implements a runnable execution thread for actions
- * 
- * @author Jeremy R. Easton-Marks
- *
- */
-class ExecutorThread implements Runnable {
-
-	private String id;
-	private SecureSession session;
-	private Executable executable;
-	private Result result;
-
-	/**
-	 * Create the executor thread with the executable component
-	 * 
-	 * @param id Id of the executable
-	 * @param executable Executable
-	 * @param session Session to run it in
-	 */
-	public ExecutorThread(String id, Executable executable,
-			SecureSession session) {
-		this.session = session;
-		this.executable = executable;
-	}
-
-	@Override
-	public void run() {
-		executable.setup(this.session);
-		try {
-			executable.run();
-			this.result = executable.getResults();
-		} catch (ResourceInterfaceException e) {
-			result.setResultStatus(ResultStatus.ERROR);
-		}
-	}
 
 	/**
-	 * Returns the results
+	 * Returns if the results of the children are piped to the action while
+	 * they are being produced
 	 * 
-	 * @return Results
+	 * @return Pipelined
 	 */
-	public Result getResult() {
-		return this.result;
+	public boolean isPipelined() {
+		return pipelined;
 	}
 
 	/**
-	 * Sets the results
+	 * Sets if the results of the children are piped to the action while they
+	 * are being produced. Only children that are not shared with another node
+	 * and whose actions can stream their results are piped, the others are
+	 * passed once they have been saved. Pipelining is not used for blocking
+	 * nodes.
 	 * 
-	 * @return Results
+	 * @param pipelined Pipelined
 	 */
-	public String getId() {
-		return this.id;
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
 	}
-
-}
\ No newline at end of file
+}
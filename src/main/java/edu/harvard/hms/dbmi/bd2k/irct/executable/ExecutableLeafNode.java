@@ -3,6 +3,9 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.executable;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import edu.harvard.hms.dbmi.bd2k.irct.action.Action;
 import edu.harvard.hms.dbmi.bd2k.irct.event.IRCTEventListener;
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
@@ -21,7 +24,7 @@ public class ExecutableLeafNode implements Executable {
 
 	private SecureSession session;
 	private Action action;
-	private ExecutableStatus state;
+	private volatile ExecutableStatus state;
 	
 	private IRCTEventListener irctEventListener;
 
@@ -44,6 +47,34 @@ public class ExecutableLeafNode implements Executable {
 		irctEventListener.afterAction(session, action);
 	}
 
+	@Override
+	public CompletableFuture<Result> runAsync(Executor executor) {
+		irctEventListener.beforeAction(session, action);
+		
+		this.state = ExecutableStatus.RUNNING;
+		return this.action.runAsync(this.session, executor).whenComplete(
+				(result, error) -> {
+					if (this.state != ExecutableStatus.TERMINATED) {
+						this.state = ExecutableStatus.COMPLETED;
+					}
+					irctEventListener.afterAction(session, action);
+				});
+	}
+
+	@Override
+	public void cancel() {
+		if (this.state == ExecutableStatus.COMPLETED) {
+			return;
+		}
+		this.state = ExecutableStatus.TERMINATED;
+		this.action.cancel(this.session);
+	}
+
+	@Override
+	public String getFingerprint() {
+		return this.action.getFingerprint();
+	}
+
 	@Override
 	public ExecutableStatus getStatus() {
 		return this.state;
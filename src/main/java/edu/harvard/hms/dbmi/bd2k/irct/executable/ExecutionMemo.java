@@ -0,0 +1,283 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.executable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Data;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Persistable;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+
+/**
+ * Shares the results of identical executables within and across execution
+ * plans. Executables are identified by their fingerprint.
+ *
+ * If an executable with the same fingerprint is already running, the new one
+ * waits on it instead of running again, so concurrent plans that share a sub
+ * query only run it once. Completed results are kept for a time to live and
+ * reused by later executables. Only complete results are kept; a failed
+ * executable is run again the next time.
+ *
+ * The result is saved once by the caller that ran the executable, before
+ * any caller is given it. Result sets are not thread safe, so only that
+ * caller is given the result itself. Every other caller is given a copy of
+ * the result whose data is loaded from the saved location.
+ *
+ * Each caller waits on its own future. Cancelling it only detaches that
+ * caller, and the shared executable is only cancelled once every caller
+ * waiting on it has been cancelled.
+ *
+ * The time to live in milliseconds is read from java:global/memoTimeToLive,
+ * and defaults to one minute. A time to live of 0 only shares executables
+ * that are running at the same time.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class ExecutionMemo {
+	private static final long DEFAULT_TIME_TO_LIVE = 60000;
+	private static final int MAX_ENTRIES = 1000;
+
+	private static final Map<String, Entry> ENTRIES = new LinkedHashMap<String, Entry>();
+	private static volatile Long timeToLive;
+
+	/**
+	 * Returns the future result of the executable with the given fingerprint.
+	 * If it is running or has recently completed that result is returned,
+	 * otherwise it is started.
+	 *
+	 * @param fingerprint
+	 *            Fingerprint of the executable
+	 * @param start
+	 *            Starts the executable
+	 * @param cancel
+	 *            Cancels the executable if it is started by this call
+	 * @return Future result. Cancelling it does not affect other waiters.
+	 */
+	public static CompletableFuture<Result> run(String fingerprint,
+			Supplier<CompletableFuture<Result>> start, Runnable cancel) {
+		long now = System.currentTimeMillis();
+		CompletableFuture<Result> started = new CompletableFuture<Result>();
+		Entry entry;
+		synchronized (ENTRIES) {
+			entry = ENTRIES.get(fingerprint);
+			if (entry == null || isExpired(entry, now)) {
+				entry = new Entry(started, cancel);
+				ENTRIES.remove(fingerprint);
+				ENTRIES.put(fingerprint, entry);
+				evict(now);
+			} else {
+				started = null;
+			}
+			entry.waiters++;
+		}
+
+		if (started != null) {
+			final Entry owner = entry;
+			CompletableFuture<Result> future;
+			try {
+				future = start.get();
+			} catch (RuntimeException e) {
+				future = new CompletableFuture<Result>();
+				future.completeExceptionally(e);
+			}
+			future.whenComplete((result, error) -> complete(fingerprint,
+					owner, result, error));
+		}
+		final Entry waited = entry;
+		final boolean owner = started != null;
+		final CompletableFuture<Result> waiter = entry.future
+				.thenApply(result -> owner ? result : share(result));
+		waiter.whenComplete((result, error) -> {
+			if (waiter.isCancelled()) {
+				detach(fingerprint, waited);
+			}
+		});
+		return waiter;
+	}
+
+	/**
+	 * Forgets the result of the executable with the given fingerprint
+	 *
+	 * @param fingerprint
+	 *            Fingerprint
+	 */
+	public static void invalidate(String fingerprint) {
+		synchronized (ENTRIES) {
+			Entry entry = ENTRIES.get(fingerprint);
+			if (entry != null && entry.future.isDone()) {
+				ENTRIES.remove(fingerprint);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of executables that are running or whose results are
+	 * kept
+	 *
+	 * @return Size
+	 */
+	public static int size() {
+		synchronized (ENTRIES) {
+			return ENTRIES.size();
+		}
+	}
+
+	/**
+	 * Removes a cancelled waiter, and cancels the executable if it was the
+	 * last one waiting on it
+	 */
+	private static void detach(String fingerprint, Entry entry) {
+		synchronized (ENTRIES) {
+			entry.waiters--;
+			if (entry.waiters > 0 || entry.future.isDone()) {
+				return;
+			}
+			if (ENTRIES.get(fingerprint) == entry) {
+				ENTRIES.remove(fingerprint);
+			}
+		}
+		entry.cancel.run();
+	}
+
+	private static void complete(String fingerprint, Entry entry,
+			Result result, Throwable error) {
+		if (error == null && result != null
+				&& result.getResultStatus() == ResultStatus.COMPLETE) {
+			try {
+				save(result);
+			} catch (PersistableException e) {
+				error = e;
+			}
+		}
+		synchronized (ENTRIES) {
+			entry.completedAt = System.currentTimeMillis();
+			if (error != null || result == null
+					|| result.getResultStatus() != ResultStatus.COMPLETE) {
+				if (ENTRIES.get(fingerprint) == entry) {
+					ENTRIES.remove(fingerprint);
+				}
+			}
+		}
+		if (error != null) {
+			entry.future.completeExceptionally(error);
+		} else {
+			entry.future.complete(result);
+		}
+	}
+
+	/**
+	 * Saves the data of a result so it can be loaded by the other callers
+	 */
+	private static void save(Result result) throws PersistableException {
+		if (!(result.getData() instanceof Persistable)) {
+			return;
+		}
+		Persistable data = (Persistable) result.getData();
+		if (data.isPersisted()) {
+			data.merge();
+		} else {
+			data.persist();
+		}
+	}
+
+	/**
+	 * Returns a copy of a completed result with its own instance of the data,
+	 * loaded from the location the result was saved to
+	 */
+	private static Result share(Result result) {
+		if (result == null || result.getResultStatus() != ResultStatus.COMPLETE
+				|| !(result.getData() instanceof Persistable)) {
+			return result;
+		}
+		Result copy = new Result();
+		copy.setId(result.getId());
+		copy.setUser(result.getUser());
+		copy.setJobType(result.getJobType());
+		copy.setStartTime(result.getStartTime());
+		copy.setEndTime(result.getEndTime());
+		copy.setResultStatus(result.getResultStatus());
+		copy.setDataType(result.getDataType());
+		copy.setResourceActionId(result.getResourceActionId());
+		copy.setResultSetLocation(result.getResultSetLocation());
+		copy.setMessage(result.getMessage());
+		try {
+			Data data = result.getData().getClass().newInstance();
+			((Persistable) data).load(result.getResultSetLocation());
+			copy.setData(data);
+		} catch (ReflectiveOperationException | ResultSetException
+				| PersistableException e) {
+			throw new CompletionException(new ResourceInterfaceException(
+					"Unable to load the shared result", e));
+		}
+		return copy;
+	}
+
+	private static boolean isExpired(Entry entry, long now) {
+		return entry.completedAt != 0
+				&& now - entry.completedAt >= getTimeToLive();
+	}
+
+	/**
+	 * Removes expired results, and the oldest completed results while there
+	 * are too many
+	 */
+	private static void evict(long now) {
+		Iterator<Entry> iterator = ENTRIES.values().iterator();
+		int excess = ENTRIES.size() - MAX_ENTRIES;
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (isExpired(entry, now)
+					|| (excess > 0 && entry.completedAt != 0)) {
+				iterator.remove();
+				excess--;
+			}
+		}
+	}
+
+	private static long getTimeToLive() {
+		if (timeToLive == null) {
+			long value = DEFAULT_TIME_TO_LIVE;
+			try {
+				Object configured = new InitialContext()
+						.lookup("java:global/memoTimeToLive");
+				if (configured != null) {
+					value = Long.parseLong(configured.toString());
+				}
+			} catch (NamingException | NumberFormatException e) {
+				// Use the default
+			}
+			timeToLive = value;
+		}
+		return timeToLive;
+	}
+
+	/**
+	 * A running or completed executable and the number of callers waiting on
+	 * it
+	 */
+	private static class Entry {
+		private final CompletableFuture<Result> future;
+		private final Runnable cancel;
+		private int waiters;
+		private long completedAt;
+
+		Entry(CompletableFuture<Result> future, Runnable cancel) {
+			this.future = future;
+			this.cancel = cancel;
+		}
+	}
+}
@@ -4,6 +4,12 @@
 package edu.harvard.hms.dbmi.bd2k.irct.executable;
 
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
 import edu.harvard.hms.dbmi.bd2k.irct.util.Utilities;
@@ -15,14 +21,25 @@ import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
  * An execution plan is run each time a query, join, or process request for
  * execution is made.
  * 
+ * A plan can be cancelled while it is running, or given a timeout after which
+ * it is cancelled. Cancelling a plan terminates the executables that have not
+ * completed, which stop polling their resources and ask them to cancel their
+ * work, and fails the future of the plan with a cancellation exception.
+ * 
  * @author Jeremy R. Easton-Marks
  *
  */
 public class ExecutionPlan {
-	private ExecutableStatus status;
+	private volatile ExecutableStatus status;
 	private Executable executable;
 	private Result results;
 	private SecureSession session;
+	private Executor executor;
+	private long timeout;
+	private volatile boolean cancelled;
+	private ExecutionScheduler scheduler;
+	private CompletableFuture<Result> planFuture;
+	private ScheduledFuture<?> deadline;
 
 	private IRCTEventListener irctEventListener;
 	
@@ -34,31 +51,145 @@ public class ExecutionPlan {
 	 * @param session Secure session to run in            
 	 */
 	public void setup(Executable executable, SecureSession session) {
+		setup(executable, session, AsyncExecution.getDefaultExecutor());
+	}
+
+	/**
+	 * Setup the execution plan with the base executable and the executor its
+	 * executables are run on
+	 * 
+	 * @param executable
+	 *            Base executable
+	 * @param session Secure session to run in
+	 * @param executor Executor to run on
+	 */
+	public void setup(Executable executable, SecureSession session,
+			Executor executor) {
 		this.executable = executable;
+		this.executor = executor;
 		this.session = session;
 		this.status = ExecutableStatus.CREATED;
 		this.results = null;
+		this.cancelled = false;
 		
 		this.irctEventListener = Utilities.getIRCTEventListener();
 	}
 
 	/**
-	 * Run the base execution plan
+	 * Run the base execution plan and wait for it to complete
 	 */
 	public void run() {
-		irctEventListener.beforeExecutionPlan(session, executable);
-		
-		this.status = ExecutableStatus.RUNNING;
 		try {
-			this.executable.setup(session);
-			this.executable.run();
-			this.results = this.executable.getResults();
+			AsyncExecution.await(runAsync());
 		} catch (ResourceInterfaceException e) {
 			e.printStackTrace();
 		}
+	}
+
+	/**
+	 * Start running the base execution plan. The executables of the plan are
+	 * run on the executor as soon as their inputs are available.
+	 * 
+	 * @return Future result of the plan
+	 */
+	public CompletableFuture<Result> runAsync() {
+		final CompletableFuture<Result> future = new CompletableFuture<Result>();
+		synchronized (this) {
+			if (cancelled) {
+				future.completeExceptionally(new CancellationException(
+						"Execution plan was cancelled"));
+				return future;
+			}
+			irctEventListener.beforeExecutionPlan(session, executable);
+
+			this.status = ExecutableStatus.RUNNING;
+			this.planFuture = future;
+			this.scheduler = new ExecutionScheduler(executor);
+			if (timeout > 0) {
+				this.deadline = AsyncExecution.getTimer().schedule(
+						() -> cancel("Execution plan timed out"), timeout,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+
+		scheduler.runAsync(this.executable, session).whenComplete(
+				(result, error) -> {
+					synchronized (this) {
+						if (deadline != null) {
+							deadline.cancel(false);
+						}
+						this.results = result;
+						if (!cancelled) {
+							this.status = ExecutableStatus.COMPLETED;
+						}
+					}
+					irctEventListener.afterExecutionPlan(session, executable);
+					if (error != null) {
+						future.completeExceptionally(error);
+					} else {
+						future.complete(result);
+					}
+				});
+		return future;
+	}
+
+	/**
+	 * Cancels the execution plan. A plan that has not started will not start,
+	 * and a running plan is terminated.
+	 * 
+	 * @return True if the plan was running
+	 */
+	public boolean cancel() {
+		return cancel("Execution plan was cancelled");
+	}
+
+	/**
+	 * Sets the time the plan may run for before it is cancelled
+	 * 
+	 * @param timeout
+	 *            Timeout in milliseconds, 0 for none
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Returns true if the plan has been cancelled
+	 * 
+	 * @return Cancelled
+	 */
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	private boolean cancel(String reason) {
+		ExecutionScheduler running;
+		CompletableFuture<Result> future;
+		synchronized (this) {
+			if (cancelled || status == ExecutableStatus.COMPLETED) {
+				return false;
+			}
+			this.cancelled = true;
+			this.status = ExecutableStatus.TERMINATED;
+			running = this.scheduler;
+			future = this.planFuture;
+		}
+		if (running == null) {
+			return false;
+		}
 
-		this.status = ExecutableStatus.COMPLETED;
-		irctEventListener.afterExecutionPlan(session, executable);
+		future.completeExceptionally(new CancellationException(reason));
+		running.cancel();
+		return true;
+	}
+
+	/**
+	 * Returns the base executable of the execution plan
+	 * 
+	 * @return Base executable
+	 */
+	public Executable getExecutable() {
+		return this.executable;
 	}
 
 	/**
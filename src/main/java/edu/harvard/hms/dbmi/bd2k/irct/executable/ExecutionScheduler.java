@@ -0,0 +1,415 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.executable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import edu.harvard.hms.dbmi.bd2k.irct.action.Action;
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.RowChannel;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * Runs the executables of an execution plan as a directed acyclic graph. The
+ * children of an executable child node are its inputs, and an executable that
+ * is the child of several nodes is only run once. Each executable is started
+ * as soon as all of its inputs have completed, so independent branches of a
+ * plan run at the same time and the run time of a plan is bounded by its
+ * longest path.
+ *
+ * The children of a blocking node are run one after another in the order
+ * they were added.
+ *
+ * The children of a pipelined node that are not shared with another node are
+ * piped to it through row channels when both actions support it. The node is
+ * then started as soon as those children open their channels instead of once
+ * they have completed, reads their rows as they are produced, and completes
+ * once they have completed as well. A node that reads from channels runs on
+ * the pipe executor, so the children writing to it can always be drained.
+ * It is not started before its channels are opened, so it does not hold a
+ * pipe thread while its children are still waiting on remote resources.
+ *
+ * Cancelling the scheduler cancels every executable that has not completed,
+ * which stops the remaining nodes from starting.
+ *
+ * Executables with a fingerprint are run through the execution memo, so an
+ * executable that is identical to one that is running or has recently
+ * completed for the same user shares its result instead of running again.
+ *
+ * Executables are run on the executor the scheduler is created with, which
+ * defaults to the container managed executor. A node is only started once
+ * its inputs are complete, and actions wait on remote results
+ * asynchronously, so executor threads do not wait on other executables or
+ * on remote resources. The exception is a piped child, which waits while
+ * the channel of the node reading it is full. That node has its own thread
+ * on the pipe executor, so the channel is always drained.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class ExecutionScheduler {
+	private static final int PIPE_CAPACITY = 1024;
+
+	private final Executor executor;
+	private Map<Executable, Node> nodes;
+	private SecureSession session;
+
+	/**
+	 * Creates a scheduler that runs on the default executor
+	 */
+	public ExecutionScheduler() {
+		this(AsyncExecution.getDefaultExecutor());
+	}
+
+	/**
+	 * Creates a scheduler that runs on the given executor
+	 *
+	 * @param executor
+	 *            Executor
+	 */
+	public ExecutionScheduler(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs the executable and all of the executables it depends on, and
+	 * returns its result
+	 *
+	 * @param executable
+	 *            Executable to run
+	 * @param session
+	 *            Session to run it in
+	 * @return Result of the executable
+	 * @throws ResourceInterfaceException
+	 *             An executable failed or the plan is not acyclic
+	 */
+	public Result run(Executable executable, SecureSession session)
+			throws ResourceInterfaceException {
+		return AsyncExecution.await(runAsync(executable, session));
+	}
+
+	/**
+	 * Starts running the executable and all of the executables it depends on
+	 *
+	 * @param executable
+	 *            Executable to run
+	 * @param session
+	 *            Session to run it in
+	 * @return Future result of the executable. If any executable fails the
+	 *         future fails with its exception.
+	 */
+	public CompletableFuture<Result> runAsync(Executable executable,
+			SecureSession session) {
+		this.nodes = new IdentityHashMap<Executable, Node>();
+		this.session = session;
+		List<Node> order = new ArrayList<Node>();
+		try {
+			Node root = addNode(executable,
+					new IdentityHashMap<Executable, Boolean>());
+			sort(root, order, new IdentityHashMap<Node, Boolean>());
+		} catch (ResourceInterfaceException e) {
+			CompletableFuture<Result> failed = new CompletableFuture<Result>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		for (Node node : order) {
+			node.executable.setup(session);
+		}
+		for (Node node : order) {
+			pipe(node);
+		}
+
+		// Inputs always precede the nodes that depend on them
+		for (final Node node : order) {
+			List<CompletableFuture<?>> inputs = new ArrayList<CompletableFuture<?>>();
+			for (Node input : node.inputs) {
+				if (!node.piped.contains(input)) {
+					inputs.add(input.future);
+				}
+			}
+			for (RowChannel channel : node.channels.values()) {
+				inputs.add(channel.whenOpened());
+			}
+			if (inputs.isEmpty()) {
+				node.future = start(node);
+			} else {
+				node.future = CompletableFuture.allOf(
+						inputs.toArray(new CompletableFuture<?>[inputs.size()]))
+						.thenCompose(ignored -> start(node));
+			}
+			if (!node.channels.isEmpty()) {
+				closeChannels(node);
+			}
+		}
+
+		return nodes.get(executable).future;
+	}
+
+	/**
+	 * Returns the result of an executable that was run as part of the plan
+	 *
+	 * @param executable
+	 *            Executable
+	 * @return Result, or null if it did not complete
+	 */
+	public Result getResult(Executable executable) {
+		if (nodes == null || !nodes.containsKey(executable)) {
+			return null;
+		}
+		CompletableFuture<Result> future = nodes.get(executable).future;
+		if (future == null || !future.isDone()
+				|| future.isCompletedExceptionally()) {
+			return null;
+		}
+		return future.join();
+	}
+
+	/**
+	 * Cancels the executables of the plan that have not completed. Running
+	 * executables are asked to stop and executables that have not started
+	 * are never started. An executable that is shared through the execution
+	 * memo is only stopped if no other plan is waiting on it.
+	 */
+	public void cancel() {
+		if (nodes == null) {
+			return;
+		}
+		for (Node node : nodes.values()) {
+			CompletableFuture<Result> future = node.future;
+			if (future != null && future.isDone()) {
+				continue;
+			}
+			node.cancelled = true;
+			CompletableFuture<Result> memo = node.memo;
+			if (memo != null) {
+				memo.cancel(false);
+			} else {
+				node.executable.cancel();
+			}
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	private Node addNode(Executable executable,
+			Map<Executable, Boolean> visiting) throws ResourceInterfaceException {
+		Node node = nodes.get(executable);
+		if (node != null) {
+			if (visiting.containsKey(executable)) {
+				throw new ResourceInterfaceException(
+						"Execution plan contains a cycle");
+			}
+			return node;
+		}
+
+		node = new Node(executable);
+		nodes.put(executable, node);
+		if (executable instanceof ExecutableChildNode) {
+			visiting.put(executable, Boolean.TRUE);
+			ExecutableChildNode childNode = (ExecutableChildNode) executable;
+			Node previous = null;
+			for (Executable child : childNode.getChildren().values()) {
+				Node input = addNode(child, visiting);
+				addInput(node, input);
+				if (childNode.isBlocking() && previous != null) {
+					addInput(input, previous);
+				}
+				previous = input;
+			}
+			visiting.remove(executable);
+		}
+		return node;
+	}
+
+	/**
+	 * Opens channels from the children of a pipelined node that can be piped
+	 * to it. A child is only piped if this node is the only one that depends
+	 * on it, otherwise a full channel could hold up another node.
+	 */
+	private void pipe(Node node) {
+		if (!(node.executable instanceof ExecutableChildNode)) {
+			return;
+		}
+		ExecutableChildNode childNode = (ExecutableChildNode) node.executable;
+		if (!childNode.isPipelined() || childNode.isBlocking()) {
+			return;
+		}
+
+		for (Map.Entry<String, Executable> child : childNode.getChildren()
+				.entrySet()) {
+			Node input = nodes.get(child.getValue());
+			Action inputAction = getAction(input.executable);
+			if (inputAction == null || input.dependents != 1
+					|| Collections.frequency(childNode.getChildren().values(),
+							child.getValue()) != 1
+					|| !childNode.getAction().acceptsChannel(child.getKey())) {
+				continue;
+			}
+			RowChannel channel = inputAction.openChannel(PIPE_CAPACITY);
+			if (channel != null) {
+				node.channels.put(child.getKey(), channel);
+				node.piped.add(input);
+				input.piping = true;
+			}
+		}
+	}
+
+	/**
+	 * Makes sure neither end of a channel is left waiting. A channel fails if
+	 * its producer finishes without closing it, and is abandoned once the
+	 * node reading it has finished.
+	 */
+	private void closeChannels(final Node node) {
+		ExecutableChildNode childNode = (ExecutableChildNode) node.executable;
+		for (final Map.Entry<String, RowChannel> channel : node.channels
+				.entrySet()) {
+			nodes.get(childNode.getChildren().get(channel.getKey())).future
+					.whenComplete((result, error) -> channel.getValue().fail(
+							new ResultSetException("No rows were produced for "
+									+ channel.getKey())));
+		}
+		node.future.whenComplete((result, error) -> {
+			for (RowChannel channel : node.channels.values()) {
+				channel.abandon();
+			}
+		});
+	}
+
+	/**
+	 * Returns the memo key of an executable for the user of the session. The
+	 * user id is prefixed with its length so it can not run into the
+	 * fingerprint.
+	 */
+	private String getMemoKey(String fingerprint) {
+		String user = "";
+		if (session != null && session.getUser() != null
+				&& session.getUser().getUserId() != null) {
+			user = session.getUser().getUserId();
+		}
+		return user.length() + ":" + user + ":" + fingerprint;
+	}
+
+	private Action getAction(Executable executable) {
+		if (executable instanceof ExecutableChildNode) {
+			return ((ExecutableChildNode) executable).getAction();
+		}
+		if (executable instanceof ExecutableLeafNode) {
+			return ((ExecutableLeafNode) executable).getAction();
+		}
+		return null;
+	}
+
+	private void sort(Node node, List<Node> order, Map<Node, Boolean> visited) {
+		if (visited.put(node, Boolean.TRUE) != null) {
+			return;
+		}
+		for (Node input : node.inputs) {
+			sort(input, order, visited);
+		}
+		order.add(node);
+	}
+
+	private void addInput(Node node, Node input)
+			throws ResourceInterfaceException {
+		if (node == input || dependsOn(input, node)) {
+			throw new ResourceInterfaceException(
+					"Execution plan contains a cycle");
+		}
+		if (!node.inputs.contains(input)) {
+			node.inputs.add(input);
+			input.dependents++;
+		}
+	}
+
+	private boolean dependsOn(Node node, Node other) {
+		for (Node input : node.inputs) {
+			if (input == other || dependsOn(input, other)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private CompletableFuture<Result> start(final Node node) {
+		try {
+			if (node.executable instanceof ExecutableChildNode) {
+				ExecutableChildNode childNode = (ExecutableChildNode) node.executable;
+				Map<String, Result> childrenResults = new LinkedHashMap<String, Result>();
+				for (Map.Entry<String, Executable> child : childNode
+						.getChildren().entrySet()) {
+					if (!node.channels.containsKey(child.getKey())) {
+						childrenResults.put(child.getKey(),
+								nodes.get(child.getValue()).future.join());
+					}
+				}
+				// Nodes reading channels wait for rows, so they run where
+				// they can not take the threads of their producers
+				final CompletableFuture<Result> future = childNode
+						.runActionAsync(childrenResults, node.channels,
+								node.channels.isEmpty() ? executor
+										: AsyncExecution.getPipeExecutor());
+				if (node.piped.isEmpty()) {
+					return future;
+				}
+
+				// Complete once the piped children have completed as well
+				CompletableFuture<?>[] running = new CompletableFuture<?>[node.piped
+						.size() + 1];
+				running[0] = future;
+				for (int index = 0; index < node.piped.size(); index++) {
+					running[index + 1] = node.piped.get(index).future;
+				}
+				return CompletableFuture.allOf(running).thenApply(
+						ignored -> future.join());
+			}
+			String fingerprint = node.executable.getFingerprint();
+			// A piped executable must run itself to write to its channel
+			if (fingerprint != null && !node.piping) {
+				node.memo = ExecutionMemo.run(getMemoKey(fingerprint),
+						() -> node.executable.runAsync(executor),
+						() -> node.executable.cancel());
+				if (node.cancelled) {
+					node.memo.cancel(false);
+				}
+				return node.memo;
+			}
+			return node.executable.runAsync(executor);
+		} catch (RuntimeException e) {
+			CompletableFuture<Result> failed = new CompletableFuture<Result>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * An executable in the graph along with the executables it depends on and
+	 * the channels of the inputs that are piped to it
+	 */
+	private static class Node {
+		private final Executable executable;
+		private final List<Node> inputs = new ArrayList<Node>();
+		private final List<Node> piped = new ArrayList<Node>();
+		private final Map<String, RowChannel> channels = new LinkedHashMap<String, RowChannel>();
+		private int dependents;
+		private boolean piping;
+		private volatile boolean cancelled;
+		private volatile CompletableFuture<Result> memo;
+		private volatile CompletableFuture<Result> future;
+
+		Node(Executable executable) {
+			this.executable = executable;
+		}
+	}
+}
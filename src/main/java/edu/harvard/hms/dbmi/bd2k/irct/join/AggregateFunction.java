@@ -0,0 +1,51 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+
+/**
+ * The aggregate functions that can be computed locally over a result set
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public enum AggregateFunction {
+	COUNT, SUM, MIN, MAX, AVG;
+
+	/**
+	 * Returns the data type of the aggregate given the data type of the
+	 * column it is computed over
+	 *
+	 * @param dataType
+	 *            Input data type, or null for COUNT(*)
+	 * @return Output data type
+	 */
+	public PrimitiveDataType getDataType(PrimitiveDataType dataType) {
+		switch (this) {
+		case COUNT:
+			return PrimitiveDataType.LONG;
+		case SUM:
+			return isIntegral(dataType) ? PrimitiveDataType.LONG
+					: PrimitiveDataType.DOUBLE;
+		case AVG:
+			return PrimitiveDataType.DOUBLE;
+		default:
+			return dataType;
+		}
+	}
+
+	/**
+	 * Returns true if the data type holds whole numbers
+	 *
+	 * @param dataType
+	 *            Data type
+	 * @return Integral
+	 */
+	static boolean isIntegral(PrimitiveDataType dataType) {
+		return (dataType == PrimitiveDataType.BYTE)
+				|| (dataType == PrimitiveDataType.INTEGER)
+				|| (dataType == PrimitiveDataType.LONG);
+	}
+}
@@ -0,0 +1,188 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.JoinActionSetupException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.Join;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.JoinImplementation;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * Computes aggregates over a stored result set without sending it back to a
+ * resource. The rows can be grouped by one or more columns given as a comma
+ * separated list in GroupBy. The aggregates are given as a comma separated
+ * list in Aggregates, i.e. "COUNT(*), AVG(age)". COUNT, SUM, MIN, MAX, and AVG
+ * are supported. Null values are ignored by all aggregates except COUNT(*).
+ *
+ * The result set is split into partitions that are aggregated in parallel and
+ * the partial aggregates are then merged in pairs.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class AggregateJoin implements JoinImplementation {
+	private static final Pattern AGGREGATE = Pattern
+			.compile("\\s*(\\w+)\\s*\\(\\s*([^)]*?)\\s*\\)\\s*");
+
+	@Override
+	public void setup(Map<String, Object> parameters)
+			throws JoinActionSetupException {
+	}
+
+	@Override
+	public Result run(SecureSession session, Join join, Result result)
+			throws ResultSetException, PersistableException {
+		if (!(result.getData() instanceof FileResultSet)) {
+			throw new ResultSetException(
+					"Aggregate join requires a file result set");
+		}
+		FileResultSet output = (FileResultSet) result.getData();
+		final ResultSet resultSet = (ResultSet) join.getObjectValues().get(
+				"ResultSet");
+
+		// Find the group columns
+		List<Column> outputColumns = new ArrayList<Column>();
+		String groupBy = join.getStringValues().get("GroupBy");
+		List<Integer> groupColumnList = new ArrayList<Integer>();
+		if ((groupBy != null) && !groupBy.trim().isEmpty()) {
+			for (String groupColumn : groupBy.split(",")) {
+				int columnIndex = resultSet.findColumn(groupColumn.trim());
+				groupColumnList.add(columnIndex);
+				outputColumns.add(resultSet.getColumn(columnIndex));
+			}
+		}
+		final int[] groupColumns = new int[groupColumnList.size()];
+		for (int index = 0; index < groupColumns.length; index++) {
+			groupColumns[index] = groupColumnList.get(index);
+		}
+
+		// Parse the aggregates
+		String aggregates = join.getStringValues().get("Aggregates");
+		if ((aggregates == null) || aggregates.trim().isEmpty()) {
+			throw new ResultSetException("No aggregates given");
+		}
+		String[] specifications = aggregates.split(",");
+		final AggregateFunction[] functions = new AggregateFunction[specifications.length];
+		final int[] aggregateColumns = new int[specifications.length];
+		final boolean[] integral = new boolean[specifications.length];
+		for (int index = 0; index < specifications.length; index++) {
+			Matcher matcher = AGGREGATE.matcher(specifications[index]);
+			if (!matcher.matches()) {
+				throw new ResultSetException("Unable to parse aggregate "
+						+ specifications[index]);
+			}
+			try {
+				functions[index] = AggregateFunction.valueOf(matcher.group(1)
+						.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new ResultSetException("Unknown aggregate "
+						+ matcher.group(1), e);
+			}
+
+			PrimitiveDataType dataType = null;
+			if ("*".equals(matcher.group(2))) {
+				if (functions[index] != AggregateFunction.COUNT) {
+					throw new ResultSetException(functions[index]
+							+ " requires a column");
+				}
+				aggregateColumns[index] = -1;
+			} else {
+				aggregateColumns[index] = resultSet.findColumn(matcher
+						.group(2));
+				dataType = resultSet.getColumn(aggregateColumns[index])
+						.getDataType();
+				integral[index] = AggregateFunction.isIntegral(dataType);
+			}
+
+			Column column = new Column();
+			column.setName(functions[index] + "(" + matcher.group(2) + ")");
+			column.setDataType(functions[index].getDataType(dataType));
+			outputColumns.add(column);
+		}
+		JoinUtilities.appendColumns(output,
+				outputColumns.toArray(new Column[outputColumns.size()]));
+
+		// Aggregate each partition
+		final List<long[]> ranges = JoinExecutor.partition(resultSet);
+		List<Callable<GroupedAggregates>> tasks = new ArrayList<Callable<GroupedAggregates>>();
+		for (final long[] range : ranges) {
+			tasks.add(new Callable<GroupedAggregates>() {
+				@Override
+				public GroupedAggregates call() throws Exception {
+					GroupedAggregates partial = new GroupedAggregates(
+							groupColumns, functions, aggregateColumns,
+							integral);
+					ResultSet source = ranges.size() == 1 ? resultSet
+							: JoinExecutor.open(resultSet);
+					try {
+						JoinExecutor.seek(source, range[0]);
+						for (long row = range[0]; row < range[1]; row++) {
+							source.next();
+							partial.add(JoinUtilities.readRow(source));
+						}
+					} finally {
+						if (source != resultSet) {
+							source.close();
+						}
+					}
+					return partial;
+				}
+			});
+		}
+		List<GroupedAggregates> partials = JoinExecutor.invokeAll(tasks);
+
+		// Merge the partial aggregates in pairs
+		while (partials.size() > 1) {
+			List<Callable<GroupedAggregates>> merges = new ArrayList<Callable<GroupedAggregates>>();
+			for (int index = 0; index < partials.size(); index += 2) {
+				final GroupedAggregates first = partials.get(index);
+				final GroupedAggregates second = index + 1 < partials.size() ? partials
+						.get(index + 1) : null;
+				merges.add(new Callable<GroupedAggregates>() {
+					@Override
+					public GroupedAggregates call() throws Exception {
+						if (second != null) {
+							first.merge(second);
+						}
+						return first;
+					}
+				});
+			}
+			partials = JoinExecutor.invokeAll(merges);
+		}
+
+		ResultSetWriter writer = new ResultSetWriter(output);
+		partials.get(0).write(writer);
+		writer.flush();
+
+		result.setResultStatus(ResultStatus.COMPLETE);
+		return result;
+	}
+
+	@Override
+	public Result getResults(Result result) {
+		return result;
+	}
+
+	@Override
+	public ResultDataType getJoinDataType() {
+		return ResultDataType.TABULAR;
+	}
+}
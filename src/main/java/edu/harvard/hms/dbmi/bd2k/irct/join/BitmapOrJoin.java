@@ -0,0 +1,20 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import edu.harvard.hms.dbmi.bd2k.irct.util.bitmap.RoaringBitmap;
+
+/**
+ * Returns the ids that are in either result set
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class BitmapOrJoin extends BitmapSetJoin {
+
+	@Override
+	protected RoaringBitmap combine(RoaringBitmap left, RoaringBitmap right) {
+		return RoaringBitmap.or(left, right);
+	}
+}
@@ -0,0 +1,177 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.JoinActionSetupException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.Join;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.JoinImplementation;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.bd2k.irct.util.bitmap.RoaringBitmap;
+
+/**
+ * A set operation between the integer ids in a column of two result sets. The
+ * ids of each result set are loaded into a compressed bitmap, the bitmaps are
+ * combined, and the resulting ids are written out as a single column result
+ * set. Null ids are ignored, and each id appears only once in the output.
+ *
+ * String ids must already be written as integers in their canonical form,
+ * for example "7" but not "007", "+7" or " 7", so that distinct ids are never
+ * merged and the ids are written out exactly as they were read. Any other
+ * value fails the join.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public abstract class BitmapSetJoin implements JoinImplementation {
+
+	@Override
+	public void setup(Map<String, Object> parameters)
+			throws JoinActionSetupException {
+	}
+
+	@Override
+	public Result run(SecureSession session, Join join, Result result)
+			throws ResultSetException, PersistableException {
+		if (!(result.getData() instanceof FileResultSet)) {
+			throw new ResultSetException(
+					"Bitmap joins require a file result set");
+		}
+		FileResultSet output = (FileResultSet) result.getData();
+
+		ResultSet leftResultSet = (ResultSet) join.getObjectValues().get(
+				"LeftResultSet");
+		String leftColumn = join.getStringValues().get("LeftColumn");
+		ResultSet rightResultSet = (ResultSet) join.getObjectValues().get(
+				"RightResultSet");
+		String rightColumn = join.getStringValues().get("RightColumn");
+
+		int[] ids = combine(toBitmap(leftResultSet, leftColumn),
+				toBitmap(rightResultSet, rightColumn)).toArray();
+
+		// Write the ids out using the type of the left column
+		PrimitiveDataType dataType = leftResultSet.getColumn(
+				leftResultSet.findColumn(leftColumn)).getDataType();
+		if ((dataType != PrimitiveDataType.LONG)
+				&& (dataType != PrimitiveDataType.STRING)) {
+			dataType = PrimitiveDataType.INTEGER;
+		}
+		Column column = new Column();
+		column.setName(leftColumn);
+		column.setDataType(dataType);
+		output.appendColumn(column);
+
+		ResultSetWriter writer = new ResultSetWriter(output);
+		Object[] values = new Object[1];
+		for (int id : ids) {
+			if (dataType == PrimitiveDataType.LONG) {
+				values[0] = Long.valueOf(id);
+			} else if (dataType == PrimitiveDataType.STRING) {
+				values[0] = String.valueOf(id);
+			} else {
+				values[0] = id;
+			}
+			writer.write(values);
+		}
+
+		// The bitmap orders negative ids last so the output is only sorted if
+		// there are none
+		if ((dataType != PrimitiveDataType.STRING)
+				&& ((ids.length == 0) || (ids[ids.length - 1] >= 0))) {
+			output.setMetadata(JoinUtilities.SORTED_BY, leftColumn);
+		}
+		writer.flush();
+
+		result.setResultStatus(ResultStatus.COMPLETE);
+		return result;
+	}
+
+	/**
+	 * Combines the ids of the left and right result sets
+	 *
+	 * @param left
+	 *            Left ids
+	 * @param right
+	 *            Right ids
+	 * @return Combined ids
+	 */
+	protected abstract RoaringBitmap combine(RoaringBitmap left,
+			RoaringBitmap right);
+
+	/**
+	 * Loads the ids in the column of the result set into a bitmap
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param column
+	 *            Id column
+	 * @return Bitmap
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set, or a value is not
+	 *             an integer id in its canonical form
+	 */
+	protected RoaringBitmap toBitmap(ResultSet resultSet, String column)
+			throws ResultSetException {
+		RoaringBitmap bitmap = new RoaringBitmap();
+		int columnIndex = resultSet.findColumn(column);
+		long size = resultSet.getSize();
+
+		resultSet.beforeFirst();
+		for (long row = 0; row < size; row++) {
+			resultSet.next();
+			Object value = resultSet.getObject(columnIndex);
+			if (value != null) {
+				bitmap.add(toId(value));
+			}
+		}
+		return bitmap;
+	}
+
+	private int toId(Object value) throws ResultSetException {
+		try {
+			long id;
+			if (value instanceof Number) {
+				id = ((Number) value).longValue();
+				if (id != ((Number) value).doubleValue()) {
+					throw new ResultSetException(value
+							+ " is not an integer id");
+				}
+			} else {
+				String text = value.toString();
+				id = Long.parseLong(text);
+				if (!Long.toString(id).equals(text)) {
+					throw new ResultSetException("String id \"" + text
+							+ "\" is not written as a canonical integer");
+				}
+			}
+			if ((id < Integer.MIN_VALUE) || (id > Integer.MAX_VALUE)) {
+				throw new ResultSetException(value
+						+ " is outside of the range of integer ids");
+			}
+			return (int) id;
+		} catch (NumberFormatException e) {
+			throw new ResultSetException(value + " is not an integer id", e);
+		}
+	}
+
+	@Override
+	public Result getResults(Result result) {
+		return result;
+	}
+
+	@Override
+	public ResultDataType getJoinDataType() {
+		return ResultDataType.TABULAR;
+	}
+}
@@ -0,0 +1,157 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.IRCTJoin;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.JoinImplementation;
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.DataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Field;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+
+/**
+ * Defines the joins that are provided by the IRCT itself. These are available
+ * without needing to be configured in the database. A join with the same name
+ * in the database takes precedence over the built in definition.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class BuiltInJoins {
+
+	/**
+	 * Returns a list of the built in joins
+	 *
+	 * @return Built in joins
+	 */
+	public static List<IRCTJoin> getJoins() {
+		List<IRCTJoin> joins = new ArrayList<IRCTJoin>();
+
+		joins.add(createJoin(
+				"sortMergeJoin",
+				"Sort-Merge Join",
+				"Joins two result sets on a key column in a single pass. Inputs that are not sorted on the key are sorted first.",
+				new SortMergeJoin(),
+				leftRightFields(),
+				field("Join Type", "JoinType", "INNER or LEFT join", false,
+						Arrays.asList("INNER", "LEFT"), PrimitiveDataType.STRING),
+				field("Presorted", "Presorted",
+						"The inputs are already sorted on their key columns",
+						false, null, PrimitiveDataType.BOOLEAN)));
+
+		joins.add(createJoin(
+				"parallelHashJoin",
+				"Parallel Hash Join",
+				"Joins two result sets on a key column by probing a hash table of the right result set in parallel.",
+				new ParallelHashJoin(),
+				leftRightFields(),
+				field("Join Type", "JoinType", "INNER or LEFT join", false,
+						Arrays.asList("INNER", "LEFT"), PrimitiveDataType.STRING)));
+
+		joins.add(createJoin(
+				"aggregate",
+				"Aggregate",
+				"Computes COUNT, SUM, MIN, MAX, and AVG aggregates over a result set, optionally grouped by columns.",
+				new AggregateJoin(),
+				null,
+				field("Result Set", "ResultSet", "Result set to aggregate",
+						true, null, PrimitiveDataType.RESULTSET),
+				field("Group By", "GroupBy",
+						"Comma separated list of columns to group by", false,
+						null, PrimitiveDataType.STRING),
+				field("Aggregates", "Aggregates",
+						"Comma separated list of aggregates, i.e. COUNT(*), AVG(age)",
+						true, null, PrimitiveDataType.STRING)));
+
+		joins.add(createJoin(
+				"sketch",
+				"Approximate Statistics",
+				"Estimates the number of distinct values or the quantiles of a column of a result set.",
+				new SketchJoin(),
+				null,
+				field("Result Set", "ResultSet", "Result set", true, null,
+						PrimitiveDataType.RESULTSET),
+				field("Column", "Column", "Column to summarize", true, null,
+						PrimitiveDataType.COLUMN),
+				field("Statistic", "Statistic", "DISTINCT or QUANTILES",
+						true, Arrays.asList("DISTINCT", "QUANTILES"),
+						PrimitiveDataType.STRING),
+				field("Quantiles", "Quantiles",
+						"Comma separated list of quantiles, i.e. 0.25, 0.5, 0.75",
+						false, null, PrimitiveDataType.STRING)));
+
+		joins.add(createJoin("intersection", "Intersection",
+				"Ids that are in both result sets", new BitmapAndJoin(),
+				leftRightFields()));
+		joins.add(createJoin("union", "Union",
+				"Ids that are in either result set", new BitmapOrJoin(),
+				leftRightFields()));
+		joins.add(createJoin("difference", "Difference",
+				"Ids that are in the left result set but not the right",
+				new BitmapAndNotJoin(), leftRightFields()));
+		joins.add(createJoin("symmetricDifference", "Symmetric Difference",
+				"Ids that are in exactly one of the result sets",
+				new BitmapXorJoin(), leftRightFields()));
+
+		return joins;
+	}
+
+	/**
+	 * Returns the left and right result set and column fields used by most
+	 * joins
+	 *
+	 * @return Fields
+	 */
+	static Field[] leftRightFields() {
+		return new Field[] {
+				field("Left Result Set", "LeftResultSet", "Left result set",
+						true, null, PrimitiveDataType.RESULTSET),
+				field("Left Column", "LeftColumn",
+						"Column of the left result set to join on", true, null,
+						PrimitiveDataType.COLUMN),
+				field("Right Result Set", "RightResultSet",
+						"Right result set", true, null,
+						PrimitiveDataType.RESULTSET),
+				field("Right Column", "RightColumn",
+						"Column of the right result set to join on", true,
+						null, PrimitiveDataType.COLUMN) };
+	}
+
+	static IRCTJoin createJoin(String name, String displayName,
+			String description, JoinImplementation joinImplementation,
+			Field[] commonFields, Field... fields) {
+		IRCTJoin join = new IRCTJoin();
+		join.setName(name);
+		join.setDisplayName(displayName);
+		join.setDescription(description);
+		join.setJoinImplementation(joinImplementation);
+
+		List<Field> joinFields = new ArrayList<Field>();
+		if (commonFields != null) {
+			joinFields.addAll(Arrays.asList(commonFields));
+		}
+		joinFields.addAll(Arrays.asList(fields));
+		join.setFields(joinFields);
+		return join;
+	}
+
+	static Field field(String name, String path, String description,
+			boolean required, List<String> permittedValues, DataType dataType) {
+		Field field = new Field();
+		field.setName(name);
+		field.setPath(path);
+		field.setDescription(description);
+		field.setRequired(required);
+		List<DataType> dataTypes = new ArrayList<DataType>();
+		dataTypes.add(dataType);
+		field.setDataTypes(dataTypes);
+		if (permittedValues != null) {
+			field.setPermittedValues(permittedValues);
+		}
+		return field;
+	}
+}
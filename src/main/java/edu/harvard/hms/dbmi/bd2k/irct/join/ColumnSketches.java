@@ -0,0 +1,273 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.util.sketch.HyperLogLog;
+import edu.harvard.hms.dbmi.bd2k.irct.util.sketch.KllSketch;
+
+/**
+ * Computes sketches over a column of a result set. The result set is read in
+ * a single pass split into partitions whose sketches are merged. Sketches of
+ * persisted result sets are cached in a side file next to the data of the
+ * result set, along with the version of the data they were computed over.
+ * The version is made up of the number of rows and the size and modification
+ * time of the data file, so the sketches are recomputed if the result set is
+ * rewritten. The result set itself is never changed.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class ColumnSketches {
+	private static final String DISTINCT = "distinct.";
+	private static final String QUANTILES = "quantiles.";
+	private static final String SKETCH_FILE = ".sketches";
+
+	/**
+	 * Returns a HyperLogLog sketch of the distinct values of the column
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param column
+	 *            Column
+	 * @return Sketch
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set
+	 * @throws PersistableException
+	 *             An error occurred caching the sketch
+	 */
+	public static HyperLogLog distinct(ResultSet resultSet, String column)
+			throws ResultSetException, PersistableException {
+		String cached = getCached(resultSet, DISTINCT + column);
+		if (cached != null) {
+			return HyperLogLog.fromString(cached);
+		}
+
+		final int columnIndex = resultSet.findColumn(column);
+		List<HyperLogLog> partials = scan(resultSet,
+				new SketchFactory<HyperLogLog>() {
+					@Override
+					public HyperLogLog create() {
+						return new HyperLogLog();
+					}
+
+					@Override
+					public void add(HyperLogLog sketch, Object[] row) {
+						sketch.add(row[columnIndex]);
+					}
+				});
+		HyperLogLog sketch = partials.get(0);
+		for (int index = 1; index < partials.size(); index++) {
+			sketch.merge(partials.get(index));
+		}
+
+		setCached(resultSet, DISTINCT + column, sketch.toString());
+		return sketch;
+	}
+
+	/**
+	 * Returns a KLL sketch of the numeric values of the column. Null values
+	 * are ignored.
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param column
+	 *            Column
+	 * @return Sketch
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set, or a value is not
+	 *             a number
+	 * @throws PersistableException
+	 *             An error occurred caching the sketch
+	 */
+	public static KllSketch quantiles(ResultSet resultSet, String column)
+			throws ResultSetException, PersistableException {
+		String cached = getCached(resultSet, QUANTILES + column);
+		if (cached != null) {
+			return KllSketch.fromString(cached);
+		}
+
+		final int columnIndex = resultSet.findColumn(column);
+		List<KllSketch> partials = scan(resultSet,
+				new SketchFactory<KllSketch>() {
+					@Override
+					public KllSketch create() {
+						return new KllSketch();
+					}
+
+					@Override
+					public void add(KllSketch sketch, Object[] row)
+							throws ResultSetException {
+						Object value = row[columnIndex];
+						if (value instanceof Number) {
+							sketch.add(((Number) value).doubleValue());
+						} else if (value != null) {
+							try {
+								sketch.add(Double.parseDouble(value.toString()
+										.trim()));
+							} catch (NumberFormatException e) {
+								throw new ResultSetException(value
+										+ " is not a number", e);
+							}
+						}
+					}
+				});
+		KllSketch sketch = partials.get(0);
+		for (int index = 1; index < partials.size(); index++) {
+			sketch.merge(partials.get(index));
+		}
+
+		setCached(resultSet, QUANTILES + column, sketch.toString());
+		return sketch;
+	}
+
+	/**
+	 * Creates the sketch of a partition and adds rows to it
+	 */
+	private interface SketchFactory<T> {
+		T create();
+
+		void add(T sketch, Object[] row) throws ResultSetException;
+	}
+
+	private static <T> List<T> scan(final ResultSet resultSet,
+			final SketchFactory<T> factory) throws ResultSetException,
+			PersistableException {
+		final List<long[]> ranges = JoinExecutor.partition(resultSet);
+		List<Callable<T>> tasks = new ArrayList<Callable<T>>();
+		for (final long[] range : ranges) {
+			tasks.add(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					T sketch = factory.create();
+					ResultSet source = ranges.size() == 1 ? resultSet
+							: JoinExecutor.open(resultSet);
+					try {
+						JoinExecutor.seek(source, range[0]);
+						for (long row = range[0]; row < range[1]; row++) {
+							source.next();
+							factory.add(sketch, JoinUtilities.readRow(source));
+						}
+					} finally {
+						if (source != resultSet) {
+							source.close();
+						}
+					}
+					return sketch;
+				}
+			});
+		}
+		return JoinExecutor.invokeAll(tasks);
+	}
+
+	private static String getCached(ResultSet resultSet, String key)
+			throws ResultSetException {
+		String version = getVersion(resultSet);
+		if (version == null) {
+			return null;
+		}
+		JsonObject sketches = readSketches((FileResultSet) resultSet, version);
+		if (sketches == null || !sketches.containsKey(key)) {
+			return null;
+		}
+		return sketches.getString(key);
+	}
+
+	private static void setCached(ResultSet resultSet, String key,
+			String sketch) throws ResultSetException, PersistableException {
+		String version = getVersion(resultSet);
+		if (version == null) {
+			return;
+		}
+		FileResultSet fileResultSet = (FileResultSet) resultSet;
+		Path sketchFile = Paths.get(fileResultSet.getFileName() + SKETCH_FILE);
+		synchronized (ColumnSketches.class) {
+			JsonObjectBuilder sketches = Json.createObjectBuilder();
+			JsonObject existing = readSketches(fileResultSet, version);
+			if (existing != null) {
+				for (String existingKey : existing.keySet()) {
+					sketches.add(existingKey, existing.getString(existingKey));
+				}
+			}
+			sketches.add(key, sketch);
+			JsonObject cache = Json.createObjectBuilder()
+					.add("version", version).add("sketches", sketches).build();
+
+			// Replace the file in one step so readers never see half of it
+			Path tempFile = Paths.get(sketchFile + ".temp");
+			try {
+				Files.write(tempFile, cache.toString().getBytes());
+				Files.move(tempFile, sketchFile,
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new PersistableException("Unable to cache the sketch", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the cached sketches of the result set if they were computed
+	 * over the given version of its data
+	 */
+	private static JsonObject readSketches(FileResultSet resultSet,
+			String version) {
+		Path sketchFile = Paths.get(resultSet.getFileName() + SKETCH_FILE);
+		if (!Files.isReadable(sketchFile)) {
+			return null;
+		}
+		try {
+			JsonObject cache = Json.createReader(
+					new StringReader(new String(Files.readAllBytes(sketchFile))))
+					.readObject();
+			if (!version.equals(cache.getString("version", null))) {
+				return null;
+			}
+			return cache.getJsonObject("sketches");
+		} catch (IOException | JsonException | ClassCastException e) {
+			// Recompute the sketch
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the version of the data of a persisted result set, or null if
+	 * its sketches can not be cached
+	 */
+	private static String getVersion(ResultSet resultSet)
+			throws ResultSetException {
+		if (!(resultSet instanceof FileResultSet)) {
+			return null;
+		}
+		FileResultSet fileResultSet = (FileResultSet) resultSet;
+		if (!fileResultSet.isPersisted() || !fileResultSet.isCurrent()) {
+			return null;
+		}
+		Path dataFile = Paths.get(fileResultSet.getFileName() + ".data");
+		try {
+			return resultSet.getSize() + ":" + Files.size(dataFile) + ":"
+					+ Files.getLastModifiedTime(dataFile).toMillis();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+
+/**
+ * Sorts a result set on a column using an external merge sort. The rows are
+ * read in runs that fit in memory, each run is sorted and written to a
+ * temporary file, and the runs are then merged into the output. Only one row
+ * from each run is held in memory during the merge.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class ExternalSort {
+
+	/**
+	 * Sorts the result set on the given column and writes the sorted rows to a
+	 * new file result set at the given location. The sorted result set records
+	 * the column in its metadata.
+	 *
+	 * @param resultSet
+	 *            Result set to sort
+	 * @param column
+	 *            Column to sort on
+	 * @param location
+	 *            Location of the sorted result set
+	 * @return Sorted result set
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set
+	 * @throws PersistableException
+	 *             An error occurred writing the sorted result set
+	 */
+	public static FileResultSet sort(ResultSet resultSet, String column,
+			String location) throws ResultSetException, PersistableException {
+		final int keyColumn = resultSet.findColumn(column);
+		Comparator<Object[]> comparator = new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] first, Object[] second) {
+				return JoinUtilities.compare(first[keyColumn],
+						second[keyColumn]);
+			}
+		};
+
+		FileResultSet output = new FileResultSet();
+		JoinUtilities.appendColumns(output, resultSet.getColumns());
+		int runSize = output.getMaxPending() - 1;
+
+		// Sort each run in memory and write it out to a temporary file
+		List<FileResultSet> runs = new ArrayList<FileResultSet>();
+		try {
+			long size = resultSet.getSize();
+			List<Object[]> rows = new ArrayList<Object[]>();
+			resultSet.beforeFirst();
+			for (long row = 0; row < size; row++) {
+				resultSet.next();
+				rows.add(JoinUtilities.readRow(resultSet));
+
+				if ((rows.size() == runSize) || (row == size - 1)) {
+					Collections.sort(rows, comparator);
+					FileResultSet run = new FileResultSet();
+					JoinUtilities.appendColumns(run, resultSet.getColumns());
+					for (Object[] values : rows) {
+						run.appendRow();
+						for (int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+							run.updateObject(columnIndex, values[columnIndex]);
+						}
+					}
+					run.persist(location + ".run" + runs.size());
+					runs.add(run);
+					rows.clear();
+				}
+			}
+
+			// Merge the runs into the output
+			PriorityQueue<RowCursor> queue = new PriorityQueue<RowCursor>(
+					Math.max(runs.size(), 1), new Comparator<RowCursor>() {
+						@Override
+						public int compare(RowCursor first, RowCursor second) {
+							return JoinUtilities.compare(first.getKey(),
+									second.getKey());
+						}
+					});
+			for (FileResultSet run : runs) {
+				RowCursor cursor = new RowCursor(run, column, false);
+				if (cursor.next()) {
+					queue.add(cursor);
+				}
+			}
+
+			ResultSetWriter writer = new ResultSetWriter(output, location);
+			while (!queue.isEmpty()) {
+				RowCursor cursor = queue.poll();
+				writer.write(cursor.getValues());
+				if (cursor.next()) {
+					queue.add(cursor);
+				}
+			}
+			output.setMetadata(JoinUtilities.SORTED_BY, column);
+			writer.flush();
+		} finally {
+			for (FileResultSet run : runs) {
+				JoinUtilities.delete(run);
+			}
+		}
+
+		return output;
+	}
+}
@@ -0,0 +1,331 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.util.collection.LongIntHashMap;
+
+/**
+ * The partial aggregates of a set of rows grouped by one or more columns.
+ * Each group is given a dense id and the aggregates are held in primitive
+ * arrays indexed by that id. Groups on a single whole number column are
+ * looked up in a primitive map by the long value of the key, without
+ * creating a key array or a normalized key for each row. The values of a
+ * result set are read as objects, so the key itself is still the boxed value
+ * of the row. All other groups are looked up in a hash map.
+ *
+ * Partial aggregates of different partitions of a result set can be merged,
+ * which gives the same result as aggregating all the rows at once.
+ *
+ * This class is not thread safe.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class GroupedAggregates {
+	private final int[] groupColumns;
+	private final AggregateFunction[] functions;
+	private final int[] aggregateColumns;
+	private final boolean[] integral;
+
+	private final LongIntHashMap longGroups;
+	private final Map<List<Object>, Integer> objectGroups;
+	private int groupCount;
+	private Object[][] groupKeys;
+
+	private long[][] counts;
+	private long[][] longSums;
+	private double[][] doubleSums;
+	private Object[][] extremes;
+
+	/**
+	 * Creates an empty set of groups
+	 *
+	 * @param groupColumns
+	 *            Indexes of the columns to group by
+	 * @param functions
+	 *            Aggregate functions
+	 * @param aggregateColumns
+	 *            Indexes of the columns the functions are computed over, -1
+	 *            for all rows
+	 * @param integral
+	 *            Whether each column holds whole numbers
+	 */
+	public GroupedAggregates(int[] groupColumns,
+			AggregateFunction[] functions, int[] aggregateColumns,
+			boolean[] integral) {
+		this.groupColumns = groupColumns;
+		this.functions = functions;
+		this.aggregateColumns = aggregateColumns;
+		this.integral = integral;
+
+		this.longGroups = new LongIntHashMap();
+		this.objectGroups = new HashMap<List<Object>, Integer>();
+		this.groupKeys = new Object[16][];
+
+		this.counts = new long[functions.length][16];
+		this.longSums = new long[functions.length][];
+		this.doubleSums = new double[functions.length][];
+		this.extremes = new Object[functions.length][];
+		for (int index = 0; index < functions.length; index++) {
+			if (functions[index] == AggregateFunction.SUM
+					|| functions[index] == AggregateFunction.AVG) {
+				if (integral[index]) {
+					longSums[index] = new long[16];
+				} else {
+					doubleSums[index] = new double[16];
+				}
+			} else if (functions[index] == AggregateFunction.MIN
+					|| functions[index] == AggregateFunction.MAX) {
+				extremes[index] = new Object[16];
+			}
+		}
+
+		// Without group columns there is always a single group
+		if (groupColumns.length == 0) {
+			groupId(new Object[0]);
+		}
+	}
+
+	/**
+	 * Adds a row to its group
+	 *
+	 * @param row
+	 *            Row values
+	 * @throws ResultSetException
+	 *             A value could not be aggregated
+	 */
+	public void add(Object[] row) throws ResultSetException {
+		int group;
+		if (groupColumns.length == 0) {
+			group = 0;
+		} else if ((groupColumns.length == 1)
+				&& isWholeNumber(row[groupColumns[0]])) {
+			group = longGroupId((Number) row[groupColumns[0]]);
+		} else {
+			Object[] key = new Object[groupColumns.length];
+			for (int index = 0; index < groupColumns.length; index++) {
+				key[index] = row[groupColumns[index]];
+			}
+			group = groupId(key);
+		}
+
+		for (int index = 0; index < functions.length; index++) {
+			if (aggregateColumns[index] == -1) {
+				counts[index][group]++;
+				continue;
+			}
+			Object value = row[aggregateColumns[index]];
+			if (value == null) {
+				continue;
+			}
+			counts[index][group]++;
+			switch (functions[index]) {
+			case SUM:
+			case AVG:
+				if (integral[index]) {
+					longSums[index][group] += ((Number) value).longValue();
+				} else {
+					doubleSums[index][group] += toDouble(value);
+				}
+				break;
+			case MIN:
+				if ((counts[index][group] == 1)
+						|| (JoinUtilities.compare(value,
+								extremes[index][group]) < 0)) {
+					extremes[index][group] = value;
+				}
+				break;
+			case MAX:
+				if ((counts[index][group] == 1)
+						|| (JoinUtilities.compare(value,
+								extremes[index][group]) > 0)) {
+					extremes[index][group] = value;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Merges the partial aggregates of another set of groups into this one
+	 *
+	 * @param other
+	 *            Other groups
+	 */
+	public void merge(GroupedAggregates other) {
+		for (int otherGroup = 0; otherGroup < other.groupCount; otherGroup++) {
+			int group = groupId(other.groupKeys[otherGroup]);
+
+			for (int index = 0; index < functions.length; index++) {
+				long otherCount = other.counts[index][otherGroup];
+				if (otherCount == 0) {
+					continue;
+				}
+				long count = counts[index][group];
+				counts[index][group] += otherCount;
+				if (longSums[index] != null) {
+					longSums[index][group] += other.longSums[index][otherGroup];
+				}
+				if (doubleSums[index] != null) {
+					doubleSums[index][group] += other.doubleSums[index][otherGroup];
+				}
+				if (extremes[index] != null) {
+					Object value = other.extremes[index][otherGroup];
+					int comparison = JoinUtilities.compare(value,
+							extremes[index][group]);
+					if ((count == 0)
+							|| ((functions[index] == AggregateFunction.MIN) && (comparison < 0))
+							|| ((functions[index] == AggregateFunction.MAX) && (comparison > 0))) {
+						extremes[index][group] = value;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a row for each group. Each row has the group values followed by
+	 * the aggregates.
+	 *
+	 * @param writer
+	 *            Writer
+	 * @throws ResultSetException
+	 *             An error occurred writing a row
+	 * @throws PersistableException
+	 *             An error occurred persisting the rows
+	 */
+	public void write(ResultSetWriter writer) throws ResultSetException,
+			PersistableException {
+		Object[] values = new Object[groupColumns.length + functions.length];
+		for (int group = 0; group < groupCount; group++) {
+			System.arraycopy(groupKeys[group], 0, values, 0,
+					groupColumns.length);
+			for (int index = 0; index < functions.length; index++) {
+				values[groupColumns.length + index] = getValue(index, group);
+			}
+			writer.write(values);
+		}
+	}
+
+	/**
+	 * Returns the number of groups
+	 *
+	 * @return Number of groups
+	 */
+	public int getGroupCount() {
+		return groupCount;
+	}
+
+	private Object getValue(int index, int group) {
+		long count = counts[index][group];
+		switch (functions[index]) {
+		case COUNT:
+			return count;
+		case SUM:
+			if (count == 0) {
+				return null;
+			}
+			return integral[index] ? (Object) longSums[index][group]
+					: (Object) doubleSums[index][group];
+		case AVG:
+			if (count == 0) {
+				return null;
+			}
+			return (integral[index] ? (double) longSums[index][group]
+					: doubleSums[index][group]) / count;
+		default:
+			return count == 0 ? null : extremes[index][group];
+		}
+	}
+
+	private int groupId(Object[] key) {
+		if ((key.length == 1) && isWholeNumber(key[0])) {
+			return longGroupId((Number) key[0]);
+		}
+
+		List<Object> normalized = new ArrayList<Object>(key.length);
+		for (Object value : key) {
+			normalized.add(JoinUtilities.normalize(value));
+		}
+		Integer group = objectGroups.get(normalized);
+		if (group == null) {
+			group = newGroup(key);
+			objectGroups.put(normalized, group);
+		}
+		return group;
+	}
+
+	/**
+	 * Returns the group of a single whole number key, which normalizes to the
+	 * same long as longValue returns
+	 */
+	private int longGroupId(Number key) {
+		long value = key.longValue();
+		int group = longGroups.get(value);
+		if (group == LongIntHashMap.NO_VALUE) {
+			group = newGroup(new Object[] { key });
+			longGroups.put(value, group);
+		}
+		return group;
+	}
+
+	/**
+	 * Returns true if the value is a number that normalizes to a long
+	 */
+	private boolean isWholeNumber(Object value) {
+		if ((value instanceof Long) || (value instanceof Integer)
+				|| (value instanceof Short) || (value instanceof Byte)) {
+			return true;
+		}
+		if ((value instanceof Double) || (value instanceof Float)) {
+			double number = ((Number) value).doubleValue();
+			return (number == Math.rint(number)) && (Math.abs(number) < 1e18);
+		}
+		return (value instanceof Number)
+				&& (JoinUtilities.normalize(value) instanceof Long);
+	}
+
+	private int newGroup(Object[] key) {
+		if (groupCount == groupKeys.length) {
+			int capacity = groupKeys.length * 2;
+			groupKeys = Arrays.copyOf(groupKeys, capacity);
+			for (int index = 0; index < functions.length; index++) {
+				counts[index] = Arrays.copyOf(counts[index], capacity);
+				if (longSums[index] != null) {
+					longSums[index] = Arrays.copyOf(longSums[index], capacity);
+				}
+				if (doubleSums[index] != null) {
+					doubleSums[index] = Arrays.copyOf(doubleSums[index],
+							capacity);
+				}
+				if (extremes[index] != null) {
+					extremes[index] = Arrays.copyOf(extremes[index], capacity);
+				}
+			}
+		}
+		groupKeys[groupCount] = key;
+		return groupCount++;
+	}
+
+	private double toDouble(Object value) throws ResultSetException {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		try {
+			return Double.parseDouble(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new ResultSetException(value + " is not a number", e);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+
+/**
+ * Runs the partitions of a join in parallel. All joins share a single pool
+ * sized to the number of processors, so running several joins at once does
+ * not create more threads than there are cores. The pool is created when it
+ * is first needed and is shut down when the application stops.
+ *
+ * A result set is split into contiguous row ranges. Each partition reads its
+ * range through its own copy of the result set so the partitions do not share
+ * a file position.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class JoinExecutor {
+	/**
+	 * The smallest number of rows that is worth giving its own partition
+	 */
+	public static final long MIN_PARTITION_SIZE = 10000;
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * Returns the shared pool, creating it if it has not been created or has
+	 * been shut down
+	 *
+	 * @return Pool
+	 */
+	public static synchronized ForkJoinPool getPool() {
+		if (pool == null || pool.isShutdown()) {
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return pool;
+	}
+
+	/**
+	 * Shuts down the shared pool. Partitions that are running are allowed to
+	 * finish.
+	 */
+	public static synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Splits the rows of a result set into contiguous ranges. Each range is a
+	 * two element array of the first row and one past the last row.
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @return Row ranges
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set
+	 */
+	public static List<long[]> partition(ResultSet resultSet)
+			throws ResultSetException {
+		long size = resultSet.getSize();
+		int partitions = 1;
+		if (canPartition(resultSet)) {
+			partitions = (int) Math.max(1, Math.min(getPool().getParallelism(),
+					size / MIN_PARTITION_SIZE));
+		}
+
+		List<long[]> ranges = new ArrayList<long[]>();
+		long start = 0;
+		for (int partition = 0; partition < partitions; partition++) {
+			long end = size * (partition + 1) / partitions;
+			ranges.add(new long[] { start, end });
+			start = end;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Returns a copy of the result set that can be read independently of the
+	 * original. If the result set can not be copied then the original is
+	 * returned.
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @return Copy of the result set
+	 * @throws ResultSetException
+	 *             An error occurred opening the result set
+	 * @throws PersistableException
+	 *             An error occurred loading the result set
+	 */
+	public static ResultSet open(ResultSet resultSet)
+			throws ResultSetException, PersistableException {
+		if (!canPartition(resultSet)) {
+			return resultSet;
+		}
+		FileResultSet copy = new FileResultSet();
+		copy.load(((FileResultSet) resultSet).getFileName());
+		return copy;
+	}
+
+	/**
+	 * Positions the result set before the given row so the next call to
+	 * next() reads it
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param row
+	 *            Row
+	 * @throws ResultSetException
+	 *             An error occurred moving in the result set
+	 */
+	public static void seek(ResultSet resultSet, long row)
+			throws ResultSetException {
+		if (row == 0) {
+			resultSet.beforeFirst();
+			return;
+		}
+		// Move from the first row as the position of a newly loaded result
+		// set is not tied to a row
+		resultSet.first();
+		if (row > 1) {
+			resultSet.absolute(row - 1);
+		}
+	}
+
+	/**
+	 * Runs the tasks on the shared pool and returns their results in order.
+	 * The first failure is rethrown.
+	 *
+	 * @param tasks
+	 *            Tasks
+	 * @return Results
+	 * @throws ResultSetException
+	 *             A task failed reading a result set
+	 * @throws PersistableException
+	 *             A task failed writing a result set
+	 */
+	public static <T> List<T> invokeAll(List<Callable<T>> tasks)
+			throws ResultSetException, PersistableException {
+		List<T> results = new ArrayList<T>();
+		if (tasks.size() == 1) {
+			try {
+				results.add(tasks.get(0).call());
+			} catch (Exception e) {
+				rethrow(e);
+			}
+			return results;
+		}
+
+		for (Future<T> future : getPool().invokeAll(tasks)) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ResultSetException("Join was interrupted", e);
+			} catch (ExecutionException e) {
+				rethrow(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	private static void rethrow(Throwable cause) throws ResultSetException,
+			PersistableException {
+		if (cause instanceof ResultSetException) {
+			throw (ResultSetException) cause;
+		}
+		if (cause instanceof PersistableException) {
+			throw (PersistableException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		throw new ResultSetException(cause.getMessage(), (Exception) cause);
+	}
+
+	private static boolean canPartition(ResultSet resultSet) {
+		return (resultSet instanceof FileResultSet)
+				&& ((FileResultSet) resultSet).isPersisted()
+				&& ((FileResultSet) resultSet).isCurrent();
+	}
+}
@@ -0,0 +1,283 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+
+/**
+ * A set of utility functions that are shared by the different join
+ * implementations
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class JoinUtilities {
+	private static final Logger LOGGER = Logger.getLogger(JoinUtilities.class
+			.getName());
+
+	/**
+	 * The metadata key used to record which column a result set is sorted by
+	 */
+	public static final String SORTED_BY = "sortedBy";
+
+	/**
+	 * Compares two join keys. The keys are normalized first, so two keys
+	 * compare as equal exactly when their normalized keys are equal. Null
+	 * values are sorted first, then numbers by their value, then all other
+	 * values by their string representation. A number is never equal to a
+	 * string, even if the string holds the same number.
+	 *
+	 * @param first
+	 *            First key
+	 * @param second
+	 *            Second key
+	 * @return A negative integer, zero, or a positive integer as the first key
+	 *         is less than, equal to, or greater than the second key
+	 */
+	public static int compare(Object first, Object second) {
+		first = normalize(first);
+		second = normalize(second);
+		if (first == second) {
+			return 0;
+		}
+		if (first == null) {
+			return -1;
+		}
+		if (second == null) {
+			return 1;
+		}
+		boolean firstNumber = first instanceof Number;
+		boolean secondNumber = second instanceof Number;
+		if (firstNumber && secondNumber) {
+			if ((first instanceof Long) && (second instanceof Long)) {
+				return Long.compare((Long) first, (Long) second);
+			}
+			return Double.compare(((Number) first).doubleValue(),
+					((Number) second).doubleValue());
+		}
+		if (firstNumber != secondNumber) {
+			return firstNumber ? -1 : 1;
+		}
+		return ((String) first).compareTo((String) second);
+	}
+
+	/**
+	 * Checks that the key columns of two result sets hold the same kind of
+	 * value, either both numbers or both not. A number is never equal to a
+	 * string, so joining a numeric column to a string column would silently
+	 * find no matches.
+	 *
+	 * @param leftColumns
+	 *            Columns of the left result set
+	 * @param leftColumn
+	 *            Left key column
+	 * @param rightColumns
+	 *            Columns of the right result set
+	 * @param rightColumn
+	 *            Right key column
+	 * @throws ResultSetException
+	 *             The key columns can not be compared
+	 */
+	public static void checkKeyTypes(Column[] leftColumns, String leftColumn,
+			Column[] rightColumns, String rightColumn)
+			throws ResultSetException {
+		PrimitiveDataType leftType = getDataType(leftColumns, leftColumn);
+		PrimitiveDataType rightType = getDataType(rightColumns, rightColumn);
+		if ((leftType != null) && (rightType != null)
+				&& (isNumeric(leftType) != isNumeric(rightType))) {
+			throw new ResultSetException("Key column " + leftColumn + " ("
+					+ leftType + ") can not be compared to key column "
+					+ rightColumn + " (" + rightType + ")");
+		}
+	}
+
+	private static PrimitiveDataType getDataType(Column[] columns,
+			String column) throws ResultSetException {
+		for (Column candidate : columns) {
+			if (candidate.getName().equals(column)) {
+				return candidate.getDataType();
+			}
+		}
+		throw new ResultSetException("Column not found");
+	}
+
+	private static boolean isNumeric(PrimitiveDataType dataType) {
+		switch (dataType) {
+		case BYTE:
+		case DOUBLE:
+		case FLOAT:
+		case INTEGER:
+		case LONG:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a key that is equal to the key of any other value that compares
+	 * as equal to this value. This allows for keys to be used in hash based
+	 * joins.
+	 *
+	 * @param value
+	 *            Value
+	 * @return Normalized key
+	 */
+	public static Object normalize(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (isIntegral(value)) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Number) {
+			double number = ((Number) value).doubleValue();
+			if ((number == Math.rint(number)) && (Math.abs(number) < 1e18)) {
+				return (long) number;
+			}
+			return number;
+		}
+		return value.toString();
+	}
+
+	private static boolean isIntegral(Object value) {
+		return (value instanceof Long) || (value instanceof Integer)
+				|| (value instanceof Short) || (value instanceof Byte);
+	}
+
+	/**
+	 * Returns true if the metadata of the result set records that it is sorted
+	 * by the given column
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param column
+	 *            Column name
+	 * @return Sorted
+	 */
+	public static boolean isSortedOn(ResultSet resultSet, String column) {
+		if (resultSet instanceof FileResultSet) {
+			return column.equals(((FileResultSet) resultSet).getMetadata().get(
+					SORTED_BY));
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the keys of the result set never decrease in the given
+	 * column. The result set is read once, which is cheaper than sorting it.
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param column
+	 *            Column name
+	 * @return Sorted
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set
+	 */
+	public static boolean isSorted(ResultSet resultSet, String column)
+			throws ResultSetException {
+		int keyColumn = resultSet.findColumn(column);
+		long size = resultSet.getSize();
+		Object previousKey = null;
+		resultSet.beforeFirst();
+		try {
+			for (long row = 0; row < size; row++) {
+				resultSet.next();
+				Object key = resultSet.getObject(keyColumn);
+				if ((row != 0) && (compare(previousKey, key) > 0)) {
+					return false;
+				}
+				previousKey = key;
+			}
+		} finally {
+			resultSet.beforeFirst();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a copy of the values of the current row of the result set
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @return Values
+	 * @throws ResultSetException
+	 *             An error occurred reading the row
+	 */
+	public static Object[] readRow(ResultSet resultSet)
+			throws ResultSetException {
+		Object[] values = new Object[resultSet.getColumnSize()];
+		for (int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+			values[columnIndex] = resultSet.getObject(columnIndex);
+		}
+		return values;
+	}
+
+	/**
+	 * Appends the columns of each of the inputs to the output result set. If a
+	 * column name is already in use then a numeric suffix is added to the name.
+	 *
+	 * @param output
+	 *            Output result set
+	 * @param inputs
+	 *            Input columns
+	 * @throws ResultSetException
+	 *             An error occurred adding the columns
+	 */
+	public static void appendColumns(ResultSet output, Column[]... inputs)
+			throws ResultSetException {
+		Set<String> names = new HashSet<String>();
+		for (Column[] columns : inputs) {
+			if (columns == null) {
+				continue;
+			}
+			for (Column column : columns) {
+				String name = column.getName();
+				for (int suffix = 1; names.contains(name); suffix++) {
+					name = column.getName() + "_" + suffix;
+				}
+				names.add(name);
+
+				Column newColumn = new Column();
+				newColumn.setName(name);
+				newColumn.setDataType(column.getDataType());
+				output.appendColumn(newColumn);
+			}
+		}
+	}
+
+	/**
+	 * Closes a temporary result set and removes its files
+	 *
+	 * @param resultSet
+	 *            Temporary result set
+	 */
+	public static void delete(FileResultSet resultSet) {
+		try {
+			resultSet.close();
+		} catch (ResultSetException e) {
+			LOGGER.log(Level.WARNING, "Unable to close the result set", e);
+		}
+		for (File file : resultSet.getFileList()) {
+			try {
+				Files.deleteIfExists(file.toPath());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to delete " + file, e);
+			}
+		}
+	}
+}
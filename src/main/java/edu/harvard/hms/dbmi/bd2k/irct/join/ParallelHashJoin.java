@@ -0,0 +1,284 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.JoinActionSetupException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.Join;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.JoinImplementation;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.RowChannel;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * A hash join that probes in parallel. The right result set is loaded into a
+ * hash table which is then only read. The left result set is split into row
+ * ranges that each probe the table on the shared join pool and write their
+ * matches to their own segment. The segments are then appended to the result
+ * in order, so the output has the same order as a single threaded join.
+ *
+ * The right result set is held in memory so it should be the smaller of the
+ * two. The join supports INNER and LEFT joins. Null keys never match.
+ *
+ * Either result set can be piped in through a row channel while it is still
+ * being produced. A piped right result set is read into the table as its rows
+ * arrive, and a piped left result set is probed row by row on a single
+ * thread.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class ParallelHashJoin implements JoinImplementation {
+
+	@Override
+	public void setup(Map<String, Object> parameters)
+			throws JoinActionSetupException {
+	}
+
+	@Override
+	public Result run(SecureSession session, Join join, Result result)
+			throws ResultSetException, PersistableException {
+		if (!(result.getData() instanceof FileResultSet)) {
+			throw new ResultSetException(
+					"Parallel hash join requires a file result set");
+		}
+		final FileResultSet output = (FileResultSet) result.getData();
+
+		Object left = join.getObjectValues().get("LeftResultSet");
+		final String leftColumn = join.getStringValues().get("LeftColumn");
+		Object right = join.getObjectValues().get("RightResultSet");
+		String rightColumn = join.getStringValues().get("RightColumn");
+		final boolean leftJoin = "LEFT".equalsIgnoreCase(join
+				.getStringValues().get("JoinType"));
+
+		Column[] leftColumns = (left instanceof RowChannel) ? ((RowChannel) left)
+				.getColumns() : ((ResultSet) left).getColumns();
+		Column[] rightColumns = (right instanceof RowChannel) ? ((RowChannel) right)
+				.getColumns() : ((ResultSet) right).getColumns();
+		JoinUtilities.checkKeyTypes(leftColumns, leftColumn, rightColumns,
+				rightColumn);
+		JoinUtilities.appendColumns(output, leftColumns, rightColumns);
+
+		final Map<Object, List<Object[]>> table;
+		if (right instanceof RowChannel) {
+			table = build((RowChannel) right, rightColumn);
+		} else {
+			table = build((ResultSet) right, rightColumn);
+		}
+		final int rightColumnSize = rightColumns.length;
+
+		if (left instanceof RowChannel) {
+			probe((RowChannel) left, leftColumn, table, rightColumnSize,
+					leftJoin, new ResultSetWriter(output));
+			result.setResultStatus(ResultStatus.COMPLETE);
+			return result;
+		}
+
+		final ResultSet leftResultSet = (ResultSet) left;
+		final List<long[]> ranges = JoinExecutor.partition(leftResultSet);
+		List<Callable<FileResultSet>> tasks = new ArrayList<Callable<FileResultSet>>();
+		final String location = result.getResultSetLocation();
+		// Every segment that was started, so they are all deleted even if a
+		// partition fails
+		final List<FileResultSet> segments = Collections
+				.synchronizedList(new ArrayList<FileResultSet>());
+		for (int partition = 0; partition < ranges.size(); partition++) {
+			final int partitionId = partition;
+			tasks.add(new Callable<FileResultSet>() {
+				@Override
+				public FileResultSet call() throws Exception {
+					long[] range = ranges.get(partitionId);
+					if (ranges.size() == 1) {
+						probe(leftResultSet, leftColumn, range[0], range[1],
+								table, rightColumnSize, leftJoin,
+								new ResultSetWriter(output));
+						return output;
+					}
+
+					ResultSet source = JoinExecutor.open(leftResultSet);
+					FileResultSet segment = new FileResultSet();
+					segments.add(segment);
+					JoinUtilities.appendColumns(segment, output.getColumns());
+					try {
+						probe(source, leftColumn, range[0], range[1], table,
+								rightColumnSize, leftJoin, new ResultSetWriter(
+										segment, location + ".segment"
+												+ partitionId));
+					} finally {
+						source.close();
+					}
+					return segment;
+				}
+			});
+		}
+
+		try {
+			List<FileResultSet> partitions = JoinExecutor.invokeAll(tasks);
+			if (ranges.size() > 1) {
+				output.concatenate(partitions);
+			}
+		} finally {
+			synchronized (segments) {
+				for (FileResultSet segment : segments) {
+					// Segments are only written to disk once they are flushed
+					if (segment.getFileName() != null) {
+						JoinUtilities.delete(segment);
+					}
+				}
+			}
+		}
+
+		result.setResultStatus(ResultStatus.COMPLETE);
+		return result;
+	}
+
+	/**
+	 * Loads the rows of the result set into a hash table keyed on the column
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param column
+	 *            Key column
+	 * @return Hash table
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set
+	 */
+	private Map<Object, List<Object[]>> build(ResultSet resultSet,
+			String column) throws ResultSetException {
+		Map<Object, List<Object[]>> table = new HashMap<Object, List<Object[]>>();
+		int keyColumn = resultSet.findColumn(column);
+		long size = resultSet.getSize();
+
+		resultSet.beforeFirst();
+		for (long row = 0; row < size; row++) {
+			resultSet.next();
+			add(table, JoinUtilities.readRow(resultSet), keyColumn);
+		}
+		return table;
+	}
+
+	/**
+	 * Loads the rows of the channel into a hash table keyed on the column as
+	 * they are written
+	 *
+	 * @param channel
+	 *            Channel
+	 * @param column
+	 *            Key column
+	 * @return Hash table
+	 * @throws ResultSetException
+	 *             An error occurred producing the rows
+	 */
+	private Map<Object, List<Object[]>> build(RowChannel channel, String column)
+			throws ResultSetException {
+		Map<Object, List<Object[]>> table = new HashMap<Object, List<Object[]>>();
+		int keyColumn = channel.findColumn(column);
+		for (Object[] values = channel.read(); values != null; values = channel
+				.read()) {
+			add(table, values, keyColumn);
+		}
+		return table;
+	}
+
+	private static void add(Map<Object, List<Object[]>> table,
+			Object[] values, int keyColumn) {
+		Object key = JoinUtilities.normalize(values[keyColumn]);
+		if (key == null) {
+			return;
+		}
+		List<Object[]> rows = table.get(key);
+		if (rows == null) {
+			rows = new ArrayList<Object[]>(1);
+			table.put(key, rows);
+		}
+		rows.add(values);
+	}
+
+	/**
+	 * Probes the hash table with a range of rows of the result set
+	 */
+	private static void probe(ResultSet resultSet, String column, long start,
+			long end, Map<Object, List<Object[]>> table, int rightColumnSize,
+			boolean leftJoin, ResultSetWriter writer)
+			throws ResultSetException, PersistableException {
+		int keyColumn = resultSet.findColumn(column);
+		Object[] emptyRight = new Object[rightColumnSize];
+
+		JoinExecutor.seek(resultSet, start);
+		for (long row = start; row < end; row++) {
+			resultSet.next();
+			probe(JoinUtilities.readRow(resultSet), keyColumn, table,
+					emptyRight, leftJoin, writer);
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Probes the hash table with the rows of the channel as they are written
+	 */
+	private static void probe(RowChannel channel, String column,
+			Map<Object, List<Object[]>> table, int rightColumnSize,
+			boolean leftJoin, ResultSetWriter writer)
+			throws ResultSetException, PersistableException {
+		int keyColumn = channel.findColumn(column);
+		Object[] emptyRight = new Object[rightColumnSize];
+
+		for (Object[] leftValues = channel.read(); leftValues != null; leftValues = channel
+				.read()) {
+			probe(leftValues, keyColumn, table, emptyRight, leftJoin, writer);
+		}
+		writer.flush();
+	}
+
+	private static void probe(Object[] leftValues, int keyColumn,
+			Map<Object, List<Object[]>> table, Object[] emptyRight,
+			boolean leftJoin, ResultSetWriter writer)
+			throws ResultSetException, PersistableException {
+		List<Object[]> matches = table.get(JoinUtilities
+				.normalize(leftValues[keyColumn]));
+
+		if (matches != null) {
+			for (Object[] rightValues : matches) {
+				writer.write(concat(leftValues, rightValues));
+			}
+		} else if (leftJoin) {
+			writer.write(concat(leftValues, emptyRight));
+		}
+	}
+
+	private static Object[] concat(Object[] left, Object[] right) {
+		Object[] values = new Object[left.length + right.length];
+		System.arraycopy(left, 0, values, 0, left.length);
+		System.arraycopy(right, 0, values, left.length, right.length);
+		return values;
+	}
+
+	@Override
+	public Result getResults(Result result) {
+		return result;
+	}
+
+	@Override
+	public boolean acceptsChannel(String field) {
+		return "LeftResultSet".equals(field) || "RightResultSet".equals(field);
+	}
+
+	@Override
+	public ResultDataType getJoinDataType() {
+		return ResultDataType.TABULAR;
+	}
+}
@@ -0,0 +1,89 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+
+/**
+ * Writes rows to a file result set, persisting the pending rows whenever the
+ * maximum pending size of the result set is reached. This allows for results
+ * larger than the pending size to be written.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class ResultSetWriter {
+	private FileResultSet resultSet;
+	private String location;
+
+	/**
+	 * Creates a writer for a result set that has already been persisted
+	 *
+	 * @param resultSet
+	 *            Result set
+	 */
+	public ResultSetWriter(FileResultSet resultSet) {
+		this(resultSet, null);
+	}
+
+	/**
+	 * Creates a writer for a result set that will be persisted to the given
+	 * location on the first flush
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param location
+	 *            Location
+	 */
+	public ResultSetWriter(FileResultSet resultSet, String location) {
+		this.resultSet = resultSet;
+		this.location = location;
+	}
+
+	/**
+	 * Appends a row with the given values to the result set
+	 *
+	 * @param values
+	 *            Row values
+	 * @throws ResultSetException
+	 *             An error occurred writing the row
+	 * @throws PersistableException
+	 *             An error occurred persisting the pending rows
+	 */
+	public void write(Object[] values) throws ResultSetException,
+			PersistableException {
+		if (resultSet.getPendingSize() >= resultSet.getMaxPending() - 1) {
+			flush();
+		}
+		resultSet.appendRow();
+		for (int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+			resultSet.updateObject(columnIndex, values[columnIndex]);
+		}
+	}
+
+	/**
+	 * Persists all pending rows
+	 *
+	 * @throws PersistableException
+	 *             An error occurred persisting the pending rows
+	 */
+	public void flush() throws PersistableException {
+		if (resultSet.isPersisted()) {
+			resultSet.merge();
+		} else {
+			resultSet.persist(location);
+		}
+	}
+
+	/**
+	 * Returns the result set being written to
+	 *
+	 * @return Result set
+	 */
+	public FileResultSet getResultSet() {
+		return resultSet;
+	}
+}
@@ -0,0 +1,106 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+
+/**
+ * A forward only cursor over a result set that keeps track of the value of a
+ * key column. If the cursor is ordered it verifies that the keys never
+ * decrease as it moves through the result set.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class RowCursor {
+	private ResultSet resultSet;
+	private String column;
+	private int keyColumn;
+	private boolean ordered;
+
+	private long size;
+	private long row;
+	private Object[] values;
+
+	/**
+	 * Creates a cursor positioned before the first row of the result set
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param column
+	 *            Key column
+	 * @param ordered
+	 *            Verify the result set is sorted by the key column
+	 * @throws ResultSetException
+	 *             An error occurred accessing the result set
+	 */
+	public RowCursor(ResultSet resultSet, String column, boolean ordered)
+			throws ResultSetException {
+		this.resultSet = resultSet;
+		this.column = column;
+		this.keyColumn = resultSet.findColumn(column);
+		this.ordered = ordered;
+		this.size = resultSet.getSize();
+		this.row = -1;
+		resultSet.beforeFirst();
+	}
+
+	/**
+	 * Moves the cursor to the next row
+	 *
+	 * @return true if the cursor moved to a row, false if there are no more
+	 *         rows
+	 * @throws ResultSetException
+	 *             An error occurred reading the row, or the result set is not
+	 *             sorted
+	 */
+	public boolean next() throws ResultSetException {
+		if (row + 1 >= size) {
+			values = null;
+			return false;
+		}
+		Object previousKey = getKey();
+		resultSet.next();
+		row++;
+		values = JoinUtilities.readRow(resultSet);
+
+		if (ordered && (row != 0)
+				&& (JoinUtilities.compare(previousKey, getKey()) > 0)) {
+			throw new ResultSetException("Result set is not sorted on "
+					+ column);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the key of the current row
+	 *
+	 * @return Key
+	 */
+	public Object getKey() {
+		if (values == null) {
+			return null;
+		}
+		return values[keyColumn];
+	}
+
+	/**
+	 * Returns the values of the current row
+	 *
+	 * @return Values
+	 */
+	public Object[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Returns the result set the cursor is moving over
+	 *
+	 * @return Result set
+	 */
+	public ResultSet getResultSet() {
+		return resultSet;
+	}
+}
@@ -0,0 +1,108 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.util.sketch.BloomFilter;
+
+/**
+ * Builds Bloom filters over the key column of a stored result so a query on
+ * another resource can be restricted to rows that could match it. A where
+ * clause requests a filter by setting the SEMI_JOIN_RESULT and
+ * SEMI_JOIN_COLUMN string values. The filter is then available to the query
+ * resource implementation in the object values of the where clause under
+ * SEMI_JOIN_FILTER. Implementations that do not support it can ignore it, as
+ * the results are still correct without it.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class SemiJoinFilter {
+
+	/**
+	 * String value containing the id of the result to filter by
+	 */
+	public static final String SEMI_JOIN_RESULT = "semiJoinResult";
+
+	/**
+	 * String value containing the column of the result to filter by
+	 */
+	public static final String SEMI_JOIN_COLUMN = "semiJoinColumn";
+
+	/**
+	 * Optional string value containing the false positive rate of the filter
+	 */
+	public static final String SEMI_JOIN_FALSE_POSITIVE_RATE = "semiJoinFalsePositiveRate";
+
+	/**
+	 * Object value containing the Bloom filter
+	 */
+	public static final String SEMI_JOIN_FILTER = "semiJoinFilter";
+
+	/**
+	 * The false positive rate used if none is given
+	 */
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * Returns the false positive rate requested by the string values of a
+	 * where clause, or the default rate if none is given
+	 *
+	 * @param stringValues
+	 *            String values of the where clause
+	 * @return False positive rate
+	 * @throws ResultSetException
+	 *             The rate is not a number between 0 and 1, exclusive
+	 */
+	public static double getFalsePositiveRate(Map<String, String> stringValues)
+			throws ResultSetException {
+		String value = stringValues.get(SEMI_JOIN_FALSE_POSITIVE_RATE);
+		if (value == null) {
+			return DEFAULT_FALSE_POSITIVE_RATE;
+		}
+		double falsePositiveRate;
+		try {
+			falsePositiveRate = Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ResultSetException(SEMI_JOIN_FALSE_POSITIVE_RATE
+					+ " must be a number", e);
+		}
+		if (!(falsePositiveRate > 0) || !(falsePositiveRate < 1)) {
+			throw new ResultSetException(SEMI_JOIN_FALSE_POSITIVE_RATE
+					+ " must be between 0 and 1, exclusive");
+		}
+		return falsePositiveRate;
+	}
+
+	/**
+	 * Builds a Bloom filter over the non-null values of a column of the
+	 * result set
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param column
+	 *            Column
+	 * @param falsePositiveRate
+	 *            False positive rate
+	 * @return Bloom filter
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set
+	 */
+	public static BloomFilter build(ResultSet resultSet, String column,
+			double falsePositiveRate) throws ResultSetException {
+		int columnIndex = resultSet.findColumn(column);
+		long size = resultSet.getSize();
+		BloomFilter filter = BloomFilter.create(size, falsePositiveRate);
+
+		resultSet.beforeFirst();
+		for (long row = 0; row < size; row++) {
+			resultSet.next();
+			filter.put(resultSet.getObject(columnIndex));
+		}
+		return filter;
+	}
+}
@@ -0,0 +1,105 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.JoinActionSetupException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.Join;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.JoinImplementation;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.bd2k.irct.util.sketch.KllSketch;
+
+/**
+ * Returns approximate statistics of a column of a result set using sketches.
+ * DISTINCT returns the estimated number of distinct values. QUANTILES returns
+ * the estimated value at each of the comma separated quantiles given in
+ * Quantiles, by default the median.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class SketchJoin implements JoinImplementation {
+
+	@Override
+	public void setup(Map<String, Object> parameters)
+			throws JoinActionSetupException {
+	}
+
+	@Override
+	public Result run(SecureSession session, Join join, Result result)
+			throws ResultSetException, PersistableException {
+		if (!(result.getData() instanceof FileResultSet)) {
+			throw new ResultSetException(
+					"Sketch join requires a file result set");
+		}
+		FileResultSet output = (FileResultSet) result.getData();
+		ResultSet resultSet = (ResultSet) join.getObjectValues().get(
+				"ResultSet");
+		String column = join.getStringValues().get("Column");
+		String statistic = join.getStringValues().get("Statistic");
+
+		ResultSetWriter writer = new ResultSetWriter(output);
+		if ("QUANTILES".equalsIgnoreCase(statistic)) {
+			KllSketch sketch = ColumnSketches.quantiles(resultSet, column);
+			output.appendColumn(createColumn("quantile",
+					PrimitiveDataType.DOUBLE));
+			output.appendColumn(createColumn(column, PrimitiveDataType.DOUBLE));
+
+			String quantiles = join.getStringValues().get("Quantiles");
+			if ((quantiles == null) || quantiles.trim().isEmpty()) {
+				quantiles = "0.5";
+			}
+			for (String quantile : quantiles.split(",")) {
+				double value;
+				try {
+					value = Double.parseDouble(quantile.trim());
+				} catch (NumberFormatException e) {
+					throw new ResultSetException(quantile
+							+ " is not a quantile", e);
+				}
+				double estimate = sketch.getQuantile(value);
+				writer.write(new Object[] { value,
+						Double.isNaN(estimate) ? null : estimate });
+			}
+		} else if ("DISTINCT".equalsIgnoreCase(statistic)) {
+			output.appendColumn(createColumn("DISTINCT(" + column + ")",
+					PrimitiveDataType.LONG));
+			writer.write(new Object[] { ColumnSketches.distinct(resultSet,
+					column).estimate() });
+		} else {
+			throw new ResultSetException("Unknown statistic " + statistic);
+		}
+		writer.flush();
+
+		result.setResultStatus(ResultStatus.COMPLETE);
+		return result;
+	}
+
+	private Column createColumn(String name, PrimitiveDataType dataType) {
+		Column column = new Column();
+		column.setName(name);
+		column.setDataType(dataType);
+		return column;
+	}
+
+	@Override
+	public Result getResults(Result result) {
+		return result;
+	}
+
+	@Override
+	public ResultDataType getJoinDataType() {
+		return ResultDataType.TABULAR;
+	}
+}
@@ -0,0 +1,188 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.join;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.JoinActionSetupException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.Join;
+import edu.harvard.hms.dbmi.bd2k.irct.model.join.JoinImplementation;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * A sort-merge join of two result sets on a key column. If the result sets are
+ * already sorted on their key columns, either as recorded in their metadata or
+ * as stated by the Presorted field, the join is performed in a single streaming
+ * pass. A result set that is stated to be presorted is checked with a single
+ * read and is sorted if it is not. The key columns must either both be
+ * numeric or both not be numeric. Only the rows of the right result set that share the current key are
+ * held in memory. Unsorted result sets are first sorted using an external
+ * sort.
+ *
+ * The join supports INNER and LEFT joins. Null keys never match.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class SortMergeJoin implements JoinImplementation {
+
+	@Override
+	public void setup(Map<String, Object> parameters)
+			throws JoinActionSetupException {
+	}
+
+	@Override
+	public Result run(SecureSession session, Join join, Result result)
+			throws ResultSetException, PersistableException {
+		if (!(result.getData() instanceof FileResultSet)) {
+			throw new ResultSetException(
+					"Sort-merge join requires a file result set");
+		}
+		FileResultSet output = (FileResultSet) result.getData();
+
+		ResultSet leftResultSet = (ResultSet) join.getObjectValues().get(
+				"LeftResultSet");
+		String leftColumn = join.getStringValues().get("LeftColumn");
+		ResultSet rightResultSet = (ResultSet) join.getObjectValues().get(
+				"RightResultSet");
+		String rightColumn = join.getStringValues().get("RightColumn");
+		boolean leftJoin = "LEFT".equalsIgnoreCase(join.getStringValues().get(
+				"JoinType"));
+		boolean presorted = Boolean.valueOf(join.getStringValues().get(
+				"Presorted"));
+
+		JoinUtilities.checkKeyTypes(leftResultSet.getColumns(), leftColumn,
+				rightResultSet.getColumns(), rightColumn);
+
+		FileResultSet sortedLeft = null;
+		FileResultSet sortedRight = null;
+		try {
+			// Sort any inputs that are not already sorted on the key
+			if (!isSorted(leftResultSet, leftColumn, presorted)) {
+				sortedLeft = ExternalSort.sort(leftResultSet, leftColumn,
+						result.getResultSetLocation() + ".left");
+				leftResultSet = sortedLeft;
+			}
+			if (!isSorted(rightResultSet, rightColumn, presorted)) {
+				sortedRight = ExternalSort.sort(rightResultSet, rightColumn,
+						result.getResultSetLocation() + ".right");
+				rightResultSet = sortedRight;
+			}
+
+			JoinUtilities.appendColumns(output, leftResultSet.getColumns(),
+					rightResultSet.getColumns());
+			merge(new RowCursor(leftResultSet, leftColumn, true),
+					new RowCursor(rightResultSet, rightColumn, true),
+					new ResultSetWriter(output), leftJoin);
+
+		} finally {
+			if (sortedLeft != null) {
+				JoinUtilities.delete(sortedLeft);
+			}
+			if (sortedRight != null) {
+				JoinUtilities.delete(sortedRight);
+			}
+		}
+
+		output.setMetadata(JoinUtilities.SORTED_BY, leftColumn);
+		output.merge();
+
+		result.setResultStatus(ResultStatus.COMPLETE);
+		return result;
+	}
+
+	/**
+	 * Returns true if the result set is recorded as sorted on the column, or
+	 * is stated to be presorted and a read through it confirms it
+	 */
+	private boolean isSorted(ResultSet resultSet, String column,
+			boolean presorted) throws ResultSetException {
+		if (JoinUtilities.isSortedOn(resultSet, column)) {
+			return true;
+		}
+		return presorted && JoinUtilities.isSorted(resultSet, column);
+	}
+
+	/**
+	 * Merges two cursors sorted on their keys writing the joined rows out
+	 *
+	 * @param left
+	 *            Left cursor
+	 * @param right
+	 *            Right cursor
+	 * @param writer
+	 *            Output writer
+	 * @param leftJoin
+	 *            Keep left rows with no match
+	 * @throws ResultSetException
+	 *             An error occurred reading or writing a row
+	 * @throws PersistableException
+	 *             An error occurred persisting the output
+	 */
+	private void merge(RowCursor left, RowCursor right, ResultSetWriter writer,
+			boolean leftJoin) throws ResultSetException, PersistableException {
+		Object[] emptyRight = new Object[right.getResultSet().getColumnSize()];
+		List<Object[]> group = new ArrayList<Object[]>();
+		Object groupKey = null;
+
+		boolean hasLeft = left.next();
+		boolean hasRight = right.next();
+		while (hasLeft) {
+			Object key = left.getKey();
+
+			// Collect the right rows that match the new key
+			if ((key != null)
+					&& (group.isEmpty() || JoinUtilities.compare(groupKey, key) != 0)) {
+				group.clear();
+				while (hasRight
+						&& JoinUtilities.compare(right.getKey(), key) < 0) {
+					hasRight = right.next();
+				}
+				while (hasRight
+						&& JoinUtilities.compare(right.getKey(), key) == 0) {
+					group.add(right.getValues());
+					hasRight = right.next();
+				}
+				groupKey = key;
+			}
+
+			if ((key != null) && !group.isEmpty()) {
+				for (Object[] rightValues : group) {
+					writer.write(concat(left.getValues(), rightValues));
+				}
+			} else if (leftJoin) {
+				writer.write(concat(left.getValues(), emptyRight));
+			}
+
+			hasLeft = left.next();
+		}
+		writer.flush();
+	}
+
+	private Object[] concat(Object[] left, Object[] right) {
+		Object[] values = new Object[left.length + right.length];
+		System.arraycopy(left, 0, values, 0, left.length);
+		System.arraycopy(right, 0, values, left.length, right.length);
+		return values;
+	}
+
+	@Override
+	public Result getResults(Result result) {
+		return result;
+	}
+
+	@Override
+	public ResultDataType getJoinDataType() {
+		return ResultDataType.TABULAR;
+	}
+}
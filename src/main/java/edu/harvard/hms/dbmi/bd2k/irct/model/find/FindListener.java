@@ -0,0 +1,55 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.find;
+
+import java.util.List;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
+
+/**
+ * Receives the matches of a search as each resource answers, so they can be
+ * passed on before the slower resources have finished
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public interface FindListener {
+	/**
+	 * Receives a batch of matches from a resource. A resource may pass its
+	 * matches in more than one batch.
+	 *
+	 * @param resourceName
+	 *            Name of the resource
+	 * @param matches
+	 *            Matches
+	 */
+	void matchesFound(String resourceName, List<Entity> matches);
+
+	/**
+	 * Called when a resource did not answer before its deadline
+	 *
+	 * @param resourceName
+	 *            Name of the resource
+	 */
+	default void resourceTimedOut(String resourceName) {
+	}
+
+	/**
+	 * Called when the search of a resource failed
+	 *
+	 * @param resourceName
+	 *            Name of the resource
+	 */
+	default void resourceFailed(String resourceName) {
+	}
+
+	/**
+	 * Called once every resource has answered, timed out or failed
+	 *
+	 * @param results
+	 *            Results of the search
+	 */
+	default void searchFinished(FindResults results) {
+	}
+}
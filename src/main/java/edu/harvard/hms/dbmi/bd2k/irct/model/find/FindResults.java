@@ -0,0 +1,91 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.find;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
+
+/**
+ * The results of searching one or more resources for a term. Resources that
+ * did not answer before their deadline or failed are listed so the caller
+ * knows the matches may be partial.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class FindResults {
+	private List<Entity> matches = new ArrayList<Entity>();
+	private List<String> timedOutResources = new ArrayList<String>();
+	private List<String> failedResources = new ArrayList<String>();
+
+	/**
+	 * Returns true if every resource answered in time
+	 *
+	 * @return Complete
+	 */
+	public boolean isComplete() {
+		return timedOutResources.isEmpty() && failedResources.isEmpty();
+	}
+
+	/**
+	 * Returns the matches from the resources that answered in time
+	 *
+	 * @return Matches
+	 */
+	public List<Entity> getMatches() {
+		return matches;
+	}
+
+	/**
+	 * Sets the matches
+	 *
+	 * @param matches
+	 *            Matches
+	 */
+	public void setMatches(List<Entity> matches) {
+		this.matches = matches;
+	}
+
+	/**
+	 * Returns the names of the resources that did not answer before their
+	 * deadline
+	 *
+	 * @return Resource names
+	 */
+	public List<String> getTimedOutResources() {
+		return timedOutResources;
+	}
+
+	/**
+	 * Sets the names of the resources that did not answer before their
+	 * deadline
+	 *
+	 * @param timedOutResources
+	 *            Resource names
+	 */
+	public void setTimedOutResources(List<String> timedOutResources) {
+		this.timedOutResources = timedOutResources;
+	}
+
+	/**
+	 * Returns the names of the resources that failed
+	 *
+	 * @return Resource names
+	 */
+	public List<String> getFailedResources() {
+		return failedResources;
+	}
+
+	/**
+	 * Sets the names of the resources that failed
+	 *
+	 * @param failedResources
+	 *            Resource names
+	 */
+	public void setFailedResources(List<String> failedResources) {
+		this.failedResources = failedResources;
+	}
+}
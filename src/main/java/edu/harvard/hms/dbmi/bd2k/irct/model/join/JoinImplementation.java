@@ -41,4 +41,15 @@ public interface JoinImplementation {
 	 */
 	ResultDataType getJoinDataType();
 	
+	/**
+	 * Returns true if the join can read the given result set field from a
+	 * row channel while the result is still being produced. The channel is
+	 * passed in the object values of the join in place of the result set.
+	 * 
+	 * @param field Field path
+	 * @return Accepts a channel
+	 */
+	default boolean acceptsChannel(String field) {
+		return false;
+	}
 }
@@ -0,0 +1,162 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.query;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+
+/**
+ * Maps the key of a query to the result of running it, so the result can be
+ * returned again for the same query until it expires
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+@Entity
+@Table(indexes = { @Index(columnList = "cacheKey"),
+		@Index(columnList = "resourceName") })
+public class QueryCacheEntry {
+	@Id
+	@GeneratedValue
+	private Long id;
+
+	@Column(length = 64)
+	private String cacheKey;
+
+	private String resourceName;
+
+	@ManyToOne
+	private Result result;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date created;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date expires;
+
+	/**
+	 * Returns the id of the entry
+	 *
+	 * @return Id
+	 */
+	public Long getId() {
+		return id;
+	}
+
+	/**
+	 * Sets the id of the entry
+	 *
+	 * @param id
+	 *            Id
+	 */
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	/**
+	 * Returns the key of the query
+	 *
+	 * @return Cache key
+	 */
+	public String getCacheKey() {
+		return cacheKey;
+	}
+
+	/**
+	 * Sets the key of the query
+	 *
+	 * @param cacheKey
+	 *            Cache key
+	 */
+	public void setCacheKey(String cacheKey) {
+		this.cacheKey = cacheKey;
+	}
+
+	/**
+	 * Returns the name of the resource the query was run on
+	 *
+	 * @return Resource name
+	 */
+	public String getResourceName() {
+		return resourceName;
+	}
+
+	/**
+	 * Sets the name of the resource the query was run on
+	 *
+	 * @param resourceName
+	 *            Resource name
+	 */
+	public void setResourceName(String resourceName) {
+		this.resourceName = resourceName;
+	}
+
+	/**
+	 * Returns the result of the query
+	 *
+	 * @return Result
+	 */
+	public Result getResult() {
+		return result;
+	}
+
+	/**
+	 * Sets the result of the query
+	 *
+	 * @param result
+	 *            Result
+	 */
+	public void setResult(Result result) {
+		this.result = result;
+	}
+
+	/**
+	 * Returns when the entry was created
+	 *
+	 * @return Created
+	 */
+	public Date getCreated() {
+		return created;
+	}
+
+	/**
+	 * Sets when the entry was created
+	 *
+	 * @param created
+	 *            Created
+	 */
+	public void setCreated(Date created) {
+		this.created = created;
+	}
+
+	/**
+	 * Returns when the entry expires
+	 *
+	 * @return Expires
+	 */
+	public Date getExpires() {
+		return expires;
+	}
+
+	/**
+	 * Sets when the entry expires
+	 *
+	 * @param expires
+	 *            Expires
+	 */
+	public void setExpires(Date expires) {
+		this.expires = expires;
+	}
+}
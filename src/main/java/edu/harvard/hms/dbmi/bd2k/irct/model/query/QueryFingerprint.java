@@ -0,0 +1,278 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.query;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.LogicalOperator;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+
+/**
+ * Creates a canonical representation of a query. Two queries that ask for the
+ * same thing have the same canonical representation, regardless of the ids
+ * of their clauses or the order of their values, subqueries and resources.
+ *
+ * The select, sort and join clauses are kept in order as their order changes
+ * the result. The where clauses are sorted if they are all combined with AND,
+ * otherwise their order is kept as well.
+ *
+ * Every name and value is written with its length in front of it, so two
+ * different queries can not have the same representation whatever
+ * characters their values contain. Object values can not be compared, so a
+ * query with any object values has no canonical representation and is never
+ * shared or cached.
+ *
+ * The canonical representation is hashed with SHA-256 to give a key that can
+ * be used to cache the results of the query.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class QueryFingerprint {
+
+	/**
+	 * Returns the canonical representation of the query
+	 *
+	 * @param query
+	 *            Query
+	 * @return Canonical representation, or null if the query has object
+	 *         values
+	 */
+	public static String canonicalize(Query query) {
+		if (hasObjectValues(query)) {
+			return null;
+		}
+		StringBuilder builder = new StringBuilder();
+		append(builder, query);
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the canonical representation of the query
+	 * as a hexadecimal string
+	 *
+	 * @param query
+	 *            Query
+	 * @return Key, or null if the query has object values
+	 */
+	public static String getKey(Query query) {
+		String canonical = canonicalize(query);
+		if (canonical == null) {
+			return null;
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+					canonical.getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder();
+			for (byte value : digest) {
+				key.append(Character.forDigit((value >> 4) & 0xF, 16));
+				key.append(Character.forDigit(value & 0xF, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns true if any clause of the query or its subqueries has object
+	 * values
+	 *
+	 * @param query
+	 *            Query
+	 * @return Has object values
+	 */
+	public static boolean hasObjectValues(Query query) {
+		for (SubQuery subQuery : query.getSubQueries().values()) {
+			if (hasObjectValues(subQuery)) {
+				return true;
+			}
+		}
+		for (ClauseAbstract clause : query.getClauses().values()) {
+			Map<String, Object> objectValues = null;
+			if (clause instanceof WhereClause) {
+				objectValues = ((WhereClause) clause).getObjectValues();
+				if (((WhereClause) clause).getSubQuery() != null
+						&& hasObjectValues(((WhereClause) clause)
+								.getSubQuery())) {
+					return true;
+				}
+			} else if (clause instanceof SelectClause) {
+				objectValues = ((SelectClause) clause).getObjectValues();
+			} else if (clause instanceof SortClause) {
+				objectValues = ((SortClause) clause).getObjectValues();
+			} else if (clause instanceof JoinClause) {
+				objectValues = ((JoinClause) clause).getObjectValues();
+			}
+			if (objectValues != null && !objectValues.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void append(StringBuilder builder, Query query) {
+		TreeSet<String> resourceNames = new TreeSet<String>();
+		for (Resource resource : query.getResources()) {
+			resourceNames.add(resource.getName());
+		}
+		builder.append("resources[").append(resourceNames.size());
+		for (String resourceName : resourceNames) {
+			builder.append(',');
+			appendValue(builder, resourceName);
+		}
+		builder.append(']');
+
+		TreeMap<String, SubQuery> subQueries = new TreeMap<String, SubQuery>(
+				query.getSubQueries());
+		for (Map.Entry<String, SubQuery> subQuery : subQueries.entrySet()) {
+			builder.append("subquery[");
+			appendValue(builder, subQuery.getKey());
+			builder.append("]{");
+			append(builder, subQuery.getValue());
+			builder.append('}');
+		}
+
+		List<WhereClause> whereClauses = new ArrayList<WhereClause>();
+		boolean conjunction = true;
+		for (ClauseAbstract clause : query.getClauses().values()) {
+			if (clause instanceof WhereClause) {
+				WhereClause where = (WhereClause) clause;
+				if (!whereClauses.isEmpty()
+						&& where.getLogicalOperator() != null
+						&& where.getLogicalOperator() != LogicalOperator.AND) {
+					conjunction = false;
+				}
+				whereClauses.add(where);
+			} else {
+				append(builder, clause);
+			}
+		}
+
+		// The operators of a conjunction are all AND so they are left out
+		List<String> wheres = new ArrayList<String>();
+		for (WhereClause where : whereClauses) {
+			StringBuilder whereBuilder = new StringBuilder();
+			append(whereBuilder, where, !conjunction);
+			wheres.add(whereBuilder.toString());
+		}
+		if (conjunction) {
+			Collections.sort(wheres);
+		}
+		for (String where : wheres) {
+			builder.append(where);
+		}
+	}
+
+	private static void append(StringBuilder builder, WhereClause where,
+			boolean operator) {
+		builder.append("where[");
+		if (operator) {
+			appendValue(builder, where.getLogicalOperator() == null ? null
+					: where.getLogicalOperator().name());
+			builder.append(',');
+		}
+		appendValue(builder, getPui(where.getField()));
+		builder.append(',');
+		appendValue(builder, where.getPredicateType() == null ? null : where
+				.getPredicateType().getName());
+		builder.append(',');
+		appendValues(builder, where.getStringValues());
+		if (where.getSubQuery() != null) {
+			builder.append(",{");
+			append(builder, where.getSubQuery());
+			builder.append('}');
+		}
+		builder.append(']');
+	}
+
+	private static void append(StringBuilder builder, ClauseAbstract clause) {
+		if (clause instanceof SelectClause) {
+			SelectClause select = (SelectClause) clause;
+			builder.append("select[");
+			appendValue(builder, getPui(select.getParameter()));
+			builder.append(',');
+			appendValue(builder, select.getAlias());
+			builder.append(',');
+			appendValue(builder, select.getOperationType() == null ? null
+					: select.getOperationType().getName());
+			builder.append(',');
+			appendValues(builder, select.getStringValues());
+			builder.append(']');
+		} else if (clause instanceof SortClause) {
+			SortClause sort = (SortClause) clause;
+			builder.append("sort[");
+			appendValue(builder, getPui(sort.getParameter()));
+			builder.append(',');
+			appendValue(builder, sort.getOperationType() == null ? null : sort
+					.getOperationType().getName());
+			builder.append(',');
+			appendValues(builder, sort.getStringValues());
+			builder.append(']');
+		} else if (clause instanceof JoinClause) {
+			JoinClause join = (JoinClause) clause;
+			builder.append("join[");
+			appendValue(builder, getPui(join.getField()));
+			builder.append(',');
+			appendValue(builder, join.getJoinType() == null ? null : join
+					.getJoinType().getName());
+			builder.append(',');
+			appendValues(builder, join.getStringValues());
+			builder.append(']');
+		} else {
+			builder.append("clause[");
+			appendValue(builder, clause.getClass().getName());
+			builder.append(']');
+		}
+	}
+
+	/**
+	 * Appends a value with its length in front of it, or a dash if it is null
+	 */
+	private static void appendValue(StringBuilder builder, String value) {
+		if (value == null) {
+			builder.append('-');
+			return;
+		}
+		builder.append(value.length()).append(':').append(value);
+	}
+
+	/**
+	 * Appends the number of values followed by each name and value, sorted by
+	 * name
+	 */
+	private static void appendValues(StringBuilder builder,
+			Map<String, String> values) {
+		if (values == null) {
+			builder.append('-');
+			return;
+		}
+		TreeMap<String, String> sorted = new TreeMap<String, String>(values);
+		builder.append('{').append(sorted.size());
+		for (Map.Entry<String, String> value : sorted.entrySet()) {
+			builder.append(',');
+			appendValue(builder, value.getKey());
+			builder.append('=');
+			appendValue(builder, value.getValue());
+		}
+		builder.append('}');
+	}
+
+	private static String getPui(Entity entity) {
+		if (entity == null) {
+			return null;
+		}
+		return entity.getPui();
+	}
+}
@@ -0,0 +1,414 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.OntologyRelationship;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * Caches the entities returned by traversing the paths of a resource, so
+ * browsing the same part of the ontology again does not call the resource.
+ * Entries are keyed by the path, the relationship and the user, so one user
+ * is never given the paths another user was shown. Resources that return the
+ * same paths to every user can share their entries between users.
+ *
+ * The cache is bounded by the total number of entities it holds and evicts
+ * the least recently used entries first. An entry is fresh for its time to
+ * live. After that it is stale, and for the stale time it is still returned
+ * while it is refreshed from the resource in the background. Entries older
+ * than that are loaded again before they are returned. If several users ask
+ * for a path that is not cached at the same time it is only loaded once, and
+ * they all wait on that load.
+ *
+ * Each resource can configure its cache with the following parameters, times
+ * are in milliseconds:
+ *
+ * pathCacheTimeToLive - Time an entry is fresh, 0 disables the cache (600000)
+ * pathCacheStaleTime - Time a stale entry is returned while it is refreshed (3600000)
+ * pathCacheMaxSize - Entities held by the cache (100000)
+ * pathCachePerUser - Whether entries are kept per user, false shares them (true)
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class PathCache {
+	private static final ConcurrentHashMap<String, PathCache> CACHES = new ConcurrentHashMap<String, PathCache>();
+	private static final Logger LOGGER = Logger.getLogger(PathCache.class
+			.getName());
+
+	private final String name;
+	private final long timeToLive;
+	private final long staleTime;
+	private final long maxSize;
+	private final boolean perUser;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private final Map<String, CompletableFuture<List<Entity>>> loading = new HashMap<String, CompletableFuture<List<Entity>>>();
+	private long size;
+	private long generation;
+
+	/**
+	 * Creates a cache for the resource from its parameters
+	 *
+	 * @param name
+	 *            Resource name
+	 * @param parameters
+	 *            Resource parameters
+	 */
+	public PathCache(String name, Map<String, String> parameters) {
+		this.name = name;
+		this.timeToLive = getParameter(parameters, "pathCacheTimeToLive",
+				600000);
+		this.staleTime = Math.max(
+				getParameter(parameters, "pathCacheStaleTime", 3600000), 0);
+		this.maxSize = getParameter(parameters, "pathCacheMaxSize", 100000);
+		String perUserParameter = parameters == null ? null : parameters
+				.get("pathCachePerUser");
+		this.perUser = perUserParameter == null
+				|| Boolean.parseBoolean(perUserParameter.trim());
+	}
+
+	/**
+	 * Returns the cache of a resource, creating it from the resource
+	 * parameters the first time
+	 *
+	 * @param resource
+	 *            Resource
+	 * @return Cache
+	 */
+	public static PathCache get(Resource resource) {
+		PathCache cache = CACHES.get(resource.getName());
+		if (cache == null) {
+			cache = new PathCache(resource.getName(), resource.getParameters());
+			PathCache existing = CACHES.putIfAbsent(resource.getName(), cache);
+			if (existing != null) {
+				cache = existing;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the entities related to the path. They are returned from the
+	 * cache if it holds them, otherwise they are loaded and cached.
+	 *
+	 * @param path
+	 *            Path
+	 * @param relationship
+	 *            Relationship
+	 * @param session
+	 *            Session the paths are traversed in
+	 * @param loader
+	 *            Loads the entities from the resource
+	 * @return Entities
+	 * @throws ResourceInterfaceException
+	 *             The entities could not be loaded
+	 */
+	public List<Entity> get(Entity path, OntologyRelationship relationship,
+			SecureSession session, AsyncExecution.Task<List<Entity>> loader)
+			throws ResourceInterfaceException {
+		if (!isEnabled()) {
+			return loader.call();
+		}
+		String key = getKey(path, relationship, session);
+		long now = System.currentTimeMillis();
+		Entry stale = null;
+		boolean refresh = false;
+		long loadGeneration;
+		CompletableFuture<List<Entity>> load = null;
+		CompletableFuture<List<Entity>> inFlight = null;
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				long age = now - entry.loadedAt;
+				if (age < timeToLive) {
+					return new ArrayList<Entity>(entry.entities);
+				}
+				if (age < timeToLive + staleTime) {
+					stale = entry;
+					refresh = !entry.refreshing;
+					entry.refreshing = true;
+				} else {
+					removeEntry(key);
+				}
+			}
+			loadGeneration = generation;
+			if (stale == null) {
+				inFlight = loading.get(key);
+				if (inFlight == null) {
+					load = new CompletableFuture<List<Entity>>();
+					loading.put(key, load);
+				}
+			}
+		}
+
+		if (stale != null) {
+			if (refresh) {
+				final Entry refreshed = stale;
+				AsyncExecution.getDefaultExecutor().execute(
+						() -> refresh(key, refreshed, loader));
+			}
+			return new ArrayList<Entity>(stale.entities);
+		}
+
+		if (inFlight != null) {
+			List<Entity> entities = AsyncExecution.await(inFlight);
+			return entities == null ? null : new ArrayList<Entity>(entities);
+		}
+
+		List<Entity> entities;
+		try {
+			entities = loader.call();
+		} catch (Throwable e) {
+			synchronized (this) {
+				loading.remove(key, load);
+			}
+			load.completeExceptionally(e);
+			throw e;
+		}
+		synchronized (this) {
+			loading.remove(key, load);
+			if (entities != null && loadGeneration == generation) {
+				put(key, entities);
+			}
+		}
+		load.complete(entities == null ? null : new ArrayList<Entity>(
+				entities));
+		return entities;
+	}
+
+	/**
+	 * Returns the entities related to the path if the cache holds them and
+	 * they are fresh
+	 *
+	 * @param path
+	 *            Path
+	 * @param relationship
+	 *            Relationship
+	 * @param session
+	 *            Session the paths are traversed in
+	 * @return Entities, or null if they are not cached
+	 */
+	public List<Entity> getIfPresent(Entity path,
+			OntologyRelationship relationship, SecureSession session) {
+		if (!isEnabled()) {
+			return null;
+		}
+		String key = getKey(path, relationship, session);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry == null
+					|| System.currentTimeMillis() - entry.loadedAt >= timeToLive) {
+				return null;
+			}
+			return new ArrayList<Entity>(entry.entities);
+		}
+	}
+
+	/**
+	 * Caches the entities related to the path that were loaded outside of the
+	 * cache
+	 *
+	 * @param path
+	 *            Path
+	 * @param relationship
+	 *            Relationship
+	 * @param session
+	 *            Session the paths were traversed in
+	 * @param entities
+	 *            Entities
+	 */
+	public void put(Entity path, OntologyRelationship relationship,
+			SecureSession session, List<Entity> entities) {
+		if (!isEnabled() || entities == null) {
+			return;
+		}
+		String key = getKey(path, relationship, session);
+		synchronized (this) {
+			put(key, entities);
+		}
+	}
+
+	/**
+	 * Returns true if the cache holds entries. It is disabled by a time to
+	 * live or maximum size of 0.
+	 *
+	 * @return Enabled
+	 */
+	public boolean isEnabled() {
+		return timeToLive > 0 && maxSize > 0;
+	}
+
+	/**
+	 * Removes every entry of the cache
+	 */
+	public synchronized void invalidate() {
+		entries.clear();
+		loading.clear();
+		size = 0;
+		generation++;
+	}
+
+	/**
+	 * Removes the entries of a path for every relationship and user
+	 *
+	 * @param path
+	 *            Path
+	 */
+	public synchronized void invalidate(Entity path) {
+		String suffix = "\n" + getPui(path);
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Entry> entry = iterator.next();
+			if (entry.getKey().endsWith(suffix)) {
+				size -= entry.getValue().size;
+				iterator.remove();
+			}
+		}
+		// Later requests load the path again rather than waiting on a load
+		// that started before it changed
+		Iterator<String> loadingKeys = loading.keySet().iterator();
+		while (loadingKeys.hasNext()) {
+			if (loadingKeys.next().endsWith(suffix)) {
+				loadingKeys.remove();
+			}
+		}
+		generation++;
+	}
+
+	/**
+	 * Removes the cache of the resource so it is created again from the
+	 * resource parameters
+	 *
+	 * @param resourceName
+	 *            Resource name
+	 */
+	public static void remove(String resourceName) {
+		PathCache cache = CACHES.remove(resourceName);
+		if (cache != null) {
+			cache.invalidate();
+		}
+	}
+
+	/**
+	 * Returns the number of entities held by the cache
+	 *
+	 * @return Size
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private void refresh(String key, Entry entry,
+			AsyncExecution.Task<List<Entity>> load) {
+		try {
+			List<Entity> entities = load.call();
+			synchronized (this) {
+				if (entities != null && entries.get(key) == entry) {
+					put(key, entities);
+					return;
+				}
+			}
+		} catch (ResourceInterfaceException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "Unable to refresh path " + key + " of "
+					+ name, e);
+		}
+		synchronized (this) {
+			entry.refreshing = false;
+		}
+	}
+
+	/**
+	 * Adds an entry, then evicts the least recently used entries while the
+	 * cache holds too many entities
+	 */
+	private void put(String key, List<Entity> entities) {
+		removeEntry(key);
+		Entry entry = new Entry(new ArrayList<Entity>(entities),
+				System.currentTimeMillis());
+		if (entry.size > maxSize) {
+			return;
+		}
+		entries.put(key, entry);
+		size += entry.size;
+
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (size > maxSize && iterator.hasNext()) {
+			size -= iterator.next().size;
+			iterator.remove();
+		}
+	}
+
+	private void removeEntry(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			size -= entry.size;
+		}
+	}
+
+	private String getKey(Entity path, OntologyRelationship relationship,
+			SecureSession session) {
+		String user = "";
+		if (perUser && session != null && session.getUser() != null) {
+			user = session.getUser().getUserId();
+		}
+		return user + "\n"
+				+ (relationship == null ? null : relationship.getName()) + "\n"
+				+ getPui(path);
+	}
+
+	private static String getPui(Entity path) {
+		if (path == null) {
+			return null;
+		}
+		return path.getPui();
+	}
+
+	private static long getParameter(Map<String, String> parameters,
+			String name, long defaultValue) {
+		if (parameters == null || !parameters.containsKey(name)) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(parameters.get(name).trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * The cached entities of a path. The size of an entry counts the entry
+	 * itself so empty entries are bounded as well.
+	 */
+	private static class Entry {
+		private final List<Entity> entities;
+		private final long loadedAt;
+		private final long size;
+		private boolean refreshing;
+
+		Entry(List<Entity> entities, long loadedAt) {
+			this.entities = entities;
+			this.loadedAt = loadedAt;
+			this.size = entities.size() + 1;
+		}
+	}
+}
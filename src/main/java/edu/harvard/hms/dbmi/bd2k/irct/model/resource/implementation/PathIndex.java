@@ -0,0 +1,486 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
+import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindByOntology;
+import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindByPath;
+import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindInformationInterface;
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.OntologyRelationship;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * A local search index over the ontology of a resource, so term searches can
+ * be answered without calling the resource.
+ *
+ * The index is built in the background by traversing the paths of the
+ * resource from its root. The name, display name, ontology id and last part
+ * of the pui of each entity are split into lower case words, and the words
+ * are kept in sorted order so a search term matches every word that starts
+ * with it. A search with more than one word matches the entities that have
+ * all of them. Ontology searches match the ontology id of the entity exactly.
+ *
+ * The first search of a resource starts the build using the session of that
+ * search, and is answered by the resource until the index is ready. Once the
+ * index is older than its refresh interval it is rebuilt in the background
+ * while the old index keeps answering. As the index is shared by every user,
+ * it should only be enabled for resources whose ontology is the same for
+ * every user.
+ *
+ * The index is only held in memory. It is not saved, so it is built again
+ * after a restart, and each refresh traverses the whole ontology again
+ * instead of updating the entities that changed. Searches return copies of
+ * the indexed entities, so they can be changed by the caller without
+ * changing the index.
+ *
+ * Each resource can configure its index with the following parameters, times
+ * are in milliseconds:
+ *
+ * searchIndex - Whether searches are answered by the index (false)
+ * searchIndexRelationship - Relationship traversed to find children (CHILD)
+ * searchIndexRefresh - Time before the index is rebuilt (86400000)
+ * searchIndexMaxEntities - Entities held by the index (1000000)
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class PathIndex {
+	private static final ConcurrentHashMap<String, PathIndex> INDEXES = new ConcurrentHashMap<String, PathIndex>();
+	private static final Logger LOGGER = Logger.getLogger(PathIndex.class
+			.getName());
+	private static final long RETRY_DELAY = 60000;
+
+	private final String name;
+	private final boolean enabled;
+	private final String relationshipName;
+	private final long refreshInterval;
+	private final int maxEntities;
+
+	private volatile Snapshot snapshot;
+	private boolean building;
+	private long failedAt;
+	private long generation;
+
+	/**
+	 * Creates an index for the resource from its parameters
+	 *
+	 * @param name
+	 *            Resource name
+	 * @param parameters
+	 *            Resource parameters
+	 */
+	public PathIndex(String name, Map<String, String> parameters) {
+		this.name = name;
+		this.enabled = parameters != null
+				&& Boolean.parseBoolean(parameters.get("searchIndex"));
+		this.relationshipName = parameters != null
+				&& parameters.containsKey("searchIndexRelationship") ? parameters
+				.get("searchIndexRelationship").trim() : "CHILD";
+		this.refreshInterval = getParameter(parameters, "searchIndexRefresh",
+				86400000);
+		this.maxEntities = (int) Math.min(
+				getParameter(parameters, "searchIndexMaxEntities", 1000000),
+				Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the index of a resource, creating it from the resource
+	 * parameters the first time
+	 *
+	 * @param resource
+	 *            Resource
+	 * @return Index
+	 */
+	public static PathIndex get(Resource resource) {
+		PathIndex index = INDEXES.get(resource.getName());
+		if (index == null) {
+			index = new PathIndex(resource.getName(), resource.getParameters());
+			PathIndex existing = INDEXES.putIfAbsent(resource.getName(), index);
+			if (existing != null) {
+				index = existing;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Removes the index of the resource so it is created again from the
+	 * resource parameters
+	 *
+	 * @param resourceName
+	 *            Resource name
+	 */
+	public static void remove(String resourceName) {
+		PathIndex index = INDEXES.remove(resourceName);
+		if (index != null) {
+			index.invalidate();
+		}
+	}
+
+	/**
+	 * Returns the entities that match the find from the index. Starts building
+	 * the index if it does not exist or needs to be refreshed.
+	 *
+	 * @param resource
+	 *            Resource
+	 * @param path
+	 *            Path to search under, or null for the whole resource
+	 * @param findInformation
+	 *            Information for the find
+	 * @param session
+	 *            Session used to build the index
+	 * @return Matches, or null if the index cannot answer the find
+	 */
+	public List<Entity> find(Resource resource, Entity path,
+			FindInformationInterface findInformation, SecureSession session) {
+		if (!enabled
+				|| !(resource.getImplementingInterface() instanceof PathResourceImplementationInterface)) {
+			return null;
+		}
+		Snapshot current = snapshot;
+		if (current == null
+				|| System.currentTimeMillis() - current.builtAt >= refreshInterval) {
+			startBuild(resource, session);
+		}
+		if (current == null) {
+			return null;
+		}
+
+		String pathPui = path == null ? null : path.getPui();
+		if (findInformation instanceof FindByPath) {
+			return current.findTerm(findInformation.getValues().get("term"),
+					pathPui);
+		} else if (findInformation instanceof FindByOntology) {
+			return current.findOntologyId(
+					findInformation.getValues().get("ontologyTerm"),
+					findInformation.getValues().get("ontologyType"), pathPui);
+		}
+		return null;
+	}
+
+	/**
+	 * Drops the index. It is built again by the next search.
+	 */
+	public synchronized void invalidate() {
+		snapshot = null;
+		generation++;
+	}
+
+	/**
+	 * Returns true if the index can answer searches
+	 *
+	 * @return Ready
+	 */
+	public boolean isReady() {
+		return snapshot != null;
+	}
+
+	/**
+	 * Returns the number of entities in the index
+	 *
+	 * @return Size
+	 */
+	public int getSize() {
+		Snapshot current = snapshot;
+		return current == null ? 0 : current.entities.length;
+	}
+
+	private void startBuild(Resource resource, SecureSession session) {
+		final long buildGeneration;
+		synchronized (this) {
+			if (building
+					|| System.currentTimeMillis() - failedAt < RETRY_DELAY) {
+				return;
+			}
+			building = true;
+			buildGeneration = generation;
+		}
+		AsyncExecution.getDefaultExecutor().execute(() -> {
+			Snapshot built = null;
+			try {
+				built = build(resource, session);
+			} catch (ResourceInterfaceException | RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Unable to build the search index of "
+						+ name + ": " + e.getMessage());
+			}
+			synchronized (this) {
+				if (built == null) {
+					failedAt = System.currentTimeMillis();
+				} else if (buildGeneration == generation) {
+					snapshot = built;
+				}
+				building = false;
+			}
+		});
+	}
+
+	/**
+	 * Traverses the paths of the resource breadth first from its root and
+	 * indexes every entity that is found
+	 */
+	private Snapshot build(Resource resource, SecureSession session)
+			throws ResourceInterfaceException {
+		final PathResourceImplementationInterface pathInterface = (PathResourceImplementationInterface) resource
+				.getImplementingInterface();
+		final OntologyRelationship relationship = resource
+				.getRelationshipByName(relationshipName);
+		if (relationship == null) {
+			throw new ResourceInterfaceException("Unknown relationship "
+					+ relationshipName);
+		}
+		ResourceGuard guard = ResourceGuard.get(resource);
+
+		Builder builder = new Builder();
+		Set<String> visited = new HashSet<String>();
+		LinkedList<Entity> pending = new LinkedList<Entity>();
+		pending.add(new Entity("/" + resource.getName()));
+		while (!pending.isEmpty() && builder.size() < maxEntities) {
+			final Entity parent = pending.removeFirst();
+			List<Entity> children = guard.call(() -> pathInterface
+					.getPathRelationship(parent, relationship, session));
+			if (children == null) {
+				continue;
+			}
+			for (Entity child : children) {
+				if (child.getPui() != null && visited.add(child.getPui())
+						&& builder.size() < maxEntities) {
+					builder.add(child);
+					pending.add(child);
+				}
+			}
+		}
+		if (!pending.isEmpty()) {
+			LOGGER.warning("Search index of " + name + " stopped at "
+					+ maxEntities + " entities");
+		}
+		return builder.build();
+	}
+
+	private static List<String> tokenize(String value) {
+		List<String> tokens = new ArrayList<String>();
+		if (value == null) {
+			return tokens;
+		}
+		for (String token : value.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (!token.isEmpty()) {
+				tokens.add(token);
+			}
+		}
+		return tokens;
+	}
+
+	private static String getLastPart(String pui) {
+		String trimmed = pui;
+		while (trimmed.endsWith("/")) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1);
+		}
+		return trimmed.substring(trimmed.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Returns a copy of an indexed entity
+	 */
+	private static Entity copy(Entity entity) {
+		Entity copy = new Entity(entity.getPui());
+		copy.setId(entity.getId());
+		copy.setName(entity.getName());
+		copy.setDisplayName(entity.getDisplayName());
+		copy.setDescription(entity.getDescription());
+		copy.setOntology(entity.getOntology());
+		copy.setOntologyId(entity.getOntologyId());
+		copy.setDataType(entity.getDataType());
+		if (entity.getRelationships() != null) {
+			copy.setRelationships(new ArrayList<OntologyRelationship>(entity
+					.getRelationships()));
+		}
+		if (entity.getCounts() != null) {
+			copy.setCounts(new HashMap<String, Integer>(entity.getCounts()));
+		}
+		if (entity.getAttributes() != null) {
+			copy.setAttributes(new HashMap<String, String>(entity
+					.getAttributes()));
+		}
+		return copy;
+	}
+
+	private static long getParameter(Map<String, String> parameters,
+			String name, long defaultValue) {
+		if (parameters == null || !parameters.containsKey(name)) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(parameters.get(name).trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Collects the entities and their words while the index is built
+	 */
+	private static class Builder {
+		private final List<Entity> entities = new ArrayList<Entity>();
+		private final Map<String, List<Integer>> terms = new HashMap<String, List<Integer>>();
+		private final Map<String, List<Integer>> ontologyIds = new HashMap<String, List<Integer>>();
+
+		int size() {
+			return entities.size();
+		}
+
+		void add(Entity entity) {
+			int id = entities.size();
+			entities.add(entity);
+
+			Set<String> words = new HashSet<String>();
+			words.addAll(tokenize(entity.getName()));
+			words.addAll(tokenize(entity.getDisplayName()));
+			words.addAll(tokenize(entity.getOntologyId()));
+			words.addAll(tokenize(getLastPart(entity.getPui())));
+			for (String word : words) {
+				addPosting(terms, word, id);
+			}
+			if (entity.getOntologyId() != null
+					&& !entity.getOntologyId().isEmpty()) {
+				addPosting(ontologyIds, entity.getOntologyId().toLowerCase(),
+						id);
+			}
+		}
+
+		Snapshot build() {
+			return new Snapshot(entities.toArray(new Entity[entities.size()]),
+					new TreeMap<String, int[]>(compact(terms)),
+					compact(ontologyIds));
+		}
+
+		private static void addPosting(Map<String, List<Integer>> postings,
+				String key, int id) {
+			List<Integer> ids = postings.get(key);
+			if (ids == null) {
+				ids = new ArrayList<Integer>(1);
+				postings.put(key, ids);
+			}
+			ids.add(id);
+		}
+
+		/**
+		 * Converts the postings into sorted arrays of entity ids
+		 */
+		private static Map<String, int[]> compact(
+				Map<String, List<Integer>> postings) {
+			Map<String, int[]> compacted = new HashMap<String, int[]>();
+			for (Map.Entry<String, List<Integer>> posting : postings.entrySet()) {
+				int[] ids = new int[posting.getValue().size()];
+				for (int index = 0; index < ids.length; index++) {
+					ids[index] = posting.getValue().get(index);
+				}
+				compacted.put(posting.getKey(), ids);
+			}
+			return compacted;
+		}
+	}
+
+	/**
+	 * An immutable built index. The posting arrays are sorted by entity id,
+	 * which is the order the entities were found in.
+	 */
+	private static class Snapshot {
+		private final Entity[] entities;
+		private final TreeMap<String, int[]> terms;
+		private final Map<String, int[]> ontologyIds;
+		private final long builtAt = System.currentTimeMillis();
+
+		Snapshot(Entity[] entities, TreeMap<String, int[]> terms,
+				Map<String, int[]> ontologyIds) {
+			this.entities = entities;
+			this.terms = terms;
+			this.ontologyIds = ontologyIds;
+		}
+
+		List<Entity> findTerm(String term, String pathPui) {
+			List<String> words = tokenize(term);
+			if (words.isEmpty()) {
+				return new ArrayList<Entity>();
+			}
+			BitSet matched = null;
+			for (String word : words) {
+				BitSet wordMatches = new BitSet(entities.length);
+				SortedMap<String, int[]> prefixed = terms.subMap(word, word
+						+ Character.MAX_VALUE);
+				for (int[] ids : prefixed.values()) {
+					for (int id : ids) {
+						wordMatches.set(id);
+					}
+				}
+				if (matched == null) {
+					matched = wordMatches;
+				} else {
+					matched.and(wordMatches);
+				}
+			}
+
+			List<Entity> matches = new ArrayList<Entity>();
+			for (int id = matched.nextSetBit(0); id >= 0; id = matched
+					.nextSetBit(id + 1)) {
+				if (isUnder(entities[id], pathPui)) {
+					matches.add(copy(entities[id]));
+				}
+			}
+			return matches;
+		}
+
+		List<Entity> findOntologyId(String ontologyId, String ontologyType,
+				String pathPui) {
+			List<Entity> matches = new ArrayList<Entity>();
+			if (ontologyId == null) {
+				return matches;
+			}
+			int[] ids = ontologyIds.get(ontologyId.toLowerCase());
+			if (ids == null) {
+				return matches;
+			}
+			for (int id : ids) {
+				Entity entity = entities[id];
+				if ((ontologyType == null || ontologyType
+						.equalsIgnoreCase(entity.getOntology()))
+						&& isUnder(entity, pathPui)) {
+					matches.add(copy(entity));
+				}
+			}
+			return matches;
+		}
+
+		/**
+		 * Returns true if the entity is the path or below it. The path must
+		 * end at a segment boundary, so /a/bc is not under /a/b.
+		 */
+		private boolean isUnder(Entity entity, String pathPui) {
+			if (pathPui == null || pathPui.isEmpty()) {
+				return true;
+			}
+			String pui = entity.getPui();
+			if (!pui.startsWith(pathPui)) {
+				return false;
+			}
+			return pui.length() == pathPui.length() || pathPui.endsWith("/")
+					|| pui.charAt(pathPui.length()) == '/';
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+
+/**
+ * Warms the path cache of a resource with the paths a user is likely to
+ * traverse next. When a path is traversed, the entities it returned are
+ * traversed in the background before the user expands them. The entities
+ * that have been traversed most often are prefetched first.
+ *
+ * Prefetching has a budget so it cannot flood the resource. Only a few
+ * entities are prefetched for each traversal, a limited number of prefetches
+ * can run at the same time, and a limited number can be started each minute.
+ * Prefetches wait in a bounded queue; when it is full the oldest are dropped
+ * as the user has most likely moved on, and once the budget for the minute is
+ * spent the queue is dropped.
+ *
+ * Prefetching is off unless a resource sets prefetchChildren. It only warms
+ * the path cache, so it is skipped for resources whose path cache is
+ * disabled.
+ *
+ * Each resource can configure its prefetcher with the following parameters:
+ *
+ * prefetchChildren - Entities prefetched for each traversal, 0 disables it (0)
+ * prefetchConcurrency - Prefetches running at the same time (2)
+ * prefetchQueue - Prefetches waiting to run (50)
+ * prefetchPerMinute - Prefetches started each minute (120)
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class PathPrefetcher {
+	private static final ConcurrentHashMap<String, PathPrefetcher> PREFETCHERS = new ConcurrentHashMap<String, PathPrefetcher>();
+	private static final int MAX_ACCESS_COUNTS = 10000;
+	private static final long MINUTE = 60000;
+
+	private final int maxChildren;
+	private final int maxConcurrent;
+	private final int maxPending;
+	private final int perMinute;
+
+	private final LinkedHashMap<String, Integer> accessCounts = new LinkedHashMap<String, Integer>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_ACCESS_COUNTS;
+		}
+	};
+	private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+	private int workers;
+	private long windowStart;
+	private int windowCount;
+
+	/**
+	 * Creates a prefetcher for the resource from its parameters
+	 *
+	 * @param parameters
+	 *            Resource parameters
+	 */
+	public PathPrefetcher(Map<String, String> parameters) {
+		this.maxChildren = getParameter(parameters, "prefetchChildren", 0);
+		this.maxConcurrent = Math.max(
+				getParameter(parameters, "prefetchConcurrency", 2), 1);
+		this.maxPending = Math.max(
+				getParameter(parameters, "prefetchQueue", 50), 1);
+		this.perMinute = getParameter(parameters, "prefetchPerMinute", 120);
+	}
+
+	/**
+	 * Returns the prefetcher of a resource, creating it from the resource
+	 * parameters the first time
+	 *
+	 * @param resource
+	 *            Resource
+	 * @return Prefetcher
+	 */
+	public static PathPrefetcher get(Resource resource) {
+		PathPrefetcher prefetcher = PREFETCHERS.get(resource.getName());
+		if (prefetcher == null) {
+			prefetcher = new PathPrefetcher(resource.getParameters());
+			PathPrefetcher existing = PREFETCHERS.putIfAbsent(
+					resource.getName(), prefetcher);
+			if (existing != null) {
+				prefetcher = existing;
+			}
+		}
+		return prefetcher;
+	}
+
+	/**
+	 * Removes the prefetcher of the resource so it is created again from the
+	 * resource parameters
+	 *
+	 * @param resourceName
+	 *            Resource name
+	 */
+	public static void remove(String resourceName) {
+		PREFETCHERS.remove(resourceName);
+	}
+
+	/**
+	 * Returns true if entities are prefetched
+	 *
+	 * @return Enabled
+	 */
+	public boolean isEnabled() {
+		return maxChildren > 0;
+	}
+
+	/**
+	 * Records that a path was traversed
+	 *
+	 * @param path
+	 *            Path
+	 */
+	public synchronized void recordAccess(Entity path) {
+		if (path == null || path.getPui() == null) {
+			return;
+		}
+		Integer count = accessCounts.get(path.getPui());
+		accessCounts.put(path.getPui(), count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Returns the number of times a path was traversed
+	 *
+	 * @param path
+	 *            Path
+	 * @return Access count
+	 */
+	public synchronized int getAccessCount(Entity path) {
+		Integer count = accessCounts.get(path.getPui());
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Queues prefetches of the entities returned by a traversal that are not
+	 * cached, most traversed first
+	 *
+	 * @param entities
+	 *            Entities returned by the traversal
+	 * @param cached
+	 *            Tests whether an entity is already cached
+	 * @param load
+	 *            Traverses an entity and caches it
+	 */
+	public void prefetch(List<Entity> entities, Predicate<Entity> cached,
+			final Consumer<Entity> load) {
+		if (maxChildren <= 0 || entities == null || entities.isEmpty()) {
+			return;
+		}
+
+		List<Entity> candidates = new ArrayList<Entity>();
+		synchronized (this) {
+			for (Entity entity : entities) {
+				if (entity.getPui() != null) {
+					candidates.add(entity);
+				}
+			}
+			// Sorting is stable so entities traversed equally often keep
+			// the order the resource returned them in
+			final Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+			for (Entity candidate : candidates) {
+				Integer count = accessCounts.get(candidate.getPui());
+				counts.put(candidate.getPui(), count == null ? 0 : count);
+			}
+			Collections.sort(candidates, (first, second) -> Integer.compare(
+					counts.get(second.getPui()), counts.get(first.getPui())));
+		}
+
+		int queued = 0;
+		for (final Entity candidate : candidates) {
+			if (queued >= maxChildren) {
+				break;
+			}
+			if (!cached.test(candidate)) {
+				enqueue(() -> {
+					if (!cached.test(candidate)) {
+						load.accept(candidate);
+					}
+				});
+				queued++;
+			}
+		}
+	}
+
+	/**
+	 * Queues a prefetch, dropping the oldest one if the queue is full, and
+	 * starts a worker if fewer than the allowed number are running
+	 */
+	private void enqueue(Runnable prefetch) {
+		synchronized (this) {
+			pending.addLast(prefetch);
+			while (pending.size() > maxPending) {
+				pending.removeFirst();
+			}
+			if (workers >= maxConcurrent) {
+				return;
+			}
+			workers++;
+		}
+		try {
+			AsyncExecution.getDefaultExecutor().execute(() -> drain());
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				workers--;
+			}
+		}
+	}
+
+	/**
+	 * Runs queued prefetches until the queue is empty or the budget for the
+	 * current minute has been spent, in which case the queue is dropped
+	 */
+	private void drain() {
+		while (true) {
+			Runnable prefetch;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				if (now - windowStart >= MINUTE) {
+					windowStart = now;
+					windowCount = 0;
+				}
+				if (windowCount >= perMinute) {
+					pending.clear();
+				}
+				if (pending.isEmpty()) {
+					workers--;
+					return;
+				}
+				windowCount++;
+				prefetch = pending.removeFirst();
+			}
+			try {
+				prefetch.run();
+			} catch (RuntimeException e) {
+				// A failed prefetch is retried by the next traversal
+			}
+		}
+	}
+
+	private static int getParameter(Map<String, String> parameters,
+			String name, int defaultValue) {
+		if (parameters == null || !parameters.containsKey(name)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(parameters.get(name).trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
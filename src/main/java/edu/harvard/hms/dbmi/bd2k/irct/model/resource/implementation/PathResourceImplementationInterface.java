@@ -4,6 +4,7 @@
 package edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation;
 
 import java.util.List;
+import java.util.Map;
 
 import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindInformationInterface;
 import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.OntologyRelationship;
@@ -36,6 +37,28 @@ public interface PathResourceImplementationInterface extends
 	List<Entity> getPathRelationship(Entity path, OntologyRelationship relationship, SecureSession session)
 			throws ResourceInterfaceException;
 
+	/**
+	 * Given many paths give all the associated paths of that type of
+	 * relationship for each of them in a single call. Resources that can not
+	 * traverse paths in batches return null, and the paths are traversed one
+	 * at a time instead.
+	 * 
+	 * @param paths
+	 *            Paths
+	 * @param relationship
+	 *            Relationship
+	 * @param session Secure Session
+	 * @return Paths by the pui of the path they are related to, or null if
+	 *         batches are not supported
+	 * @throws ResourceInterfaceException
+	 *             A resource exception occurred
+	 */
+	default Map<String, List<Entity>> getPathRelationships(List<Entity> paths,
+			OntologyRelationship relationship, SecureSession session)
+			throws ResourceInterfaceException {
+		return null;
+	}
+
 	/**
 	 * Given a path find all entities that match the finds
 	 * 
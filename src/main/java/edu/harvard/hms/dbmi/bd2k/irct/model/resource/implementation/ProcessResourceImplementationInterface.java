@@ -3,6 +3,10 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.process.IRCTProcess;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.ResourceState;
@@ -40,6 +44,49 @@ public interface ProcessResourceImplementationInterface extends ResourceImplemen
 	 */ 
 	Result getResults(SecureSession session, Result result) throws ResourceInterfaceException;
 
+	/**
+	 * Returns the results of several processes at once. Resources that can report
+	 * the status of several jobs in one call should override this, by default
+	 * each result is checked in turn.
+	 * 
+	 * @param session Session to run in
+	 * @param results Results
+	 * @return Results in the same order
+	 * @throws ResourceInterfaceException A resource exception occurred
+	 */
+	default List<Result> getResults(SecureSession session, List<Result> results) throws ResourceInterfaceException {
+		List<Result> updated = new ArrayList<Result>();
+		for (Result result : results) {
+			updated.add(getResults(session, result));
+		}
+		return updated;
+	}
+
+	/**
+	 * Returns a future that completes once the process has finished running. The
+	 * future completes with the result in either a complete or error state,
+	 * the same as getResults would return it. Resources that cannot signal
+	 * completion return null and are polled using getResults instead.
+	 * 
+	 * @param session Session to run in
+	 * @param result Results
+	 * @return Future results, or null if the resource must be polled
+	 */
+	default CompletableFuture<Result> getCompletion(SecureSession session, Result result) {
+		return null;
+	}
+
+	/**
+	 * Cancels a running process on the resource. Resources that cannot cancel
+	 * ignore this.
+	 * 
+	 * @param session Session to run in
+	 * @param result Results of the process to cancel
+	 * @throws ResourceInterfaceException A resource exception occurred
+	 */
+	default void cancel(SecureSession session, Result result) throws ResourceInterfaceException {
+	}
+
 	/**
 	 * Returns the state of the resource
 	 * 
@@ -3,6 +3,9 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import edu.harvard.hms.dbmi.bd2k.irct.model.query.Query;
 import edu.harvard.hms.dbmi.bd2k.irct.model.resource.ResourceState;
@@ -23,6 +26,10 @@ public interface QueryResourceImplementationInterface extends
 	/**
 	 * Runs the given query
 	 * 
+	 * Where clauses may carry a semi-join Bloom filter in their object values
+	 * under SemiJoinFilter.SEMI_JOIN_FILTER. Implementations can use it to
+	 * drop rows that cannot match before returning them.
+	 * 
      * @param session Session to run in
 	 * @param qep Query to be run
 	 * @param result Results       
@@ -41,6 +48,49 @@ public interface QueryResourceImplementationInterface extends
 	 */
 	Result getResults(SecureSession session, Result result) throws ResourceInterfaceException;
 
+	/**
+	 * Returns the results of several queries at once. Resources that can report
+	 * the status of several jobs in one call should override this, by default
+	 * each result is checked in turn.
+	 * 
+	 * @param session Session to run in
+	 * @param results Results
+	 * @return Results in the same order
+	 * @throws ResourceInterfaceException A resource exception occurred
+	 */
+	default List<Result> getResults(SecureSession session, List<Result> results) throws ResourceInterfaceException {
+		List<Result> updated = new ArrayList<Result>();
+		for (Result result : results) {
+			updated.add(getResults(session, result));
+		}
+		return updated;
+	}
+
+	/**
+	 * Returns a future that completes once the query has finished running. The
+	 * future completes with the result in either a complete or error state,
+	 * the same as getResults would return it. Resources that cannot signal
+	 * completion return null and are polled using getResults instead.
+	 * 
+	 * @param session Session to run in
+	 * @param result Results
+	 * @return Future results, or null if the resource must be polled
+	 */
+	default CompletableFuture<Result> getCompletion(SecureSession session, Result result) {
+		return null;
+	}
+
+	/**
+	 * Cancels a running query on the resource. Resources that cannot cancel
+	 * ignore this.
+	 * 
+	 * @param session Session to run in
+	 * @param result Results of the query to cancel
+	 * @throws ResourceInterfaceException A resource exception occurred
+	 */
+	default void cancel(SecureSession session, Result result) throws ResourceInterfaceException {
+	}
+
 	/**
 	 * Returns the state of the resource
 	 * 
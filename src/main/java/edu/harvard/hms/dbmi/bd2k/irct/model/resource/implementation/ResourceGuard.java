@@ -0,0 +1,348 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+
+/**
+ * Guards the calls made into a resource implementation with a bulkhead and a
+ * circuit breaker, so a slow or failing resource cannot tie up every thread.
+ *
+ * The bulkhead limits the number of calls in flight to the resource. A call
+ * that cannot get a slot within the wait timeout fails. Calls can also be
+ * given a timeout after which they are interrupted. A call that timed out
+ * keeps its slot until it has actually ended.
+ *
+ * The circuit breaker records the outcome of the most recent calls. Calls
+ * that fail, return a result with an error status, or take longer than the
+ * slow call threshold count as failures.
+ * Once enough calls have been made and the failure rate reaches the
+ * threshold the circuit opens and calls fail immediately. After the open
+ * duration a single trial call is let through; if it succeeds the circuit
+ * closes again, otherwise it stays open.
+ *
+ * Each resource can configure its guard with the following parameters, times
+ * are in milliseconds:
+ *
+ * maxConcurrentCalls - Calls in flight (32)
+ * bulkheadTimeout - Time to wait for a slot (5000)
+ * callTimeout - Time before a call is interrupted, 0 for none (0)
+ * failureRateThreshold - Percentage of failed calls that opens the circuit (50)
+ * slowCallThreshold - Calls that take longer count as failures (60000)
+ * minimumCalls - Calls recorded before the circuit can open (10)
+ * circuitWindow - Number of recent calls recorded (20)
+ * openCircuitDuration - Time the circuit stays open (30000)
+ *
+ * The guard is created again when the parameters of the resource change.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class ResourceGuard {
+	private static final ConcurrentHashMap<String, ResourceGuard> GUARDS = new ConcurrentHashMap<String, ResourceGuard>();
+
+	/**
+	 * The states of the circuit
+	 *
+	 * CLOSED - Calls are let through
+	 * OPEN - Calls fail immediately
+	 * HALF_OPEN - A trial call is let through
+	 */
+	public enum CircuitState {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	private final String name;
+	private final Map<String, String> parameters;
+	private final int maxConcurrentCalls;
+	private final Semaphore bulkhead;
+	private final long bulkheadTimeout;
+	private final long callTimeout;
+	private final int failureRateThreshold;
+	private final long slowCallThreshold;
+	private final int minimumCalls;
+	private final long openCircuitDuration;
+
+	private final boolean[] window;
+	private int windowIndex;
+	private int recordedCalls;
+	private int failedCalls;
+	private CircuitState state = CircuitState.CLOSED;
+	private long openedAt;
+	private boolean trialInFlight;
+
+	/**
+	 * Creates a guard for the resource from its parameters
+	 *
+	 * @param name
+	 *            Resource name
+	 * @param parameters
+	 *            Resource parameters
+	 */
+	public ResourceGuard(String name, Map<String, String> parameters) {
+		this.name = name;
+		this.parameters = parameters == null ? new HashMap<String, String>()
+				: new HashMap<String, String>(parameters);
+		this.maxConcurrentCalls = Math.max(
+				getParameter(parameters, "maxConcurrentCalls", 32), 1);
+		this.bulkhead = new Semaphore(maxConcurrentCalls, true);
+		this.bulkheadTimeout = getParameter(parameters, "bulkheadTimeout", 5000);
+		this.callTimeout = getParameter(parameters, "callTimeout", 0);
+		this.failureRateThreshold = getParameter(parameters,
+				"failureRateThreshold", 50);
+		this.slowCallThreshold = getParameter(parameters,
+				"slowCallThreshold", 60000);
+		this.minimumCalls = getParameter(parameters, "minimumCalls", 10);
+		this.window = new boolean[Math.max(
+				getParameter(parameters, "circuitWindow", 20), 1)];
+		this.openCircuitDuration = getParameter(parameters,
+				"openCircuitDuration", 30000);
+	}
+
+	/**
+	 * Returns the guard of a resource, creating it from the resource
+	 * parameters the first time and whenever they have changed
+	 *
+	 * @param resource
+	 *            Resource
+	 * @return Guard
+	 */
+	public static ResourceGuard get(Resource resource) {
+		ResourceGuard guard = GUARDS.get(resource.getName());
+		while (guard == null || !guard.isConfiguredBy(resource.getParameters())) {
+			ResourceGuard created = new ResourceGuard(resource.getName(),
+					resource.getParameters());
+			if (guard == null) {
+				ResourceGuard existing = GUARDS.putIfAbsent(
+						resource.getName(), created);
+				guard = existing == null ? created : existing;
+			} else if (GUARDS.replace(resource.getName(), guard, created)) {
+				guard = created;
+			} else {
+				guard = GUARDS.get(resource.getName());
+			}
+		}
+		return guard;
+	}
+
+	/**
+	 * Removes the guard of the resource so it is created again from the
+	 * resource parameters
+	 *
+	 * @param resourceName
+	 *            Resource name
+	 */
+	public static void remove(String resourceName) {
+		GUARDS.remove(resourceName);
+	}
+
+	/**
+	 * Runs a call into the resource
+	 *
+	 * @param call
+	 *            Call
+	 * @return Value returned by the call
+	 * @throws ResourceInterfaceException
+	 *             The call failed, timed out, or was rejected
+	 */
+	public <T> T call(AsyncExecution.Task<T> call)
+			throws ResourceInterfaceException {
+		boolean trial = acquireCircuit();
+		try {
+			if (!bulkhead.tryAcquire(bulkheadTimeout, TimeUnit.MILLISECONDS)) {
+				releaseTrial(trial);
+				throw new ResourceInterfaceException("Resource " + name
+						+ " is busy");
+			}
+		} catch (InterruptedException e) {
+			releaseTrial(trial);
+			Thread.currentThread().interrupt();
+			throw new ResourceInterfaceException("Interrupted waiting for "
+					+ name, e);
+		}
+
+		if (callTimeout > 0) {
+			return invokeWithTimeout(call, trial);
+		}
+
+		long start = System.currentTimeMillis();
+		boolean failed = true;
+		try {
+			T value = call.call();
+			failed = isError(value);
+			return value;
+		} finally {
+			bulkhead.release();
+			record(trial, failed
+					|| (System.currentTimeMillis() - start) > slowCallThreshold);
+		}
+	}
+
+	/**
+	 * Returns the state of the circuit
+	 *
+	 * @return Circuit state
+	 */
+	public synchronized CircuitState getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of calls that are in flight
+	 *
+	 * @return Calls in flight
+	 */
+	public int getCallsInFlight() {
+		return maxConcurrentCalls - bulkhead.availablePermits();
+	}
+
+	/**
+	 * Runs the call on the default executor and interrupts it if it does not
+	 * finish in time. The slot is released by the call itself once it ends,
+	 * so a call that does not stop when it is interrupted still holds it.
+	 */
+	private <T> T invokeWithTimeout(final AsyncExecution.Task<T> call,
+			boolean trial) throws ResourceInterfaceException {
+		final FutureTask<T> task = new FutureTask<T>(() -> call.call());
+		try {
+			AsyncExecution.getDefaultExecutor().execute(() -> {
+				try {
+					task.run();
+				} finally {
+					bulkhead.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			bulkhead.release();
+			record(trial, true);
+			throw new ResourceInterfaceException("Unable to call " + name, e);
+		}
+
+		long start = System.currentTimeMillis();
+		boolean failed = true;
+		try {
+			T value = task.get(callTimeout, TimeUnit.MILLISECONDS);
+			failed = isError(value);
+			return value;
+		} catch (TimeoutException e) {
+			task.cancel(true);
+			throw new ResourceInterfaceException("Call to " + name
+					+ " timed out");
+		} catch (InterruptedException e) {
+			task.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new ResourceInterfaceException("Interrupted calling " + name,
+					e);
+		} catch (ExecutionException e) {
+			throw AsyncExecution.unwrap(e);
+		} finally {
+			record(trial, failed
+					|| (System.currentTimeMillis() - start) > slowCallThreshold);
+		}
+	}
+
+	private boolean isConfiguredBy(Map<String, String> resourceParameters) {
+		if (resourceParameters == null) {
+			return parameters.isEmpty();
+		}
+		return parameters.equals(resourceParameters);
+	}
+
+	private static boolean isError(Object value) {
+		return (value instanceof Result)
+				&& (((Result) value).getResultStatus() == ResultStatus.ERROR);
+	}
+
+	private synchronized boolean acquireCircuit()
+			throws ResourceInterfaceException {
+		if (state == CircuitState.OPEN) {
+			if (System.currentTimeMillis() - openedAt < openCircuitDuration) {
+				throw new ResourceInterfaceException("Resource " + name
+						+ " is unavailable");
+			}
+			state = CircuitState.HALF_OPEN;
+		}
+		if (state == CircuitState.HALF_OPEN) {
+			if (trialInFlight) {
+				throw new ResourceInterfaceException("Resource " + name
+						+ " is unavailable");
+			}
+			trialInFlight = true;
+			return true;
+		}
+		return false;
+	}
+
+	private synchronized void releaseTrial(boolean trial) {
+		if (trial) {
+			trialInFlight = false;
+		}
+	}
+
+	private synchronized void record(boolean trial, boolean failed) {
+		if (trial) {
+			trialInFlight = false;
+			if (failed) {
+				open();
+			} else {
+				state = CircuitState.CLOSED;
+				recordedCalls = 0;
+				failedCalls = 0;
+				windowIndex = 0;
+			}
+			return;
+		}
+		if (state != CircuitState.CLOSED) {
+			return;
+		}
+
+		if (recordedCalls == window.length) {
+			if (window[windowIndex]) {
+				failedCalls--;
+			}
+		} else {
+			recordedCalls++;
+		}
+		window[windowIndex] = failed;
+		if (failed) {
+			failedCalls++;
+		}
+		windowIndex = (windowIndex + 1) % window.length;
+
+		if (recordedCalls >= minimumCalls
+				&& failedCalls * 100 >= failureRateThreshold * recordedCalls) {
+			open();
+		}
+	}
+
+	private void open() {
+		state = CircuitState.OPEN;
+		openedAt = System.currentTimeMillis();
+	}
+
+	private static int getParameter(Map<String, String> parameters,
+			String name, int defaultValue) {
+		if (parameters == null || !parameters.containsKey(name)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(parameters.get(name).trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
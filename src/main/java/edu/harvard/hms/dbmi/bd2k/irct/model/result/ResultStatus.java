@@ -7,14 +7,16 @@ package edu.harvard.hms.dbmi.bd2k.irct.model.result;
  * An enum representing all the different states a result can be in.
  * 
  * CREATED - The result has been created but not run
+ * QUEUED - The result is waiting to be run
  * RUNNING - The result is currently running but has not completed
  * COMPLETE - The result is ready
  * AVAILABLE - The result is available to the user
  * ERROR - An error occurred
+ * CANCELLED - The result was cancelled before it completed
  * 
  * @author Jeremy R. Easton-Marks
  *
  */
 public enum ResultStatus {
-	CREATED, RUNNING, AVAILABLE, COMPLETE, ERROR;
+	CREATED, QUEUED, RUNNING, AVAILABLE, COMPLETE, ERROR, CANCELLED;
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -40,6 +41,17 @@ import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Row;
 /**
  * An implementation of a Result Set that is persistable to the file system
  * 
+ * Rows are saved to a data file with the values of a row separated by tabs
+ * and each row ended by a newline. The columns, size and metadata are saved
+ * to an info file next to it. Values are written in their binary form, so a
+ * tab, newline, carriage return, quote or escape byte inside a value is
+ * written as an escape byte followed by the byte XOR 0x40. Result sets
+ * written this way have "escaped" set to true in their info file. Info files
+ * without it were written before values were escaped and are read as they
+ * were written, so older result sets stay readable. A result set keeps its
+ * format when it is appended to, and result sets of different formats can
+ * not be concatenated.
+ * 
  * @author Jeremy R. Easton-Marks
  *
  */
@@ -48,6 +60,13 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 	private int maxReadSize = 4096;
 	private char DELIMITER = '\t';
 	private char QUOTE = '"';
+	// Values are written in their binary form, so an integer such as a count
+	// of 9 or 10 contains a tab or newline byte. These bytes are written as
+	// ESCAPE followed by the byte XOR 0x40.
+	private static final byte ESCAPE = 0x1B;
+	// Whether the delimiters in the values are escaped. Older result sets
+	// were written without escaping.
+	private boolean escaped = true;
 
 	private String fileName;
 	private Path infoFile;
@@ -59,12 +78,16 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 	private Row currentRow;
 
 	private boolean persisted = false;
+	private long persistedSize;
 
 	private Map<Long, Row> pendingData;
 	private int MAXPENDING = 100000;
 
+	private Map<String, String> metadata;
+
 	public FileResultSet() {
 		this.pendingData = new HashMap<Long, Row>();
+		this.metadata = new HashMap<String, String>();
 	}
 
 	@Override
@@ -152,6 +175,7 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 
 		this.setRowPosition(this.getSize());
 		this.setSize(this.getSize() + 1);
+		this.current = false;
 
 	}
 
@@ -368,6 +392,8 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 		int currentColumn = 0;
 		ByteBuffer line = ByteBuffer.allocate(maxReadSize);
 
+		boolean escapeNext = false;
+
 		do {
 			int nRead = dataReadFC.read(read);
 
@@ -378,7 +404,12 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 			for (byte readByte : read.array()) {
 				char charRead = (char) readByte;
 
-				if ((charRead == '\r') || (charRead == '\n')) {
+				if (escapeNext) {
+					line.put(unescape(readByte));
+					escapeNext = false;
+				} else if (escaped && (readByte == ESCAPE)) {
+					escapeNext = true;
+				} else if ((charRead == '\r') || (charRead == '\n')) {
 					row.setColumn(
 							currentColumn,
 							getColumn(currentColumn).getDataType()
@@ -388,7 +419,7 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 					line.clear();
 					dataReadFC.position(originalPosition);
 					break;
-				} else if (charRead == QUOTE) {
+				} else if (!escaped && (charRead == QUOTE)) {
 					// Inverts the state of being inside or outside a quote
 					outsideQuote = !outsideQuote;
 				} else if ((charRead == DELIMITER) && (outsideQuote)) {
@@ -484,6 +515,21 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 	}
 
 	public void persist() throws PersistableException {
+		persist(Collections.<RowChannel> emptyList());
+	}
+
+	/**
+	 * Persists the result set and writes each row to the channels as it is
+	 * written to the file, so the readers of the channels work on the rows
+	 * while they are being saved. The channels are opened with the columns of
+	 * the result set and are closed once all of the rows have been saved.
+	 * 
+	 * @param channels
+	 *            Channels
+	 * @throws PersistableException
+	 *             An error occurred persisting the result set
+	 */
+	public void persist(List<RowChannel> channels) throws PersistableException {
 		// Throw an exception if the file has not been initially persisted
 		if (this.persisted) {
 			throw new PersistableException(this.fileName
@@ -494,6 +540,7 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
 			// Write the information to the info File
 			Files.write(infoFile, toJson().toString().getBytes());
+			openChannels(channels);
 
 			// Write pending data to file
 			Long[] keys = new Long[0];
@@ -505,6 +552,7 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 				ByteBuffer bb = ByteBuffer
 						.wrap(new byte[] { (byte) ((byte) '\n' & 0x00FF) });
 				dataOutStream.write(bb);
+				writeRowToChannels(channels, this.pendingData.get(key));
 			}
 
 			// Reset the FileChannel and position
@@ -512,10 +560,11 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 			dataReadFC = FileChannel.open(dataFile, StandardOpenOption.READ);
 
 			// Reset the variables and clear out the pending results
-			dataOutStream.close();
 			this.current = true;
 			this.persisted = true;
+			this.persistedSize = this.size;
 			this.pendingData.clear();
+			closeChannels(channels);
 		} catch (IOException | ResultSetException e) {
 			throw new PersistableException("Unable to persist the result set",
 					e);
@@ -523,6 +572,21 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 	}
 
 	public void merge() throws PersistableException {
+		merge(Collections.<RowChannel> emptyList());
+	}
+
+	/**
+	 * Merges the result set and writes each row to the channels as it is
+	 * written to the file. Rows that were already saved are read back from
+	 * the file for the channels. The channels are opened with the columns of
+	 * the result set and are closed once all of the rows have been saved.
+	 * 
+	 * @param channels
+	 *            Channels
+	 * @throws PersistableException
+	 *             An error occurred merging the result set
+	 */
+	public void merge(List<RowChannel> channels) throws PersistableException {
 		// Throw an exception if the file has not been initially persisted
 		if (!this.persisted) {
 			throw new PersistableException(this.fileName
@@ -530,32 +594,53 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 		}
 		// Returns if the data is current
 		if (this.current) {
+			if (!channels.isEmpty()) {
+				try {
+					openChannels(channels);
+					writeSavedRowsToChannels(channels, this.size);
+					closeChannels(channels);
+				} catch (ResultSetException e) {
+					throw new PersistableException(
+							"Unable to read the result set", e);
+				}
+			}
+			return;
+		}
+
+		// Only new rows are pending so they can be appended to the end of
+		// the data file instead of rewriting it
+		if (isAppendOnly()) {
+			append(channels);
 			return;
 		}
 
 		// Create temporary file
 		Path tempDataFile = Paths.get(fileName + ".temp");
 
-		// Write all changes to temporary file
-		try (SeekableByteChannel dataOutStream = Files.newByteChannel(
-				tempDataFile, StandardOpenOption.CREATE,
-				StandardOpenOption.APPEND)) {
-			// Write the information to the info File
-			Files.write(infoFile, toJson().toString().getBytes());
-
-			for (long rowIndex = 0; rowIndex < this.getSize(); rowIndex++) {
-				if (this.pendingData.containsKey(rowIndex)) {
-					writeRowToFile(dataOutStream,
-							this.pendingData.get(rowIndex));
-				} else {
-					this.absolute(rowIndex);
-					writeRowToFile(dataOutStream, this.currentRow);
+		try {
+			// Write all changes to temporary file
+			try (SeekableByteChannel dataOutStream = Files.newByteChannel(
+					tempDataFile, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND)) {
+				// Write the information to the info File
+				Files.write(infoFile, toJson().toString().getBytes());
+				openChannels(channels);
+
+				for (long rowIndex = 0; rowIndex < this.getSize(); rowIndex++) {
+					Row row;
+					if (this.pendingData.containsKey(rowIndex)) {
+						row = this.pendingData.get(rowIndex);
+					} else {
+						this.absolute(rowIndex);
+						row = this.currentRow;
+					}
+					writeRowToFile(dataOutStream, row);
+					ByteBuffer bb = ByteBuffer
+							.wrap(new byte[] { (byte) ((byte) '\n' & 0x00FF) });
+					dataOutStream.write(bb);
+					writeRowToChannels(channels, row);
 				}
-				ByteBuffer bb = ByteBuffer
-						.wrap(new byte[] { (byte) ((byte) '\n' & 0x00FF) });
-				dataOutStream.write(bb);
 			}
-			dataOutStream.close();
 
 			// Replace the current file with the temporary file
 			Files.copy(tempDataFile, dataFile,
@@ -569,7 +654,9 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 			// Reset the variables and clear out the pending results
 			this.current = true;
 			this.persisted = true;
+			this.persistedSize = this.size;
 			this.pendingData.clear();
+			closeChannels(channels);
 		} catch (IOException | ResultSetException e) {
 			throw new PersistableException("Unable to persist the result set",
 					e);
@@ -577,6 +664,160 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 
 	}
 
+	/**
+	 * Returns true if all the pending rows are after the last persisted row
+	 * 
+	 * @return Append only
+	 */
+	private boolean isAppendOnly() {
+		for (Long key : this.pendingData.keySet()) {
+			if (key < this.persistedSize) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends the pending rows to the end of the data file, writing every row
+	 * to the channels
+	 * 
+	 * @param channels
+	 *            Channels
+	 * @throws PersistableException
+	 *             An error occurred appending the rows
+	 */
+	private void append(List<RowChannel> channels) throws PersistableException {
+		try (SeekableByteChannel dataOutStream = Files.newByteChannel(dataFile,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			// Write the information to the info File
+			Files.write(infoFile, toJson().toString().getBytes());
+			if (!channels.isEmpty()) {
+				openChannels(channels);
+				writeSavedRowsToChannels(channels, this.persistedSize);
+			}
+
+			for (long rowIndex = this.persistedSize; rowIndex < this.size; rowIndex++) {
+				writeRowToFile(dataOutStream, this.pendingData.get(rowIndex));
+				ByteBuffer bb = ByteBuffer
+						.wrap(new byte[] { (byte) ((byte) '\n' & 0x00FF) });
+				dataOutStream.write(bb);
+				writeRowToChannels(channels, this.pendingData.get(rowIndex));
+			}
+
+			// Reset the FileChannel and position
+			long position = dataReadFC.position();
+			dataReadFC.close();
+			dataReadFC = FileChannel.open(dataFile, StandardOpenOption.READ);
+			dataReadFC.position(position);
+
+			// Reset the variables and clear out the pending results
+			this.current = true;
+			this.persistedSize = this.size;
+			this.pendingData.clear();
+			closeChannels(channels);
+		} catch (IOException | ResultSetException e) {
+			throw new PersistableException("Unable to persist the result set",
+					e);
+		}
+	}
+
+	private void openChannels(List<RowChannel> channels)
+			throws ResultSetException {
+		for (RowChannel channel : channels) {
+			channel.open(getColumns());
+		}
+	}
+
+	private void closeChannels(List<RowChannel> channels) {
+		for (RowChannel channel : channels) {
+			channel.close();
+		}
+	}
+
+	private void writeRowToChannels(List<RowChannel> channels, Row row)
+			throws ResultSetException {
+		if (channels.isEmpty()) {
+			return;
+		}
+		Object[] values = Arrays.copyOf(row.data, getColumnSize());
+		for (RowChannel channel : channels) {
+			channel.write(values);
+		}
+	}
+
+	/**
+	 * Writes the saved rows before the given row to the channels, reading
+	 * them from the data file
+	 */
+	private void writeSavedRowsToChannels(List<RowChannel> channels,
+			long count) throws ResultSetException {
+		for (long rowIndex = 0; rowIndex < count; rowIndex++) {
+			this.absolute(rowIndex);
+			writeRowToChannels(channels, this.currentRow);
+		}
+		beforeFirst();
+	}
+
+	/**
+	 * Appends the rows of the segments to the end of this result set by
+	 * copying their data files. The segments must be persisted and have the
+	 * same columns as this result set.
+	 *
+	 * @param segments
+	 *            Segments to append
+	 * @throws PersistableException
+	 *             An error occurred appending the segments
+	 */
+	public void concatenate(List<FileResultSet> segments)
+			throws PersistableException {
+		if (!this.persisted) {
+			throw new PersistableException(this.fileName
+					+ " has not been persisted");
+		}
+		merge();
+
+		try (FileChannel dataOutChannel = FileChannel.open(dataFile,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			for (FileResultSet segment : segments) {
+				if (!segment.isPersisted()) {
+					throw new PersistableException(segment.getFileName()
+							+ " has not been persisted");
+				}
+				segment.merge();
+				if ((segment.getColumnSize() != this.getColumnSize())
+						|| (segment.escaped != this.escaped)) {
+					throw new PersistableException(segment.getFileName()
+							+ " does not have the same format");
+				}
+
+				try (FileChannel segmentChannel = FileChannel.open(
+						segment.dataFile, StandardOpenOption.READ)) {
+					long position = 0;
+					long length = segmentChannel.size();
+					while (position < length) {
+						position += segmentChannel.transferTo(position, length
+								- position, dataOutChannel);
+					}
+				}
+				this.size += segment.getSize();
+			}
+
+			// Write the information to the info File
+			Files.write(infoFile, toJson().toString().getBytes());
+
+			// Reset the FileChannel and position
+			long position = dataReadFC.position();
+			dataReadFC.close();
+			dataReadFC = FileChannel.open(dataFile, StandardOpenOption.READ);
+			dataReadFC.position(position);
+
+			this.persistedSize = this.size;
+		} catch (IOException | ResultSetException e) {
+			throw new PersistableException("Unable to append the segments", e);
+		}
+	}
+
 	public void refresh() throws PersistableException {
 		// Throw an exception if the file has not been initially persisted
 		if (!this.persisted) {
@@ -609,6 +850,21 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 
 			// Set the size
 			this.size = jsonReader.getInt("size");
+			this.persistedSize = this.size;
+
+			// Result sets without the flag were written before values were
+			// escaped
+			this.escaped = jsonReader.containsKey("escaped")
+					&& jsonReader.getBoolean("escaped");
+
+			// Set the metadata
+			this.metadata = new HashMap<String, String>();
+			if (jsonReader.containsKey("metadata")) {
+				JsonObject jsonMetadata = jsonReader.getJsonObject("metadata");
+				for (String key : jsonMetadata.keySet()) {
+					this.metadata.put(key, jsonMetadata.getString(key));
+				}
+			}
 
 			// Clear out any pending data
 			this.pendingData = new HashMap<Long, Row>();
@@ -636,6 +892,9 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 			
 			byte[] outBytes = this.getColumn(columnIndex).getDataType()
 					.toBytes(row.getColumn(columnIndex));
+			if (escaped) {
+				outBytes = escape(outBytes);
+			}
 
 			ByteBuffer bb = ByteBuffer.wrap(outBytes);
 			dataOutStream.write(bb);
@@ -647,6 +906,50 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 
 		}
 	}
+
+	/**
+	 * Escapes the bytes of a value so that it does not contain any
+	 * delimiters, line endings, or quotes
+	 * 
+	 * @param value
+	 *            Value bytes
+	 * @return Escaped bytes
+	 */
+	private byte[] escape(byte[] value) {
+		ByteBuffer escapedValue = null;
+		for (int index = 0; index < value.length; index++) {
+			byte valueByte = value[index];
+			boolean special = (valueByte == ESCAPE)
+					|| (valueByte == (byte) DELIMITER)
+					|| (valueByte == (byte) QUOTE) || (valueByte == '\n')
+					|| (valueByte == '\r');
+			if (special && (escapedValue == null)) {
+				escapedValue = ByteBuffer.allocate(value.length * 2);
+				escapedValue.put(value, 0, index);
+			}
+			if (special) {
+				escapedValue.put(ESCAPE);
+				escapedValue.put((byte) (valueByte ^ 0x40));
+			} else if (escapedValue != null) {
+				escapedValue.put(valueByte);
+			}
+		}
+		if (escapedValue == null) {
+			return value;
+		}
+		return Arrays.copyOf(escapedValue.array(), escapedValue.position());
+	}
+
+	/**
+	 * Returns the original byte of an escaped byte
+	 * 
+	 * @param escapedByte
+	 *            Escaped byte
+	 * @return Original byte
+	 */
+	private byte unescape(byte escapedByte) {
+		return (byte) (escapedByte ^ 0x40);
+	}
 	
 	@Override
 	public List<File> getFileList() {
@@ -899,6 +1202,49 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 		return this.MAXPENDING;
 	}
 
+	/**
+	 * Returns the number of rows that are waiting to be persisted
+	 * 
+	 * @return Pending rows
+	 */
+	public int getPendingSize() {
+		return this.pendingData.size();
+	}
+
+	/**
+	 * Returns the location the result set is persisted to
+	 * 
+	 * @return File name
+	 */
+	public String getFileName() {
+		return this.fileName;
+	}
+
+	/**
+	 * Returns the metadata that is stored alongside the result set in the
+	 * info file. Metadata describes the data (i.e. the column the rows are
+	 * sorted by) and is written the next time the result set is persisted or
+	 * merged.
+	 * 
+	 * @return Metadata
+	 */
+	public Map<String, String> getMetadata() {
+		return this.metadata;
+	}
+
+	/**
+	 * Sets a metadata value that is stored alongside the result set
+	 * 
+	 * @param key
+	 *            Key
+	 * @param value
+	 *            Value
+	 */
+	public void setMetadata(String key, String value) {
+		this.metadata.put(key, value);
+		this.current = false;
+	}
+
 	/**
 	 * Returns a JSONObject representation of the object. This returns only the
 	 * attributes associated with this object and not their representation.
@@ -936,6 +1282,13 @@ public class FileResultSet extends ResultSetImpl implements Persistable {
 		}
 
 		jsonBuilder.add("columns", jsonColArray);
+		jsonBuilder.add("escaped", this.escaped);
+
+		JsonObjectBuilder jsonMetadata = Json.createObjectBuilder();
+		for (String key : this.metadata.keySet()) {
+			jsonMetadata.add(key, this.metadata.get(key));
+		}
+		jsonBuilder.add("metadata", jsonMetadata);
 		return jsonBuilder.build();
 
 	}
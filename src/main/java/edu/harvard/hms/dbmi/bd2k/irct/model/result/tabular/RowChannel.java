@@ -0,0 +1,251 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+
+/**
+ * A bounded in memory channel of rows between two actions. The producer opens
+ * the channel with its columns, writes its rows, and then closes it. The
+ * consumer reads the rows as they are written, so it can start working before
+ * the producer has finished.
+ *
+ * The producer is blocked while the channel is full, which bounds the memory
+ * used by the channel to its capacity. The consumer must therefore run on a
+ * thread the producer can not be waiting for, such as the pipe executor of
+ * AsyncExecution, and should only be started once the channel has been
+ * opened so it does not hold a thread while the producer is still waiting
+ * on a remote resource. If the producer fails the consumer
+ * receives the error on its next read. If the consumer stops reading before
+ * the end it abandons the channel and any further rows are dropped.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class RowChannel {
+	private final int capacity;
+	private final LinkedList<Object[]> rows = new LinkedList<Object[]>();
+	private Column[] columns;
+	private boolean closed;
+	private boolean abandoned;
+	private Exception failure;
+	private final CompletableFuture<Void> opened = new CompletableFuture<Void>();
+
+	/**
+	 * Creates a channel that holds at most the given number of rows
+	 *
+	 * @param capacity
+	 *            Capacity
+	 */
+	public RowChannel(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException(
+					"Capacity must be greater than 0");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Opens the channel with the columns of the rows that will be written
+	 *
+	 * @param columns
+	 *            Columns
+	 */
+	public void open(Column[] columns) {
+		synchronized (this) {
+			this.columns = columns;
+			notifyAll();
+		}
+		// Completed outside of the lock as it may start the consumer
+		opened.complete(null);
+	}
+
+	/**
+	 * Returns a future that completes once the producer has opened the
+	 * channel, or has failed or closed it without opening it
+	 *
+	 * @return Future
+	 */
+	public CompletableFuture<Void> whenOpened() {
+		return opened;
+	}
+
+	/**
+	 * Writes a row, waiting while the channel is full. The row is dropped if
+	 * the consumer has abandoned the channel.
+	 *
+	 * @param values
+	 *            Row values
+	 * @throws ResultSetException
+	 *             The channel is closed or the producer was interrupted
+	 */
+	public synchronized void write(Object[] values) throws ResultSetException {
+		if (closed) {
+			throw new ResultSetException("Channel is closed");
+		}
+		while (!abandoned && rows.size() >= capacity) {
+			waitForChange();
+		}
+		if (abandoned) {
+			return;
+		}
+		rows.add(values);
+		notifyAll();
+	}
+
+	/**
+	 * Writes every row of the result set to each of the channels and closes
+	 * them. The channels are opened with the columns of the result set.
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param channels
+	 *            Channels
+	 * @throws ResultSetException
+	 *             An error occurred reading the result set
+	 */
+	public static void writeAll(ResultSet resultSet, List<RowChannel> channels)
+			throws ResultSetException {
+		Column[] columns = resultSet.getColumns();
+		for (RowChannel channel : channels) {
+			channel.open(columns);
+		}
+
+		long size = resultSet.getSize();
+		resultSet.beforeFirst();
+		for (long row = 0; row < size; row++) {
+			resultSet.next();
+			Object[] values = new Object[columns.length];
+			for (int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+				values[columnIndex] = resultSet.getObject(columnIndex);
+			}
+			for (RowChannel channel : channels) {
+				channel.write(values);
+			}
+		}
+		resultSet.beforeFirst();
+
+		for (RowChannel channel : channels) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Signals that all of the rows have been written
+	 */
+	public void close() {
+		synchronized (this) {
+			this.closed = true;
+			notifyAll();
+		}
+		opened.complete(null);
+	}
+
+	/**
+	 * Signals that the producer failed. The consumer receives the error on its
+	 * next read.
+	 *
+	 * @param exception
+	 *            Reason the producer failed
+	 */
+	public void fail(Exception exception) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			this.failure = exception;
+			this.closed = true;
+			notifyAll();
+		}
+		opened.complete(null);
+	}
+
+	/**
+	 * Signals that the consumer will not read any more rows
+	 */
+	public synchronized void abandon() {
+		this.abandoned = true;
+		rows.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Returns the columns of the rows, waiting until the producer has opened
+	 * the channel
+	 *
+	 * @return Columns
+	 * @throws ResultSetException
+	 *             The producer failed or the consumer was interrupted
+	 */
+	public synchronized Column[] getColumns() throws ResultSetException {
+		while (columns == null && !closed) {
+			waitForChange();
+		}
+		checkFailure();
+		if (columns == null) {
+			throw new ResultSetException("Channel was closed before it was opened");
+		}
+		return columns;
+	}
+
+	/**
+	 * Returns the index of the column with the given name, waiting until the
+	 * producer has opened the channel
+	 *
+	 * @param columnLabel
+	 *            Column name
+	 * @return Column index
+	 * @throws ResultSetException
+	 *             The column does not exist or the producer failed
+	 */
+	public int findColumn(String columnLabel) throws ResultSetException {
+		Column[] columns = getColumns();
+		for (int columnIndex = 0; columnIndex < columns.length; columnIndex++) {
+			if (columns[columnIndex].getName().equals(columnLabel)) {
+				return columnIndex;
+			}
+		}
+		throw new ResultSetException("Column not found");
+	}
+
+	/**
+	 * Returns the next row, waiting until it has been written
+	 *
+	 * @return Row values, or null if all of the rows have been read
+	 * @throws ResultSetException
+	 *             The producer failed or the consumer was interrupted
+	 */
+	public synchronized Object[] read() throws ResultSetException {
+		while (rows.isEmpty() && !closed) {
+			waitForChange();
+		}
+		checkFailure();
+		if (rows.isEmpty()) {
+			return null;
+		}
+		Object[] values = rows.removeFirst();
+		notifyAll();
+		return values;
+	}
+
+	private void checkFailure() throws ResultSetException {
+		if (failure != null) {
+			throw new ResultSetException("Producer failed: "
+					+ failure.getMessage(), failure);
+		}
+	}
+
+	private void waitForChange() throws ResultSetException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResultSetException("Interrupted waiting for rows", e);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.security;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.JWT;
+
+/**
+ * An application wide cache of delegated tokens, so a user's token for a
+ * client is only requested once for as long as it is valid rather than once
+ * for every session.
+ *
+ * Tokens are keyed by the user and the client they were delegated to. A
+ * token expires at the expiry time in its claims, or after ten minutes if it
+ * has none. A token that has been used since it was delegated is delegated
+ * again in the background a minute before it expires, so users that keep
+ * working never wait for delegation. If several requests need the same
+ * token at the same time it is only requested once.
+ *
+ * The tokens of a user are removed when they log out of their last session
+ * that has not timed out. Tokens of sessions that time out are left to
+ * expire. Once the cache holds more than its maximum number of tokens,
+ * expired tokens are removed first and then the least recently used ones.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class DelegatedTokenCache {
+	private static final long DEFAULT_TIME_TO_LIVE = 600000;
+	private static final long REFRESH_AHEAD = 60000;
+	private static final long EXPIRY_MARGIN = 5000;
+	private static final int MAX_ENTRIES = 10000;
+	private static final int EVICT_TO = MAX_ENTRIES * 9 / 10;
+
+	private static final ConcurrentHashMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+	private static final ConcurrentHashMap<String, CompletableFuture<JWT>> DELEGATING = new ConcurrentHashMap<String, CompletableFuture<JWT>>();
+
+	/**
+	 * Returns the token of the user for the client, delegating a new one if
+	 * none is cached or it is about to expire
+	 *
+	 * @param user
+	 *            User the token is delegated for
+	 * @param clientId
+	 *            Client the token is delegated to
+	 * @param delegate
+	 *            Delegates a new token, returning null if it fails
+	 * @return Token, or null if it could not be delegated
+	 */
+	public static JWT get(String user, String clientId, Supplier<JWT> delegate) {
+		String key = user + "\n" + clientId;
+		long now = System.currentTimeMillis();
+		Entry entry = ENTRIES.get(key);
+		if (entry != null && now < entry.expiresAt - EXPIRY_MARGIN) {
+			entry.lastUsed = now;
+			entry.delegate = delegate;
+			return entry.token;
+		}
+
+		CompletableFuture<JWT> delegating = new CompletableFuture<JWT>();
+		CompletableFuture<JWT> existing = DELEGATING.putIfAbsent(key,
+				delegating);
+		if (existing != null) {
+			return existing.join();
+		}
+		JWT token = null;
+		try {
+			token = delegate.get();
+			if (token != null) {
+				store(key, token, delegate);
+			}
+		} finally {
+			DELEGATING.remove(key, delegating);
+			delegating.complete(token);
+		}
+		return token;
+	}
+
+	/**
+	 * Removes the tokens of a user, for example when they log out
+	 *
+	 * @param user
+	 *            User
+	 */
+	public static void invalidate(String user) {
+		String prefix = user + "\n";
+		Iterator<String> keys = ENTRIES.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().startsWith(prefix)) {
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of cached tokens
+	 *
+	 * @return Size
+	 */
+	public static int size() {
+		return ENTRIES.size();
+	}
+
+	/**
+	 * Returns when the token expires from the exp claim of its id token
+	 *
+	 * @param token
+	 *            Token
+	 * @return Expiry time in milliseconds, or 0 if it can not be read
+	 */
+	public static long getExpiry(JWT token) {
+		if (token.getIdToken() == null) {
+			return 0;
+		}
+		String[] parts = token.getIdToken().split("\\.");
+		if (parts.length < 2) {
+			return 0;
+		}
+		try {
+			String claims = new String(Base64.getUrlDecoder().decode(parts[1]),
+					StandardCharsets.UTF_8);
+			try (JsonReader reader = Json.createReader(new StringReader(claims))) {
+				JsonObject claimsObject = reader.readObject();
+				if (claimsObject.get("exp") instanceof JsonNumber) {
+					return claimsObject.getJsonNumber("exp").longValue() * 1000;
+				}
+			}
+		} catch (IllegalArgumentException | JsonException | ClassCastException e) {
+			// Not a signed JWT
+		}
+		return 0;
+	}
+
+	private static void store(String key, JWT token, Supplier<JWT> delegate) {
+		long now = System.currentTimeMillis();
+		long expiresAt = getExpiry(token);
+		if (expiresAt == 0) {
+			expiresAt = now + DEFAULT_TIME_TO_LIVE;
+		}
+		if (expiresAt - EXPIRY_MARGIN <= now) {
+			return;
+		}
+
+		final Entry entry = new Entry(token, expiresAt, delegate, now);
+		ENTRIES.put(key, entry);
+		if (ENTRIES.size() > MAX_ENTRIES) {
+			evict(now);
+		}
+
+		long refreshIn = expiresAt - REFRESH_AHEAD - now;
+		if (refreshIn > 0) {
+			AsyncExecution.getTimer().schedule(
+					() -> AsyncExecution.getDefaultExecutor().execute(
+							() -> refresh(key, entry)), refreshIn,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Delegates the token again if it is still cached and has been used since
+	 * it was delegated. Unused tokens are left to expire.
+	 */
+	private static void refresh(String key, Entry entry) {
+		if (ENTRIES.get(key) != entry || entry.lastUsed <= entry.loadedAt) {
+			return;
+		}
+		JWT token = entry.delegate.get();
+		if (token != null && ENTRIES.get(key) == entry) {
+			store(key, token, entry.delegate);
+		}
+	}
+
+	/**
+	 * Removes the expired tokens, and then the least recently used tokens
+	 * until the cache is back under its maximum size. The cache is trimmed
+	 * below the maximum so that it is not sorted again on every new token.
+	 */
+	private static synchronized void evict(long now) {
+		if (ENTRIES.size() <= MAX_ENTRIES) {
+			return;
+		}
+		List<Candidate> unexpired = new ArrayList<Candidate>();
+		Iterator<Map.Entry<String, Entry>> entries = ENTRIES.entrySet()
+				.iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Entry> entry = entries.next();
+			if (entry.getValue().expiresAt <= now) {
+				entries.remove();
+			} else {
+				unexpired.add(new Candidate(entry.getKey(), entry.getValue()));
+			}
+		}
+		if (ENTRIES.size() <= MAX_ENTRIES) {
+			return;
+		}
+
+		unexpired.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+		int remove = ENTRIES.size() - EVICT_TO;
+		for (int i = 0; i < remove && i < unexpired.size(); i++) {
+			ENTRIES.remove(unexpired.get(i).key, unexpired.get(i).entry);
+		}
+	}
+
+	/**
+	 * A cached token and how to delegate it again
+	 */
+	private static class Entry {
+		private final JWT token;
+		private final long expiresAt;
+		private final long loadedAt;
+		private volatile Supplier<JWT> delegate;
+		private volatile long lastUsed;
+
+		Entry(JWT token, long expiresAt, Supplier<JWT> delegate, long loadedAt) {
+			this.token = token;
+			this.expiresAt = expiresAt;
+			this.delegate = delegate;
+			this.loadedAt = loadedAt;
+			this.lastUsed = loadedAt;
+		}
+	}
+
+	/**
+	 * A token that may be evicted. The last use time is copied as it keeps
+	 * changing while the candidates are sorted.
+	 */
+	private static class Candidate {
+		private final String key;
+		private final Entry entry;
+		private final long lastUsed;
+
+		Candidate(String key, Entry entry) {
+			this.key = key;
+			this.entry = entry;
+			this.lastUsed = entry.lastUsed;
+		}
+	}
+}
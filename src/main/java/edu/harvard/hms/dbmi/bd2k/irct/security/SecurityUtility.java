@@ -8,16 +8,14 @@ import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.message.BasicNameValuePair;
 
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.JWT;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.bd2k.irct.util.http.HttpClientService;
 
 /**
  * The Security Utility class provides a set of useful functions for handling
@@ -30,7 +28,8 @@ public class SecurityUtility {
 
 	/**
 	 * Returns a delegated a token for a user for a new Auth0 application. If an
-	 * error occurs then NULL is returned.
+	 * error occurs then NULL is returned. Delegated tokens are cached for the
+	 * user until they expire, see DelegatedTokenCache.
 	 * 
 	 * @param namespace
 	 *            URL of the namespace
@@ -46,13 +45,57 @@ public class SecurityUtility {
 			return session.getToken().toString();
 		}
 
-		if (session.getDelegated().containsKey(resourceClientId)) {
-			return "Bearer "
-					+ session.getDelegated().get(resourceClientId).toString();
+		final String sourceClientId = ((JWT) session.getToken()).getClientId();
+		final String idToken = session.getToken().toString().split(" ")[1];
+		String user = getDelegationUser(session);
+
+		JWT jwt = DelegatedTokenCache.get(user, resourceClientId,
+				() -> requestToken(namespace, sourceClientId, idToken,
+						resourceClientId));
+		if (jwt == null) {
+			return null;
+		}
+		session.getDelegated().put(resourceClientId, jwt);
+		return "Bearer " + jwt.getIdToken();
+	}
+
+	/**
+	 * Removes the delegated tokens of the user of a session, so they are
+	 * delegated again the next time they are needed. Called when the last
+	 * session of the user is logged out.
+	 * 
+	 * @param session
+	 *            Session of the user
+	 */
+	public static void removeDelegatedTokens(SecureSession session) {
+		session.getDelegated().clear();
+		String user = getDelegationUser(session);
+		if (user != null) {
+			DelegatedTokenCache.invalidate(user);
+		}
+	}
+
+	/**
+	 * Returns the user that delegated tokens are cached for, which is the id
+	 * token of the session if it has no user
+	 */
+	private static String getDelegationUser(SecureSession session) {
+		if (session.getUser() != null) {
+			return session.getUser().getUserId();
 		}
+		if (session.getToken() == null) {
+			return null;
+		}
+		String[] parts = session.getToken().toString().split(" ");
+		return parts.length < 2 ? null : parts[1];
+	}
 
+	/**
+	 * Requests a delegated token from the delegation endpoint
+	 */
+	private static JWT requestToken(String namespace, String sourceClientId,
+			String idToken, String resourceClientId) {
 		try {
-			HttpClient client = HttpClientBuilder.create().build();
 			HttpPost post = new HttpPost("https://" + namespace + "/delegation");
 
 			List<NameValuePair> urlParameters = new ArrayList<NameValuePair>();
@@ -63,24 +106,22 @@ public class SecurityUtility {
 
 			//
 			urlParameters.add(new BasicNameValuePair("client_id",
-					((JWT) session.getToken()).getClientId()));
+					sourceClientId));
 			urlParameters.add(new BasicNameValuePair("scope",
 					"openid name email"));
 			urlParameters.add(new BasicNameValuePair("api_type", "app"));
-			urlParameters.add(new BasicNameValuePair("id_token", session
-					.getToken().toString().split(" ")[1]));
+			urlParameters.add(new BasicNameValuePair("id_token", idToken));
 
 			post.setEntity(new UrlEncodedFormEntity(urlParameters));
 
-			HttpResponse response = client.execute(post);
-			JsonReader reader = Json.createReader(response.getEntity()
-					.getContent());
-
-			JsonObject responseObject = reader.readObject();
-
-			if (responseObject.containsKey("")) {
+			JsonObject responseObject = HttpClientService.execute(post,
+					response -> {
+						try (JsonReader reader = Json.createReader(response
+								.getEntity().getContent())) {
+							return reader.readObject();
+						}
+					});
 
-			}
 			if(responseObject.containsKey("error")) {
 				System.out.println("ERROR GETTING TOKEN: " + responseObject.getString("error") + " " + responseObject.getString("error_description"));
 				return null;
@@ -88,10 +129,9 @@ public class SecurityUtility {
 			JWT jwt = new JWT();
 			jwt.setType(responseObject.getString("token_type"));
 			jwt.setIdToken(responseObject.getString("id_token"));
+			jwt.setClientId(resourceClientId);
 
-			session.getDelegated().put(resourceClientId, jwt);
-
-			return "Bearer " + responseObject.getString("id_token");
+			return jwt;
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
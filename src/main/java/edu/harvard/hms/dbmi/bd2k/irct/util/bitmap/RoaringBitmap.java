@@ -0,0 +1,611 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.util.bitmap;
+
+import java.util.Arrays;
+
+/**
+ * A compressed bitmap of 32-bit integers. The integers are partitioned by
+ * their upper 16 bits into chunks. Each chunk stores its lower 16 bits either
+ * as a sorted array, when the chunk is sparse, or as a 65536 bit bitmap, when
+ * it is dense. Set operations are performed chunk by chunk.
+ *
+ * Integers are treated as unsigned, so negative values are ordered after all
+ * positive values.
+ *
+ * This class is not thread safe.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class RoaringBitmap {
+	private char[] keys;
+	private Container[] containers;
+	private int size;
+
+	/**
+	 * Creates an empty bitmap
+	 */
+	public RoaringBitmap() {
+		this.keys = new char[4];
+		this.containers = new Container[4];
+		this.size = 0;
+	}
+
+	/**
+	 * Creates a bitmap containing the given values
+	 *
+	 * @param values
+	 *            Values
+	 * @return Bitmap
+	 */
+	public static RoaringBitmap of(int... values) {
+		RoaringBitmap bitmap = new RoaringBitmap();
+		for (int value : values) {
+			bitmap.add(value);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Adds a value to the bitmap
+	 *
+	 * @param value
+	 *            Value
+	 */
+	public void add(int value) {
+		char high = (char) (value >>> 16);
+		int index = Arrays.binarySearch(keys, 0, size, high);
+		if (index >= 0) {
+			containers[index] = containers[index].add((char) value);
+		} else {
+			insert(-index - 1, high, new ArrayContainer().add((char) value));
+		}
+	}
+
+	/**
+	 * Returns true if the bitmap contains the value
+	 *
+	 * @param value
+	 *            Value
+	 * @return Contains
+	 */
+	public boolean contains(int value) {
+		int index = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+		return (index >= 0) && containers[index].contains((char) value);
+	}
+
+	/**
+	 * Returns the number of values in the bitmap
+	 *
+	 * @return Cardinality
+	 */
+	public long getCardinality() {
+		long cardinality = 0;
+		for (int index = 0; index < size; index++) {
+			cardinality += containers[index].getCardinality();
+		}
+		return cardinality;
+	}
+
+	/**
+	 * Returns true if the bitmap contains no values
+	 *
+	 * @return Empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the values in the bitmap in unsigned order
+	 *
+	 * @return Values
+	 */
+	public int[] toArray() {
+		int[] values = new int[(int) getCardinality()];
+		int offset = 0;
+		for (int index = 0; index < size; index++) {
+			offset = containers[index].fill(values, offset, keys[index] << 16);
+		}
+		return values;
+	}
+
+	/**
+	 * Returns a new bitmap with the values that are in both bitmaps
+	 *
+	 * @param first
+	 *            First bitmap
+	 * @param second
+	 *            Second bitmap
+	 * @return Intersection
+	 */
+	public static RoaringBitmap and(RoaringBitmap first, RoaringBitmap second) {
+		RoaringBitmap answer = new RoaringBitmap();
+		int firstIndex = 0;
+		int secondIndex = 0;
+		while ((firstIndex < first.size) && (secondIndex < second.size)) {
+			char firstKey = first.keys[firstIndex];
+			char secondKey = second.keys[secondIndex];
+			if (firstKey < secondKey) {
+				firstIndex++;
+			} else if (firstKey > secondKey) {
+				secondIndex++;
+			} else {
+				Container container = first.containers[firstIndex]
+						.and(second.containers[secondIndex]);
+				if (container.getCardinality() > 0) {
+					answer.append(firstKey, container);
+				}
+				firstIndex++;
+				secondIndex++;
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Returns a new bitmap with the values that are in either bitmap
+	 *
+	 * @param first
+	 *            First bitmap
+	 * @param second
+	 *            Second bitmap
+	 * @return Union
+	 */
+	public static RoaringBitmap or(RoaringBitmap first, RoaringBitmap second) {
+		RoaringBitmap answer = new RoaringBitmap();
+		int firstIndex = 0;
+		int secondIndex = 0;
+		while ((firstIndex < first.size) || (secondIndex < second.size)) {
+			if ((secondIndex == second.size)
+					|| ((firstIndex < first.size) && (first.keys[firstIndex] < second.keys[secondIndex]))) {
+				answer.append(first.keys[firstIndex],
+						first.containers[firstIndex].copy());
+				firstIndex++;
+			} else if ((firstIndex == first.size)
+					|| (first.keys[firstIndex] > second.keys[secondIndex])) {
+				answer.append(second.keys[secondIndex],
+						second.containers[secondIndex].copy());
+				secondIndex++;
+			} else {
+				answer.append(first.keys[firstIndex],
+						first.containers[firstIndex]
+								.or(second.containers[secondIndex]));
+				firstIndex++;
+				secondIndex++;
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Returns a new bitmap with the values that are in the first bitmap but
+	 * not in the second bitmap
+	 *
+	 * @param first
+	 *            First bitmap
+	 * @param second
+	 *            Second bitmap
+	 * @return Difference
+	 */
+	public static RoaringBitmap andNot(RoaringBitmap first,
+			RoaringBitmap second) {
+		RoaringBitmap answer = new RoaringBitmap();
+		int secondIndex = 0;
+		for (int firstIndex = 0; firstIndex < first.size; firstIndex++) {
+			char firstKey = first.keys[firstIndex];
+			while ((secondIndex < second.size)
+					&& (second.keys[secondIndex] < firstKey)) {
+				secondIndex++;
+			}
+			if ((secondIndex < second.size)
+					&& (second.keys[secondIndex] == firstKey)) {
+				Container container = first.containers[firstIndex]
+						.andNot(second.containers[secondIndex]);
+				if (container.getCardinality() > 0) {
+					answer.append(firstKey, container);
+				}
+			} else {
+				answer.append(firstKey, first.containers[firstIndex].copy());
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Returns a new bitmap with the values that are in exactly one of the
+	 * bitmaps
+	 *
+	 * @param first
+	 *            First bitmap
+	 * @param second
+	 *            Second bitmap
+	 * @return Symmetric difference
+	 */
+	public static RoaringBitmap xor(RoaringBitmap first, RoaringBitmap second) {
+		RoaringBitmap answer = new RoaringBitmap();
+		int firstIndex = 0;
+		int secondIndex = 0;
+		while ((firstIndex < first.size) || (secondIndex < second.size)) {
+			if ((secondIndex == second.size)
+					|| ((firstIndex < first.size) && (first.keys[firstIndex] < second.keys[secondIndex]))) {
+				answer.append(first.keys[firstIndex],
+						first.containers[firstIndex].copy());
+				firstIndex++;
+			} else if ((firstIndex == first.size)
+					|| (first.keys[firstIndex] > second.keys[secondIndex])) {
+				answer.append(second.keys[secondIndex],
+						second.containers[secondIndex].copy());
+				secondIndex++;
+			} else {
+				Container container = first.containers[firstIndex]
+						.xor(second.containers[secondIndex]);
+				if (container.getCardinality() > 0) {
+					answer.append(first.keys[firstIndex], container);
+				}
+				firstIndex++;
+				secondIndex++;
+			}
+		}
+		return answer;
+	}
+
+	private void insert(int index, char key, Container container) {
+		ensureCapacity();
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size
+				- index);
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+
+	private void append(char key, Container container) {
+		ensureCapacity();
+		keys[size] = key;
+		containers[size] = container;
+		size++;
+	}
+
+	private void ensureCapacity() {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+			containers = Arrays.copyOf(containers, containers.length * 2);
+		}
+	}
+
+	/**
+	 * Stores the lower 16 bits of the values in a chunk
+	 */
+	private static abstract class Container {
+		abstract Container add(char value);
+
+		abstract boolean contains(char value);
+
+		abstract int getCardinality();
+
+		abstract Container copy();
+
+		abstract int fill(int[] values, int offset, int high);
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container andNot(Container other);
+
+		abstract Container xor(Container other);
+
+		abstract BitmapContainer toBitmapContainer();
+	}
+
+	/**
+	 * A sparse chunk stored as a sorted array of values
+	 */
+	private static final class ArrayContainer extends Container {
+		static final int MAX_SIZE = 4096;
+
+		char[] content;
+		int cardinality;
+
+		ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		ArrayContainer(char[] content, int cardinality) {
+			this.content = content;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char value) {
+			int index = Arrays.binarySearch(content, 0, cardinality, value);
+			if (index >= 0) {
+				return this;
+			}
+			if (cardinality == MAX_SIZE) {
+				return toBitmapContainer().add(value);
+			}
+			index = -index - 1;
+			if (cardinality == content.length) {
+				content = Arrays.copyOf(content,
+						Math.min(Math.max(content.length * 2, 4), MAX_SIZE));
+			}
+			System.arraycopy(content, index, content, index + 1, cardinality
+					- index);
+			content[index] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(content, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(content, cardinality),
+					cardinality);
+		}
+
+		@Override
+		int fill(int[] values, int offset, int high) {
+			for (int index = 0; index < cardinality; index++) {
+				values[offset++] = high | content[index];
+			}
+			return offset;
+		}
+
+		@Override
+		Container and(Container other) {
+			char[] answer = new char[Math.min(cardinality,
+					other.getCardinality())];
+			int answerSize = 0;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int index = 0;
+				int otherIndex = 0;
+				while ((index < cardinality) && (otherIndex < array.cardinality)) {
+					if (content[index] < array.content[otherIndex]) {
+						index++;
+					} else if (content[index] > array.content[otherIndex]) {
+						otherIndex++;
+					} else {
+						answer[answerSize++] = content[index];
+						index++;
+						otherIndex++;
+					}
+				}
+			} else {
+				for (int index = 0; index < cardinality; index++) {
+					if (other.contains(content[index])) {
+						answer[answerSize++] = content[index];
+					}
+				}
+			}
+			return new ArrayContainer(answer, answerSize);
+		}
+
+		@Override
+		Container or(Container other) {
+			if (!(other instanceof ArrayContainer)) {
+				return other.or(this);
+			}
+			ArrayContainer array = (ArrayContainer) other;
+			char[] answer = new char[cardinality + array.cardinality];
+			int answerSize = 0;
+			int index = 0;
+			int otherIndex = 0;
+			while ((index < cardinality) || (otherIndex < array.cardinality)) {
+				if ((otherIndex == array.cardinality)
+						|| ((index < cardinality) && (content[index] < array.content[otherIndex]))) {
+					answer[answerSize++] = content[index++];
+				} else if ((index == cardinality)
+						|| (content[index] > array.content[otherIndex])) {
+					answer[answerSize++] = array.content[otherIndex++];
+				} else {
+					answer[answerSize++] = content[index];
+					index++;
+					otherIndex++;
+				}
+			}
+			return repair(answer, answerSize);
+		}
+
+		@Override
+		Container andNot(Container other) {
+			char[] answer = new char[cardinality];
+			int answerSize = 0;
+			for (int index = 0; index < cardinality; index++) {
+				if (!other.contains(content[index])) {
+					answer[answerSize++] = content[index];
+				}
+			}
+			return new ArrayContainer(answer, answerSize);
+		}
+
+		@Override
+		Container xor(Container other) {
+			if (!(other instanceof ArrayContainer)) {
+				return other.xor(this);
+			}
+			ArrayContainer array = (ArrayContainer) other;
+			char[] answer = new char[cardinality + array.cardinality];
+			int answerSize = 0;
+			int index = 0;
+			int otherIndex = 0;
+			while ((index < cardinality) || (otherIndex < array.cardinality)) {
+				if ((otherIndex == array.cardinality)
+						|| ((index < cardinality) && (content[index] < array.content[otherIndex]))) {
+					answer[answerSize++] = content[index++];
+				} else if ((index == cardinality)
+						|| (content[index] > array.content[otherIndex])) {
+					answer[answerSize++] = array.content[otherIndex++];
+				} else {
+					index++;
+					otherIndex++;
+				}
+			}
+			return repair(answer, answerSize);
+		}
+
+		@Override
+		BitmapContainer toBitmapContainer() {
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int index = 0; index < cardinality; index++) {
+				bitmap.set(content[index]);
+			}
+			return bitmap;
+		}
+
+		private static Container repair(char[] values, int size) {
+			ArrayContainer array = new ArrayContainer(values, size);
+			if (size > MAX_SIZE) {
+				return array.toBitmapContainer();
+			}
+			return array;
+		}
+	}
+
+	/**
+	 * A dense chunk stored as a 65536 bit bitmap
+	 */
+	private static final class BitmapContainer extends Container {
+		final long[] words;
+		int cardinality;
+
+		BitmapContainer() {
+			this(new long[1024], 0);
+		}
+
+		BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		void set(char value) {
+			long before = words[value >>> 6];
+			long after = before | (1L << value);
+			words[value >>> 6] = after;
+			if (before != after) {
+				cardinality++;
+			}
+		}
+
+		@Override
+		Container add(char value) {
+			set(value);
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		@Override
+		int fill(int[] values, int offset, int high) {
+			for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+				long word = words[wordIndex];
+				while (word != 0) {
+					values[offset++] = high
+							| ((wordIndex << 6) + Long
+									.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return offset;
+		}
+
+		@Override
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+			long[] otherWords = ((BitmapContainer) other).words;
+			long[] answer = new long[words.length];
+			for (int index = 0; index < words.length; index++) {
+				answer[index] = words[index] & otherWords[index];
+			}
+			return repair(answer);
+		}
+
+		@Override
+		Container or(Container other) {
+			long[] otherWords = other.toBitmapContainer().words;
+			long[] answer = new long[words.length];
+			for (int index = 0; index < words.length; index++) {
+				answer[index] = words[index] | otherWords[index];
+			}
+			return repair(answer);
+		}
+
+		@Override
+		Container andNot(Container other) {
+			long[] otherWords = other.toBitmapContainer().words;
+			long[] answer = new long[words.length];
+			for (int index = 0; index < words.length; index++) {
+				answer[index] = words[index] & ~otherWords[index];
+			}
+			return repair(answer);
+		}
+
+		@Override
+		Container xor(Container other) {
+			long[] otherWords = other.toBitmapContainer().words;
+			long[] answer = new long[words.length];
+			for (int index = 0; index < words.length; index++) {
+				answer[index] = words[index] ^ otherWords[index];
+			}
+			return repair(answer);
+		}
+
+		@Override
+		BitmapContainer toBitmapContainer() {
+			return this;
+		}
+
+		/**
+		 * Returns the smallest container for the given words
+		 */
+		private static Container repair(long[] words) {
+			int cardinality = 0;
+			for (long word : words) {
+				cardinality += Long.bitCount(word);
+			}
+			BitmapContainer bitmap = new BitmapContainer(words, cardinality);
+			if (cardinality > ArrayContainer.MAX_SIZE) {
+				return bitmap;
+			}
+			char[] content = new char[cardinality];
+			int offset = 0;
+			for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+				long word = words[wordIndex];
+				while (word != 0) {
+					content[offset++] = (char) ((wordIndex << 6) + Long
+							.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(content, cardinality);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.util.collection;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive longs to primitive ints using open addressing
+ * with linear probing. Unlike a HashMap it does not box its keys or values,
+ * or allocate an entry per mapping.
+ *
+ * This class is not thread safe.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class LongIntHashMap {
+	/**
+	 * The value returned when a key is not in the map
+	 */
+	public static final int NO_VALUE = -1;
+
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size;
+	private int mask;
+
+	/**
+	 * Creates an empty map
+	 */
+	public LongIntHashMap() {
+		this(16);
+	}
+
+	/**
+	 * Creates an empty map that can hold the expected number of mappings
+	 * without resizing
+	 *
+	 * @param expectedSize
+	 *            Expected number of mappings
+	 */
+	public LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(expectedSize * 2, 16) - 1) << 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * Returns the value mapped to the key, or NO_VALUE if the key is not in
+	 * the map
+	 *
+	 * @param key
+	 *            Key
+	 * @return Value
+	 */
+	public int get(long key) {
+		int slot = slot(key);
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NO_VALUE;
+	}
+
+	/**
+	 * Maps the key to the value, replacing any previous value
+	 *
+	 * @param key
+	 *            Key
+	 * @param value
+	 *            Value
+	 */
+	public void put(long key, int value) {
+		int slot = slot(key);
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		used[slot] = true;
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		if (size * 2 > keys.length) {
+			resize();
+		}
+	}
+
+	/**
+	 * Returns the number of mappings in the map
+	 *
+	 * @return Size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all mappings from the map
+	 */
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(oldKeys.length * 2);
+		for (int index = 0; index < oldKeys.length; index++) {
+			if (oldUsed[index]) {
+				int slot = slot(oldKeys[index]);
+				while (used[slot]) {
+					slot = (slot + 1) & mask;
+				}
+				used[slot] = true;
+				keys[slot] = oldKeys[index];
+				values[slot] = oldValues[index];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	private int slot(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+}
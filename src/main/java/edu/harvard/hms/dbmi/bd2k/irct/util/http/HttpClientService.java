@@ -0,0 +1,201 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.util.http;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import edu.harvard.hms.dbmi.bd2k.irct.executable.AsyncExecution;
+
+/**
+ * A shared HTTP client for outbound calls, so connections are pooled and
+ * kept alive between calls instead of being opened for each one. It is used
+ * for security delegation and can be used by resource implementations.
+ *
+ * Responses should be read with a response handler so their connections are
+ * returned to the pool. Asynchronous calls run on the default executor. Idle
+ * and expired connections are closed in the background, and the client is
+ * closed when the application stops.
+ *
+ * The client is configured with the following global settings, times are in
+ * milliseconds:
+ *
+ * java:global/httpMaxConnections - Connections in the pool (100)
+ * java:global/httpMaxConnectionsPerRoute - Connections to one host (20)
+ * java:global/httpConnectTimeout - Time to open a connection (5000)
+ * java:global/httpSocketTimeout - Time to wait for data (30000)
+ * java:global/httpConnectionRequestTimeout - Time to wait for a pooled connection (5000)
+ * java:global/httpKeepAlive - Time an idle connection is kept if the server does not say (30000)
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class HttpClientService {
+	private static final long IDLE_CHECK_INTERVAL = 30000;
+	private static final Logger LOGGER = Logger
+			.getLogger(HttpClientService.class.getName());
+
+	private static PoolingHttpClientConnectionManager connectionManager;
+	private static CloseableHttpClient client;
+	private static ScheduledFuture<?> idleCheck;
+
+	/**
+	 * Returns the shared client, creating it the first time. The client must
+	 * not be closed by callers.
+	 *
+	 * @return Client
+	 */
+	public static synchronized CloseableHttpClient getClient() {
+		if (client == null) {
+			final long keepAlive = getSetting("httpKeepAlive", 30000);
+
+			connectionManager = new PoolingHttpClientConnectionManager();
+			connectionManager.setMaxTotal((int) getSetting(
+					"httpMaxConnections", 100));
+			connectionManager.setDefaultMaxPerRoute((int) getSetting(
+					"httpMaxConnectionsPerRoute", 20));
+			connectionManager.setValidateAfterInactivity(2000);
+
+			RequestConfig requestConfig = RequestConfig
+					.custom()
+					.setConnectTimeout(
+							(int) getSetting("httpConnectTimeout", 5000))
+					.setSocketTimeout(
+							(int) getSetting("httpSocketTimeout", 30000))
+					.setConnectionRequestTimeout(
+							(int) getSetting("httpConnectionRequestTimeout",
+									5000)).build();
+
+			client = HttpClients
+					.custom()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(requestConfig)
+					.setKeepAliveStrategy(
+							(response, context) -> {
+								long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+										.getKeepAliveDuration(response, context);
+								return duration > 0 ? duration : keepAlive;
+							}).build();
+
+			final PoolingHttpClientConnectionManager manager = connectionManager;
+			idleCheck = AsyncExecution.getTimer().scheduleWithFixedDelay(() -> {
+				manager.closeExpiredConnections();
+				manager.closeIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+			}, IDLE_CHECK_INTERVAL, IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		return client;
+	}
+
+	/**
+	 * Executes a request and reads the response with the handler. The
+	 * connection is returned to the pool once the handler has finished.
+	 *
+	 * @param request
+	 *            Request
+	 * @param handler
+	 *            Reads the response
+	 * @return Value returned by the handler
+	 * @throws IOException
+	 *             The request failed
+	 */
+	public static <T> T execute(HttpUriRequest request,
+			ResponseHandler<? extends T> handler) throws IOException {
+		return getClient().execute(request, handler);
+	}
+
+	/**
+	 * Executes a request on the default executor and reads the response with
+	 * the handler
+	 *
+	 * @param request
+	 *            Request
+	 * @param handler
+	 *            Reads the response
+	 * @return Future value returned by the handler
+	 */
+	public static <T> CompletableFuture<T> executeAsync(HttpUriRequest request,
+			ResponseHandler<? extends T> handler) {
+		return executeAsync(request, handler,
+				AsyncExecution.getDefaultExecutor());
+	}
+
+	/**
+	 * Executes a request on the executor and reads the response with the
+	 * handler. Cancelling the future aborts the request.
+	 *
+	 * @param request
+	 *            Request
+	 * @param handler
+	 *            Reads the response
+	 * @param executor
+	 *            Executor
+	 * @return Future value returned by the handler
+	 */
+	public static <T> CompletableFuture<T> executeAsync(
+			final HttpUriRequest request,
+			final ResponseHandler<? extends T> handler, Executor executor) {
+		CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+			try {
+				return execute(request, handler);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+		future.whenComplete((value, error) -> {
+			if (future.isCancelled()) {
+				request.abort();
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Closes the shared client and its connections. A new client is created
+	 * the next time one is needed.
+	 */
+	public static synchronized void shutdown() {
+		if (client == null) {
+			return;
+		}
+		idleCheck.cancel(false);
+		try {
+			client.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to close the HTTP client", e);
+		}
+		connectionManager.shutdown();
+		client = null;
+		connectionManager = null;
+		idleCheck = null;
+	}
+
+	private static long getSetting(String name, long defaultValue) {
+		try {
+			Object value = new InitialContext().lookup("java:global/" + name);
+			if (value != null) {
+				return Long.parseLong(value.toString());
+			}
+		} catch (NamingException | NumberFormatException e) {
+			// Use the default
+		}
+		return defaultValue;
+	}
+}
@@ -0,0 +1,205 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.util.sketch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Bloom filter over the values of a column. A Bloom filter answers whether a
+ * value might be in the set; it never returns a false negative and returns a
+ * false positive at roughly the rate it was created with.
+ *
+ * Values are hashed by their canonical string: numbers with an integral value
+ * use their decimal representation, other numbers use Double.toString, and
+ * everything else uses toString. The UTF-8 bytes of the string are hashed
+ * with the 128 bit x64 variant of MurmurHash3 (seed 0) giving h1 and h2, and
+ * the i-th bit is (h1 + i * h2) modulo the number of bits, with a negative
+ * result being flipped with ~. Bit n is stored in word n / 64 at position
+ * n % 64. Remote resources can use this description to test values without
+ * this class.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class BloomFilter {
+	private final long[] words;
+	private final long numBits;
+	private final int numHashes;
+
+	/**
+	 * Creates a Bloom filter with the given number of bits and hash functions
+	 *
+	 * @param numBits
+	 *            Number of bits
+	 * @param numHashes
+	 *            Number of hash functions
+	 */
+	public BloomFilter(long numBits, int numHashes) {
+		this.words = new long[(int) ((Math.max(numBits, 64) + 63) / 64)];
+		this.numBits = this.words.length * 64L;
+		this.numHashes = Math.max(numHashes, 1);
+	}
+
+	private BloomFilter(long[] words, int numHashes) {
+		this.words = words;
+		this.numBits = words.length * 64L;
+		this.numHashes = numHashes;
+	}
+
+	/**
+	 * Creates a Bloom filter sized for the expected number of values and
+	 * false positive rate
+	 *
+	 * @param expectedInsertions
+	 *            Expected number of values
+	 * @param falsePositiveRate
+	 *            False positive rate between 0 and 1, exclusive
+	 * @return Bloom filter
+	 */
+	public static BloomFilter create(long expectedInsertions,
+			double falsePositiveRate) {
+		if (!(falsePositiveRate > 0) || !(falsePositiveRate < 1)) {
+			throw new IllegalArgumentException(
+					"False positive rate must be between 0 and 1, exclusive");
+		}
+		long expected = Math.max(expectedInsertions, 1);
+		double log2 = Math.log(2);
+		long numBits = (long) Math.ceil(-expected
+				* Math.log(falsePositiveRate) / (log2 * log2));
+		int numHashes = (int) Math.round((double) numBits / expected * log2);
+		return new BloomFilter(numBits, numHashes);
+	}
+
+	/**
+	 * Adds a value to the filter. Null values are ignored.
+	 *
+	 * @param value
+	 *            Value
+	 */
+	public void put(Object value) {
+		if (value == null) {
+			return;
+		}
+		long[] hash = hash(value);
+		long combined = hash[0];
+		for (int index = 0; index < numHashes; index++) {
+			long bit = (combined < 0 ? ~combined : combined) % numBits;
+			words[(int) (bit >>> 6)] |= 1L << bit;
+			combined += hash[1];
+		}
+	}
+
+	/**
+	 * Returns true if the value might be in the filter, and false if it is
+	 * definitely not
+	 *
+	 * @param value
+	 *            Value
+	 * @return Might contain
+	 */
+	public boolean mightContain(Object value) {
+		if (value == null) {
+			return false;
+		}
+		long[] hash = hash(value);
+		long combined = hash[0];
+		for (int index = 0; index < numHashes; index++) {
+			long bit = (combined < 0 ? ~combined : combined) % numBits;
+			if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			combined += hash[1];
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of bits in the filter
+	 *
+	 * @return Number of bits
+	 */
+	public long getNumBits() {
+		return numBits;
+	}
+
+	/**
+	 * Returns the number of hash functions used
+	 *
+	 * @return Number of hash functions
+	 */
+	public int getNumHashes() {
+		return numHashes;
+	}
+
+	/**
+	 * Returns a copy of the bits of the filter
+	 *
+	 * @return Bits
+	 */
+	public long[] getWords() {
+		return words.clone();
+	}
+
+	/**
+	 * Returns a byte representation of the filter. The first four bytes are
+	 * the number of hash functions followed by the words of the filter, both
+	 * big endian.
+	 *
+	 * @return Bytes
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + words.length * 8);
+		buffer.putInt(numHashes);
+		for (long word : words) {
+			buffer.putLong(word);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Creates a filter from its byte representation
+	 *
+	 * @param bytes
+	 *            Bytes
+	 * @return Bloom filter
+	 */
+	public static BloomFilter fromBytes(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		int numHashes = buffer.getInt();
+		long[] words = new long[buffer.remaining() / 8];
+		for (int index = 0; index < words.length; index++) {
+			words[index] = buffer.getLong();
+		}
+		return new BloomFilter(words, numHashes);
+	}
+
+	/**
+	 * Returns the canonical string of a value that is hashed
+	 *
+	 * @param value
+	 *            Value
+	 * @return Canonical string
+	 */
+	public static String canonical(Object value) {
+		if ((value instanceof Long) || (value instanceof Integer)
+				|| (value instanceof Short) || (value instanceof Byte)) {
+			return Long.toString(((Number) value).longValue());
+		}
+		if (value instanceof Number) {
+			double number = ((Number) value).doubleValue();
+			if ((number == Math.rint(number)) && !Double.isInfinite(number)
+					&& (Math.abs(number) < 1e18)) {
+				return Long.toString((long) number);
+			}
+			return Double.toString(number);
+		}
+		return value.toString();
+	}
+
+	private static long[] hash(Object value) {
+		return MurmurHash3.hash128(canonical(value).getBytes(
+				StandardCharsets.UTF_8));
+	}
+}
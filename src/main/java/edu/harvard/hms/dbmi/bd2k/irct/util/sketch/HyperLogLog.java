@@ -0,0 +1,161 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.util.sketch;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values it has
+ * seen using a fixed amount of memory. With the default precision of 12 it
+ * uses 4096 one byte registers and has a standard error of about 1.6%.
+ *
+ * Values are hashed the same way as the BloomFilter. Two sketches with the
+ * same precision can be merged, which gives the same sketch as adding all the
+ * values to one of them.
+ *
+ * This class is not thread safe.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class HyperLogLog {
+	/**
+	 * The default precision
+	 */
+	public static final int DEFAULT_PRECISION = 12;
+
+	private final int precision;
+	private final byte[] registers;
+
+	/**
+	 * Creates an empty sketch with the default precision
+	 */
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * Creates an empty sketch with the given precision. The sketch has 2 to
+	 * the power of the precision registers.
+	 *
+	 * @param precision
+	 *            Precision between 4 and 18
+	 */
+	public HyperLogLog(int precision) {
+		if ((precision < 4) || (precision > 18)) {
+			throw new IllegalArgumentException(
+					"Precision must be between 4 and 18");
+		}
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	/**
+	 * Adds a value to the sketch. Null values are ignored.
+	 *
+	 * @param value
+	 *            Value
+	 */
+	public void add(Object value) {
+		if (value == null) {
+			return;
+		}
+		long hash = MurmurHash3.hash128(BloomFilter.canonical(value).getBytes(
+				StandardCharsets.UTF_8))[0];
+		int index = (int) (hash >>> (64 - precision));
+		long remaining = (hash << precision) | (1L << (precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+		if (rank > registers[index]) {
+			registers[index] = rank;
+		}
+	}
+
+	/**
+	 * Returns the estimated number of distinct values
+	 *
+	 * @return Estimate
+	 */
+	public long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0) {
+				zeros++;
+			}
+		}
+		double alpha = 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+
+		// Use linear counting for small cardinalities
+		if ((estimate <= 2.5 * m) && (zeros > 0)) {
+			estimate = m * Math.log((double) m / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Merges another sketch into this one
+	 *
+	 * @param other
+	 *            Other sketch
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException(
+					"Sketches must have the same precision");
+		}
+		for (int index = 0; index < registers.length; index++) {
+			if (other.registers[index] > registers[index]) {
+				registers[index] = other.registers[index];
+			}
+		}
+	}
+
+	/**
+	 * Returns the precision of the sketch
+	 *
+	 * @return Precision
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Returns a string representation of the sketch made up of the precision
+	 * and the registers in hexadecimal separated by a colon
+	 *
+	 * @return String representation
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(registers.length * 2 + 3);
+		builder.append(precision).append(':');
+		for (byte register : registers) {
+			builder.append(Character.forDigit(register >>> 4, 16));
+			builder.append(Character.forDigit(register & 0xF, 16));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Creates a sketch from its string representation
+	 *
+	 * @param value
+	 *            String representation
+	 * @return Sketch
+	 */
+	public static HyperLogLog fromString(String value) {
+		int separator = value.indexOf(':');
+		HyperLogLog sketch = new HyperLogLog(Integer.parseInt(value.substring(
+				0, separator)));
+		for (int index = 0; index < sketch.registers.length; index++) {
+			int position = separator + 1 + index * 2;
+			sketch.registers[index] = (byte) Integer.parseInt(
+					value.substring(position, position + 2), 16);
+		}
+		return sketch;
+	}
+}
@@ -0,0 +1,322 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.util.sketch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A KLL sketch that estimates the quantiles of a stream of numbers using a
+ * small amount of memory. The sketch keeps a hierarchy of compactors. When a
+ * compactor is full it is sorted and every other value is promoted to the
+ * next level, where each value stands for twice as many values. With the
+ * default k of 200 the rank error is about 1.3%.
+ *
+ * Two sketches can be merged, which gives a sketch with the same guarantees
+ * as adding all the values to one of them.
+ *
+ * This class is not thread safe.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class KllSketch {
+	/**
+	 * The default size of the largest compactor
+	 */
+	public static final int DEFAULT_K = 200;
+
+	private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+	private final int k;
+	private final List<double[]> compactors;
+	private final List<Integer> sizes;
+	private long count;
+	private double min;
+	private double max;
+	private int maxSize;
+	private final Random random;
+
+	/**
+	 * Creates an empty sketch with the default k
+	 */
+	public KllSketch() {
+		this(DEFAULT_K);
+	}
+
+	/**
+	 * Creates an empty sketch
+	 *
+	 * @param k
+	 *            Size of the largest compactor
+	 */
+	public KllSketch(int k) {
+		this.k = Math.max(k, 8);
+		this.compactors = new ArrayList<double[]>();
+		this.sizes = new ArrayList<Integer>();
+		this.min = Double.NaN;
+		this.max = Double.NaN;
+		this.random = new Random(1);
+		grow();
+	}
+
+	/**
+	 * Adds a value to the sketch. NaN values are ignored.
+	 *
+	 * @param value
+	 *            Value
+	 */
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		if ((count == 0) || (value < min)) {
+			min = value;
+		}
+		if ((count == 0) || (value > max)) {
+			max = value;
+		}
+		count++;
+		append(0, value);
+		if (retained() >= maxSize) {
+			compress();
+		}
+	}
+
+	/**
+	 * Merges another sketch into this one
+	 *
+	 * @param other
+	 *            Other sketch
+	 */
+	public void merge(KllSketch other) {
+		if (other.count == 0) {
+			return;
+		}
+		while (compactors.size() < other.compactors.size()) {
+			grow();
+		}
+		for (int level = 0; level < other.compactors.size(); level++) {
+			double[] values = other.compactors.get(level);
+			for (int index = 0; index < other.sizes.get(level); index++) {
+				append(level, values[index]);
+			}
+		}
+		if ((count == 0) || (other.min < min)) {
+			min = other.min;
+		}
+		if ((count == 0) || (other.max > max)) {
+			max = other.max;
+		}
+		count += other.count;
+		while (retained() >= maxSize) {
+			compress();
+		}
+	}
+
+	/**
+	 * Returns the estimated value at the given quantile
+	 *
+	 * @param quantile
+	 *            Quantile between 0 and 1
+	 * @return Value, or NaN if the sketch is empty
+	 */
+	public double getQuantile(double quantile) {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		if (quantile <= 0) {
+			return min;
+		}
+		if (quantile >= 1) {
+			return max;
+		}
+
+		// Sort the retained values with their weights
+		int retained = retained();
+		double[] values = new double[retained];
+		long[] weights = new long[retained];
+		Integer[] order = new Integer[retained];
+		int offset = 0;
+		long total = 0;
+		for (int level = 0; level < compactors.size(); level++) {
+			double[] levelValues = compactors.get(level);
+			for (int index = 0; index < sizes.get(level); index++) {
+				values[offset] = levelValues[index];
+				weights[offset] = 1L << level;
+				order[offset] = offset;
+				total += weights[offset];
+				offset++;
+			}
+		}
+		final double[] sortValues = values;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer first, Integer second) {
+				return Double.compare(sortValues[first], sortValues[second]);
+			}
+		});
+
+		double target = quantile * total;
+		long cumulative = 0;
+		for (Integer index : order) {
+			cumulative += weights[index];
+			if (cumulative >= target) {
+				return values[index];
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the number of values added to the sketch
+	 *
+	 * @return Count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the smallest value added to the sketch
+	 *
+	 * @return Minimum
+	 */
+	public double getMin() {
+		return min;
+	}
+
+	/**
+	 * Returns the largest value added to the sketch
+	 *
+	 * @return Maximum
+	 */
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns a string representation of the sketch. It is made up of k, the
+	 * count, the minimum, and the maximum followed by the values of each
+	 * compactor, all separated by semicolons. The values within a compactor
+	 * are separated by commas.
+	 *
+	 * @return String representation
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(k).append(';').append(count).append(';').append(min)
+				.append(';').append(max);
+		for (int level = 0; level < compactors.size(); level++) {
+			builder.append(';');
+			double[] values = compactors.get(level);
+			for (int index = 0; index < sizes.get(level); index++) {
+				if (index != 0) {
+					builder.append(',');
+				}
+				builder.append(values[index]);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Creates a sketch from its string representation
+	 *
+	 * @param value
+	 *            String representation
+	 * @return Sketch
+	 */
+	public static KllSketch fromString(String value) {
+		String[] parts = value.split(";", -1);
+		KllSketch sketch = new KllSketch(Integer.parseInt(parts[0]));
+		sketch.count = Long.parseLong(parts[1]);
+		sketch.min = Double.parseDouble(parts[2]);
+		sketch.max = Double.parseDouble(parts[3]);
+		for (int level = 0; level < parts.length - 4; level++) {
+			if (level >= sketch.compactors.size()) {
+				sketch.grow();
+			}
+			if (parts[level + 4].isEmpty()) {
+				continue;
+			}
+			for (String levelValue : parts[level + 4].split(",")) {
+				sketch.append(level, Double.parseDouble(levelValue));
+			}
+		}
+		return sketch;
+	}
+
+	private void compress() {
+		for (int level = 0; level < compactors.size(); level++) {
+			if (sizes.get(level) >= capacity(level)) {
+				if (level + 1 >= compactors.size()) {
+					grow();
+				}
+				compact(level);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sorts the compactor and promotes every other value to the next level
+	 */
+	private void compact(int level) {
+		double[] values = compactors.get(level);
+		int size = sizes.get(level);
+		Arrays.sort(values, 0, size);
+
+		// Keep the last value if there is an odd number of values
+		int pairs = size / 2;
+		int offset = random.nextBoolean() ? 1 : 0;
+		for (int pair = 0; pair < pairs; pair++) {
+			append(level + 1, values[pair * 2 + offset]);
+		}
+		if ((size % 2) == 1) {
+			values[0] = values[size - 1];
+			sizes.set(level, 1);
+		} else {
+			sizes.set(level, 0);
+		}
+	}
+
+	private void append(int level, double value) {
+		double[] values = compactors.get(level);
+		int size = sizes.get(level);
+		if (size == values.length) {
+			values = Arrays.copyOf(values, Math.max(values.length * 2, 8));
+			compactors.set(level, values);
+		}
+		values[size] = value;
+		sizes.set(level, size + 1);
+	}
+
+	private void grow() {
+		compactors.add(new double[8]);
+		sizes.add(0);
+		maxSize = 0;
+		for (int level = 0; level < compactors.size(); level++) {
+			maxSize += capacity(level);
+		}
+	}
+
+	private int capacity(int level) {
+		int depth = compactors.size() - level - 1;
+		return (int) Math.max(
+				Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)), 2);
+	}
+
+	private int retained() {
+		int retained = 0;
+		for (Integer size : sizes) {
+			retained += size;
+		}
+		return retained;
+	}
+}
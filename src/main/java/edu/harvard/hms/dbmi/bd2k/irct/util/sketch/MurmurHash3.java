@@ -0,0 +1,149 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.util.sketch;
+
+/**
+ * The 128 bit x64 variant of the MurmurHash3 hash function with a seed of 0.
+ * It is used by the sketches as it is fast, well distributed, and simple to
+ * reproduce in other languages.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class MurmurHash3 {
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	/**
+	 * Returns the two 64 bit halves of the hash of the bytes
+	 *
+	 * @param data
+	 *            Bytes
+	 * @return Hash
+	 */
+	@SuppressWarnings("fallthrough")
+	public static long[] hash128(byte[] data) {
+		long h1 = 0;
+		long h2 = 0;
+		int length = data.length;
+		int blocks = length / 16;
+
+		for (int block = 0; block < blocks; block++) {
+			long k1 = getLong(data, block * 16);
+			long k2 = getLong(data, block * 16 + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		long k1 = 0;
+		long k2 = 0;
+		int tail = blocks * 16;
+		switch (length & 15) {
+		case 15:
+			k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+			// fall through
+		case 14:
+			k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+			// fall through
+		case 13:
+			k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+			// fall through
+		case 12:
+			k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+			// fall through
+		case 11:
+			k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+			// fall through
+		case 10:
+			k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+			// fall through
+		case 9:
+			k2 ^= (long) (data[tail + 8] & 0xff);
+			h2 ^= mixK2(k2);
+			// fall through
+		case 8:
+			k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+			// fall through
+		case 7:
+			k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+			// fall through
+		case 6:
+			k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+			// fall through
+		case 5:
+			k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+			// fall through
+		case 4:
+			k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+			// fall through
+		case 3:
+			k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+			// fall through
+		case 2:
+			k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+			// fall through
+		case 1:
+			k1 ^= (long) (data[tail] & 0xff);
+			h1 ^= mixK1(k1);
+			// fall through
+		default:
+			break;
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+
+		h1 += h2;
+		h2 += h1;
+
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+
+		h1 += h2;
+		h2 += h1;
+
+		return new long[] { h1, h2 };
+	}
+
+	private static long getLong(byte[] data, int offset) {
+		return (data[offset] & 0xffL) | ((data[offset + 1] & 0xffL) << 8)
+				| ((data[offset + 2] & 0xffL) << 16)
+				| ((data[offset + 3] & 0xffL) << 24)
+				| ((data[offset + 4] & 0xffL) << 32)
+				| ((data[offset + 5] & 0xffL) << 40)
+				| ((data[offset + 6] & 0xffL) << 48)
+				| ((data[offset + 7] & 0xffL) << 56);
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		return k1;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		return k2;
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
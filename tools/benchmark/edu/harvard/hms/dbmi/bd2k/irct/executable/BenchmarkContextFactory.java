@@ -0,0 +1,80 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.executable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * A naming context for running execution plans outside of a container. It
+ * only supports looking up the objects that were bound to it, every other
+ * name is not found, so the execution engine falls back to the pools it
+ * creates itself and to its default settings.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class BenchmarkContextFactory implements InitialContextFactory {
+	private static final Map<String, Object> BINDINGS = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Makes this the factory of every new initial context
+	 */
+	public static void install() {
+		System.setProperty(Context.INITIAL_CONTEXT_FACTORY,
+				BenchmarkContextFactory.class.getName());
+	}
+
+	/**
+	 * Binds an object to a name
+	 *
+	 * @param name
+	 *            Name
+	 * @param value
+	 *            Object
+	 */
+	public static void bind(String name, Object value) {
+		BINDINGS.put(name, value);
+	}
+
+	@Override
+	public Context getInitialContext(Hashtable<?, ?> environment) {
+		return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(),
+				new Class<?>[] { Context.class }, new Lookup());
+	}
+
+	/**
+	 * Answers lookups by name from the bindings
+	 */
+	private static class Lookup implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Exception {
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(this, args);
+			}
+			if (method.getName().equals("close")) {
+				return null;
+			}
+			if (!method.getName().equals("lookup")) {
+				throw new OperationNotSupportedException(method.getName());
+			}
+			String name = String.valueOf(args[0]);
+			Object value = BINDINGS.get(name);
+			if (value == null) {
+				throw new NameNotFoundException(name);
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.executable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.Query;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.ResourceState;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.implementation.QueryResourceImplementationInterface;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * A query resource that behaves like a remote one. Every call into it blocks
+ * for the call latency, as a request to a remote resource does, and a query
+ * only completes once it has run for the run time. Its results are polled, a
+ * batch of results being checked in a single call, and a completed query
+ * returns a small tabular result.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class BenchmarkQueryResource implements
+		QueryResourceImplementationInterface {
+	private final long callLatency;
+	private final long runTime;
+	private final int rows;
+	private final Map<Long, Long> completesAt = new ConcurrentHashMap<Long, Long>();
+	private final AtomicLong calls = new AtomicLong();
+
+	/**
+	 * Creates a resource
+	 *
+	 * @param callLatency
+	 *            Time each call blocks in milliseconds
+	 * @param runTime
+	 *            Time each query runs for in milliseconds
+	 * @param rows
+	 *            Rows returned by each query
+	 */
+	public BenchmarkQueryResource(long callLatency, long runTime, int rows) {
+		this.callLatency = callLatency;
+		this.runTime = runTime;
+		this.rows = rows;
+	}
+
+	@Override
+	public void setup(Map<String, String> parameters)
+			throws ResourceInterfaceException {
+	}
+
+	@Override
+	public String getType() {
+		return "benchmark";
+	}
+
+	@Override
+	public Result runQuery(SecureSession session, Query qep, Result result)
+			throws ResourceInterfaceException {
+		block();
+		completesAt.put(result.getId(), System.currentTimeMillis() + runTime);
+		result.setResultStatus(ResultStatus.RUNNING);
+		return result;
+	}
+
+	@Override
+	public Result getResults(SecureSession session, Result result)
+			throws ResourceInterfaceException {
+		return getResults(session, Collections.singletonList(result)).get(0);
+	}
+
+	@Override
+	public List<Result> getResults(SecureSession session, List<Result> results)
+			throws ResourceInterfaceException {
+		block();
+		long now = System.currentTimeMillis();
+		for (Result result : results) {
+			Long completes = completesAt.get(result.getId());
+			if (completes != null && now >= completes) {
+				addRows(result);
+				completesAt.remove(result.getId());
+				result.setResultStatus(ResultStatus.COMPLETE);
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public ResourceState getState() {
+		return ResourceState.READY;
+	}
+
+	@Override
+	public ResultDataType getQueryDataType(Query query) {
+		return ResultDataType.TABULAR;
+	}
+
+	/**
+	 * Returns the number of calls made into the resource
+	 *
+	 * @return Calls
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	private void block() throws ResourceInterfaceException {
+		calls.incrementAndGet();
+		try {
+			Thread.sleep(callLatency);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResourceInterfaceException("Interrupted", e);
+		}
+	}
+
+	private void addRows(Result result) throws ResourceInterfaceException {
+		try {
+			FileResultSet data = (FileResultSet) result.getData();
+			Column column = new Column();
+			column.setName("row");
+			column.setDataType(PrimitiveDataType.INTEGER);
+			data.appendColumn(column);
+			for (int row = 0; row < rows; row++) {
+				data.appendRow();
+				data.updateInt("row", row);
+			}
+		} catch (ResultSetException | PersistableException e) {
+			throw new ResourceInterfaceException(e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.executable;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.harvard.hms.dbmi.bd2k.irct.controller.ResultController;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.User;
+
+/**
+ * A result controller that keeps results in memory instead of the database.
+ * The rows of tabular results are still saved to files in the given folder.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class BenchmarkResultController extends ResultController {
+	private final String resultDataFolder;
+	private final AtomicLong ids = new AtomicLong();
+	private final Map<Long, Result> results = new ConcurrentHashMap<Long, Result>();
+
+	/**
+	 * Creates a controller that saves rows under the folder
+	 *
+	 * @param resultDataFolder
+	 *            Folder
+	 */
+	public BenchmarkResultController(String resultDataFolder) {
+		this.resultDataFolder = resultDataFolder;
+	}
+
+	@Override
+	public Result createResult(ResultDataType resultDataType)
+			throws PersistableException {
+		Result result = new Result();
+		result.setId(ids.incrementAndGet());
+		result.setDataType(resultDataType);
+		result.setStartTime(new Date());
+		if (resultDataType == ResultDataType.TABULAR) {
+			FileResultSet frs = new FileResultSet();
+			frs.persist(resultDataFolder + "/" + result.getId());
+			result.setResultSetLocation(resultDataFolder + "/"
+					+ result.getId());
+			result.setData(frs);
+		}
+		result.setResultStatus(ResultStatus.CREATED);
+		results.put(result.getId(), result);
+		return result;
+	}
+
+	@Override
+	public void mergeResult(Result result) {
+		if (result.getId() != null) {
+			results.put(result.getId(), result);
+		}
+	}
+
+	@Override
+	public Result getResult(User user, Long resultId) {
+		return results.get(resultId);
+	}
+}
@@ -0,0 +1,229 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.executable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import edu.harvard.hms.dbmi.bd2k.irct.action.Action;
+import edu.harvard.hms.dbmi.bd2k.irct.action.ActionStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.action.QueryAction;
+import edu.harvard.hms.dbmi.bd2k.irct.event.IRCTEventListener;
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.Query;
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.Resource;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * A load test of the execution engine with and without virtual threads. It
+ * runs a number of execution plans at the same time, each a child node whose
+ * two children are queries on a resource that behaves like a remote one.
+ * Every call into the resource blocks for the call latency and the queries
+ * are polled until they complete, so the plans spend most of their time
+ * waiting on the resource as they do in production. It reports how long the
+ * plans took, the peak number of live threads, and how many plans failed,
+ * first on the shared executor and then on virtual threads.
+ *
+ * The plans run outside of a container, with an in memory result controller
+ * and a naming context that only holds it and the event listener. The
+ * virtual thread run is only made on Java 21 and later. See
+ * tools/benchmark/README.md for how to run it.
+ *
+ * @author Jeremy R. Easton-Marks
+ *
+ */
+public class VirtualThreadBenchmark {
+	private static final int DEFAULT_PLANS = 500;
+	private static final long DEFAULT_LATENCY = 200;
+	private static final long DEFAULT_RUN_TIME = 1000;
+	private static final int ROWS = 100;
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args
+	 *            Number of plans, the latency of each call into the resource
+	 *            and the time each query runs for, in milliseconds
+	 * @throws IOException
+	 *             The folder for the results could not be created
+	 */
+	public static void main(String[] args) throws IOException {
+		int plans = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_PLANS;
+		long latency = args.length > 1 ? Long.parseLong(args[1])
+				: DEFAULT_LATENCY;
+		long runTime = args.length > 2 ? Long.parseLong(args[2])
+				: DEFAULT_RUN_TIME;
+
+		Path folder = Files.createTempDirectory("irct-benchmark");
+		IRCTEventListener listener = new IRCTEventListener();
+		listener.init();
+		BenchmarkContextFactory.install();
+		BenchmarkContextFactory.bind("java:module/IRCTEventListener",
+				listener);
+		BenchmarkContextFactory.bind("java:module/ResultController",
+				new BenchmarkResultController(folder.toString()));
+
+		System.out.println("Running " + plans + " plans of 2 queries with "
+				+ latency + "ms calls that run for " + runTime + "ms on Java "
+				+ System.getProperty("java.version"));
+		try {
+			run("Shared executor", false, plans, latency, runTime);
+			run("Virtual threads", true, plans, latency, runTime);
+		} finally {
+			AsyncExecution.shutdown();
+			delete(folder);
+		}
+	}
+
+	/**
+	 * Runs the plans and prints how they went
+	 *
+	 * @param name
+	 *            Name of the run
+	 * @param virtualThreads
+	 *            Whether to run on virtual threads
+	 * @param plans
+	 *            Number of plans
+	 * @param latency
+	 *            Time each call into the resource blocks
+	 * @param runTime
+	 *            Time each query runs for
+	 */
+	private static void run(String name, boolean virtualThreads, int plans,
+			long latency, long runTime) {
+		// Start from new executors so the setting is read again
+		AsyncExecution.shutdown();
+		System.setProperty("irct.virtualThreads",
+				String.valueOf(virtualThreads));
+		if (virtualThreads && !AsyncExecution.isVirtualThreads()) {
+			System.out.println(name + ": not available");
+			return;
+		}
+
+		BenchmarkQueryResource queryResource = new BenchmarkQueryResource(
+				latency, runTime, ROWS);
+		Resource resource = new Resource();
+		resource.setName("benchmark-" + name);
+		resource.setImplementingInterface(queryResource);
+		// Let every call through so the executor is what is measured
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("maxConcurrentCalls", String.valueOf(4 * plans));
+		parameters.put("bulkheadTimeout", String.valueOf(Long.MAX_VALUE));
+		resource.setParameters(parameters);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		long start = System.currentTimeMillis();
+
+		List<CompletableFuture<Result>> futures = new ArrayList<CompletableFuture<Result>>();
+		for (int plan = 0; plan < plans; plan++) {
+			ExecutionPlan executionPlan = new ExecutionPlan();
+			executionPlan.setup(createPlan(resource), null);
+			futures.add(executionPlan.runAsync());
+		}
+		int failed = 0;
+		for (CompletableFuture<Result> future : futures) {
+			try {
+				if (future.join().getResultStatus() != ResultStatus.COMPLETE) {
+					failed++;
+				}
+			} catch (RuntimeException e) {
+				failed++;
+			}
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+		System.out.println(name + ": " + elapsed + "ms, "
+				+ threads.getPeakThreadCount() + " peak threads, "
+				+ queryResource.getCalls() + " resource calls, " + failed
+				+ " failed");
+	}
+
+	/**
+	 * Returns a child node that counts the results of two queries
+	 */
+	private static Executable createPlan(Resource resource) {
+		ExecutableChildNode node = new ExecutableChildNode();
+		node.setAction(new CountAction());
+		for (int child = 0; child < 2; child++) {
+			QueryAction queryAction = new UnsharedQueryAction();
+			queryAction.setup(resource, new Query());
+			ExecutableLeafNode leaf = new ExecutableLeafNode();
+			leaf.setAction(queryAction);
+			node.addChild(String.valueOf(child), leaf);
+		}
+		return node;
+	}
+
+	private static void delete(Path folder) throws IOException {
+		try (Stream<Path> paths = Files.walk(folder)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile)
+					.forEach(File::delete);
+		}
+	}
+
+	/**
+	 * A query that is never shared through the execution memo, as the
+	 * queries of the plans are all the same
+	 */
+	private static class UnsharedQueryAction extends QueryAction {
+		@Override
+		public String getFingerprint() {
+			return null;
+		}
+	}
+
+	/**
+	 * Completes once the results of its children are passed to it, and fails
+	 * if any of them did not complete
+	 */
+	private static class CountAction implements Action {
+		private final Result result = new Result();
+		private ActionStatus status = ActionStatus.CREATED;
+		private int children;
+		private int completed;
+
+		@Override
+		public void run(SecureSession secureSession) {
+			status = ActionStatus.COMPLETE;
+			result.setResultStatus(completed == children ? ResultStatus.COMPLETE
+					: ResultStatus.ERROR);
+			result.setMessage(completed + " of " + children
+					+ " queries completed");
+		}
+
+		@Override
+		public void updateActionParams(Map<String, Result> updatedParams) {
+			for (Result child : updatedParams.values()) {
+				children++;
+				if (child.getResultStatus() == ResultStatus.COMPLETE) {
+					completed++;
+				}
+			}
+		}
+
+		@Override
+		public Result getResults(SecureSession secureSession) {
+			return result;
+		}
+
+		@Override
+		public ActionStatus getStatus() {
+			return status;
+		}
+	}
+}